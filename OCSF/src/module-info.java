@@ -5,4 +5,9 @@
  * 
  */
 module OCSF {
+	requires java.management;
+	requires jdk.jfr;
+
+	// The MBeans of the server are introspected by the JMX implementation
+	exports ocsf.server to java.management;
 }
\ No newline at end of file
@@ -5,6 +5,16 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.common.*;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -18,6 +28,38 @@ import java.net.*;
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
+ * By default objects are exchanged on the legacy continuous object stream,
+ * so that the client can talk to servers that predate codecs. After
+ * <code> setCodec </code>, they are exchanged as length-prefixed frames
+ * encoded by a <code> MessageCodec </code>, such as the
+ * <code> CompactCodec </code>, which the client names when it connects.
+ * Servers using the selector engine can serve such connections without
+ * dedicating a thread to them.
+ * <p>
+ * Besides <code> sendToServer </code>, which returns once the message is
+ * written, <code> sendToServerAsync </code> queues the message for a writer
+ * thread and returns a <code> CompletableFuture </code> completed once it
+ * is written, so that a producer may pipeline many messages without
+ * waiting on the socket. The queue is bounded: when it is full, messages
+ * are refused, <code> isWritable </code> returns false and the hook method
+ * <code> writabilityChanged </code> is called, until the writer has caught
+ * up. Messages are written in the order they were sent, whichever method
+ * sent them.
+ * <p>
+ * With a <code> ReconnectPolicy </code>, a client that loses its connection
+ * reconnects by itself, waiting a jittered, growing delay before each
+ * attempt. The hook method <code> connectionReestablished </code> then lets
+ * the subclass restore its session on the server.
+ * <p>
+ * With a heartbeat interval, the client pings a server that has sent
+ * nothing for the interval; with an idle timeout, it closes a connection
+ * on which the server has sent nothing, not even a pong, for the timeout,
+ * which counts as losing it. A server that vanished without closing the
+ * connection is thus noticed, and reconnected to if there is a policy.
+ * The checks run on the shared <code> TimingWheel </code> and only apply
+ * to connections using a codec. The client always answers the pings of the
+ * server.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -42,13 +84,75 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * The stream to handle data going to the server.
 	 */
-	private ObjectOutputStream output;
+	private BoundedObjectOutputStream output;
 
 	/**
 	 * The stream to handle data from the server.
 	 */
 	private ObjectInputStream input;
 
+	/**
+	 * The stream to handle frames going to the server, used instead of
+	 * <code>output</code> when a codec is in use.
+	 */
+	private DataOutputStream frameOutput;
+
+	/**
+	 * The stream to handle frames from the server, used instead of
+	 * <code>input</code> when a codec is in use.
+	 */
+	private DataInputStream frameInput;
+
+	/**
+	 * The codec of the next connection, or null, the default, for the
+	 * legacy object stream.
+	 */
+	private MessageCodec codec = null;
+
+	/**
+	 * The codec of the current connection.
+	 */
+	private MessageCodec connectionCodec;
+
+	/**
+	 * The number of messages after which the legacy object stream is
+	 * reset.
+	 */
+	private int streamResetMessages = 1024;
+
+	/**
+	 * The number of bytes after which the legacy object stream is reset.
+	 */
+	private long streamResetBytes = 1024 * 1024;
+
+	/**
+	 * Indicates if messages are written unshared on the legacy object
+	 * stream.
+	 */
+	private boolean unsharedWrites = false;
+
+	/**
+	 * The number of bytes buffered before they are written to the socket.
+	 */
+	private int flushBytes = 8192;
+
+	/**
+	 * How long, in nanoseconds, a message may wait for others to be
+	 * written with it. Zero flushes every message as it is sent.
+	 */
+	private long flushDelay = 0;
+
+	/**
+	 * Indicates if a thread will flush the messages written since the last
+	 * flush once the flush delay has elapsed.
+	 */
+	private volatile boolean flushPending = false;
+
+	/**
+	 * Indicates if the reader of the next connection is a virtual thread.
+	 */
+	private boolean virtualThread = false;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
@@ -58,7 +162,110 @@ public abstract class AbstractClient implements Runnable {
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
-	private boolean readyToStop	= false;
+	private volatile boolean readyToStop = false;
+
+	/**
+	 * Guards the setting of <code>readyToStop</code>, so that a connection
+	 * being opened never clears a stop requested while it was opened.
+	 */
+	private final Object connectionLock = new Object();
+
+	/**
+	 * The number of times the connection was closed. Changed only with
+	 * <code>connectionLock</code> held.
+	 */
+	private volatile int closeRequests = 0;
+
+	/**
+	 * How the client reconnects when the connection is lost, or null to stay
+	 * disconnected.
+	 */
+	private volatile ReconnectPolicy reconnectPolicy = null;
+
+	/**
+	 * The number of attempts made to reconnect since the connection was last
+	 * stable.
+	 */
+	private int reconnectAttempts = 0;
+
+	/**
+	 * Indicates if the connection being opened replaces one that was lost.
+	 */
+	private boolean reconnected = false;
+
+	/**
+	 * When the current connection was opened, as given by
+	 * <code>System.nanoTime</code>.
+	 */
+	private long connectedAt;
+
+	/**
+	 * The thread waiting to reconnect, woken when the connection is closed.
+	 */
+	private volatile Thread reconnector = null;
+
+	/**
+	 * How long, in nanoseconds, the server may be silent before the client
+	 * pings it, 0 not to ping it.
+	 */
+	private long heartbeatInterval = 0;
+
+	/**
+	 * How long, in nanoseconds, the server may be silent before the client
+	 * closes the connection, 0 for no limit.
+	 */
+	private long idleTimeout = 0;
+
+	/**
+	 * When data was last received from the server, as given by
+	 * <code>System.nanoTime</code>.
+	 */
+	private volatile long lastReceived;
+
+	/**
+	 * The next check of the liveness of the server, or null if the
+	 * connection is not checked.
+	 */
+	private volatile TimingWheel.Timeout idleCheck = null;
+
+	/**
+	 * Why the connection was closed for being idle, reported instead of the
+	 * exception the reader thread gets from the closed socket.
+	 */
+	private volatile SocketTimeoutException idleException = null;
+
+	/**
+	 * The messages waiting for the writer thread, oldest first. Also the
+	 * lock guarding the state of asynchronous sends.
+	 */
+	private final ArrayDeque<QueuedMessage> outboundQueue = new ArrayDeque<QueuedMessage>();
+
+	/**
+	 * The number of messages that may wait in the outbound queue.
+	 */
+	private int outboundQueueLimit = 1024;
+
+	/**
+	 * Indicates if a writer thread owns the streams until the outbound
+	 * queue is empty.
+	 */
+	private boolean writing = false;
+
+	/**
+	 * Indicates if the outbound queue accepts messages.
+	 */
+	private boolean writable = true;
+
+	/**
+	 * Serializes the calls to <code>writabilityChanged</code>, so that the
+	 * threads changing the writability report it in order.
+	 */
+	private final Object writabilityLock = new Object();
+
+	/**
+	 * The writability last reported to <code>writabilityChanged</code>.
+	 */
+	private boolean reportedWritable = true;
 
 	/**
 	 * The server's host name.
@@ -90,12 +297,28 @@ public abstract class AbstractClient implements Runnable {
 
 	/**
 	 * Opens the connection with the server. If the connection is already
-	 * opened, this call has no effect.
+	 * opened, this call has no effect. If the connection is closed by
+	 * another thread while it is being opened, it stays closed.
 	 * 
 	 * @exception IOException
-	 *                if an I/O error occurs when opening.
+	 *                if an I/O error occurs when opening, or the connection
+	 *                was closed meanwhile.
 	 */
 	final public void openConnection() throws IOException {
+		openConnection(closeRequests);
+	}
+
+	/**
+	 * Opens the connection with the server, unless it was closed since
+	 * <code>closeRequests</code> had the given value.
+	 * 
+	 * @param closes
+	 *            the number of closes when the attempt started.
+	 * @exception IOException
+	 *                if an I/O error occurs when opening, or the connection
+	 *                was closed meanwhile.
+	 */
+	private void openConnection(int closes) throws IOException {
 		// Do not do anything if the connection is already open
 		if (isConnected())
 			return;
@@ -103,8 +326,25 @@ public abstract class AbstractClient implements Runnable {
 		// Create the sockets and the data streams
 		try {
 			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			clientSocket.setTcpNoDelay(true); // writes are already coalesced
+			connectedAt = System.nanoTime();
+			if (!reconnected)
+				reconnectAttempts = 0;
+			connectionCodec = codec;
+			flushPending = false;
+			OutputStream socketOutput = new BufferedOutputStream(clientSocket.getOutputStream(), flushBytes);
+			if (connectionCodec != null) {
+				frameOutput = new DataOutputStream(socketOutput);
+				Framing.writeHandshake(frameOutput, connectionCodec);
+				frameOutput.flush();
+				frameInput = new DataInputStream(
+						new BufferedInputStream(clientSocket.getInputStream()));
+			} else {
+				output = new BoundedObjectOutputStream(socketOutput,
+						streamResetMessages, streamResetBytes, unsharedWrites);
+				output.flush(); // the server waits for the stream header
+				input = new ObjectInputStream(clientSocket.getInputStream());
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -117,14 +357,35 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
-		readyToStop = false;
-		clientReader.start(); // Start the thread
+		// Create the data reader thread, and start it unless the connection
+		// was closed meanwhile; the check and the start are atomic with
+		// respect to closeConnection
+		Thread reader = virtualThread ? Thread.ofVirtual().unstarted(this) : new Thread(this);
+		synchronized (connectionLock) {
+			if (closeRequests != closes) {
+				try {
+					closeAll();
+				} catch (Exception exc) {
+				}
+				throw new IOException("connection closed while opening");
+			}
+
+			// Watch the server, if asked to
+			idleException = null;
+			lastReceived = System.nanoTime();
+			if (connectionCodec != null && (heartbeatInterval > 0 || idleTimeout > 0))
+				new IdleCheck(clientSocket, heartbeatInterval, idleTimeout).start();
+
+			clientReader = reader;
+			readyToStop = false;
+			clientReader.start(); // Start the thread
+		}
 	}
 
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. With a flush delay, the message may still
+	 * be waiting for others to share its write when this method returns.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
@@ -132,10 +393,291 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
+		// Messages queued before this one are written first
+		CompletableFuture<Void> queued = null;
+		synchronized (outboundQueue) {
+			if (writing) {
+				queued = new CompletableFuture<Void>();
+				outboundQueue.add(new QueuedMessage(outboundItem(msg), queued));
+			}
+		}
+		if (queued != null) {
+			awaitWritten(queued);
+			return;
+		}
+
+		DataOutputStream frameOutput = this.frameOutput;
+		if (frameOutput != null) {
+			byte[] frame = Framing.encode(msg, connectionCodec);
+			synchronized (frameOutput) {
+				frameOutput.write(frame);
+				flushWritten(frameOutput);
+			}
+			return;
+		}
+
+		BoundedObjectOutputStream output = this.output;
 		if (clientSocket == null || output == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		synchronized (output) {
+			output.writeMessage(msg);
+			flushWritten(output);
+		}
+	}
+
+	/**
+	 * Queues a message to be sent to the server by a writer thread, and
+	 * returns without waiting for the socket. The future returned is
+	 * completed once the message is written, subject to the flush policy,
+	 * or completed exceptionally if it cannot be: with a
+	 * <code>RejectedExecutionException</code> if the outbound queue is full,
+	 * with an <code>IOException</code> if the connection is closed or fails
+	 * or the message cannot be encoded.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return a future completed once the message is written.
+	 */
+	final public CompletableFuture<Void> sendToServerAsync(Object msg) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		Object item;
+		try {
+			item = outboundItem(msg);
+		} catch (IOException ex) {
+			future.completeExceptionally(ex);
+			return future;
+		}
+
+		queue(item, future, true);
+		return future;
+	}
+
+	/**
+	 * Queues a message for the writer thread, starting it if needed.
+	 * 
+	 * @param item
+	 *            the frame of the message, or the message itself.
+	 * @param future
+	 *            the future to complete once the message is written.
+	 * @param bounded
+	 *            false for a control frame, which is queued even if the
+	 *            queue is full.
+	 */
+	private void queue(Object item, CompletableFuture<Void> future, boolean bounded) {
+		boolean startWriter = false;
+		boolean becameFull = false;
+		synchronized (outboundQueue) {
+			if (clientSocket == null || (output == null && frameOutput == null)) {
+				future.completeExceptionally(new SocketException("socket does not exist"));
+				return;
+			}
+			if (bounded && outboundQueue.size() >= outboundQueueLimit) {
+				future.completeExceptionally(new RejectedExecutionException("outbound queue full"));
+				return;
+			}
+
+			outboundQueue.add(new QueuedMessage(item, future));
+			if (!writing) {
+				writing = true;
+				startWriter = true;
+			}
+			if (writable && outboundQueue.size() >= outboundQueueLimit) {
+				writable = false;
+				becameFull = true;
+			}
+		}
+
+		if (becameFull)
+			reportWritability();
+		if (startWriter) {
+			Thread.ofVirtual().name("OCSF client writer").start(new Runnable() {
+				public void run() {
+					writeQueued();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a control frame for the writer thread, so that neither the
+	 * reader thread nor the timing wheel ever waits on the socket.
+	 * 
+	 * @param type
+	 *            <code>Framing.PING</code> or <code>Framing.PONG</code>.
+	 */
+	private void queueControl(int type) {
+		queue(Framing.controlFrame(type), new CompletableFuture<Void>(), false);
+	}
+
+	/**
+	 * Returns what is queued for a message: its frame, encoded on the
+	 * calling thread, or the object itself for the legacy object stream.
+	 * 
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	private Object outboundItem(Object msg) throws IOException {
+		MessageCodec codec = connectionCodec;
+		return frameOutput != null && codec != null ? Framing.encode(msg, codec) : msg;
+	}
+
+	/**
+	 * Waits until a queued message is written, on behalf of
+	 * <code>sendToServer</code>.
+	 * 
+	 * @exception IOException
+	 *                if the message could not be written.
+	 */
+	private static void awaitWritten(CompletableFuture<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while sending");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Runs the writer thread: writes the queued messages in batches, each
+	 * with a single flush, until the queue is empty. When writing fails,
+	 * every queued message fails with the same exception.
+	 */
+	private void writeQueued() {
+		List<QueuedMessage> batch = new ArrayList<QueuedMessage>();
+		while (true) {
+			DataOutputStream frameOutput;
+			BoundedObjectOutputStream output;
+			boolean becameWritable = false;
+			synchronized (outboundQueue) {
+				if (outboundQueue.isEmpty()) {
+					writing = false;
+					return;
+				}
+				batch.addAll(outboundQueue);
+				outboundQueue.clear();
+				if (!writable) {
+					writable = true;
+					becameWritable = true;
+				}
+				frameOutput = this.frameOutput;
+				output = this.output;
+			}
+			if (becameWritable)
+				reportWritability();
+
+			try {
+				if (frameOutput != null) {
+					synchronized (frameOutput) {
+						for (QueuedMessage message : batch)
+							frameOutput.write((byte[]) message.item);
+						flushWritten(frameOutput);
+					}
+				} else if (output != null) {
+					synchronized (output) {
+						for (QueuedMessage message : batch)
+							output.writeMessage(message.item);
+						flushWritten(output);
+					}
+				} else {
+					throw new SocketException("socket does not exist");
+				}
+			} catch (IOException ex) {
+				for (QueuedMessage message : batch)
+					message.future.completeExceptionally(ex);
+				failQueued(ex);
+				return;
+			}
+
+			for (QueuedMessage message : batch)
+				message.future.complete(null);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Fails every queued message with an exception and empties the queue,
+	 * which the writer thread, if any, then stops.
+	 * 
+	 * @param exception
+	 *            why the messages cannot be written.
+	 */
+	private void failQueued(IOException exception) {
+		List<QueuedMessage> failed;
+		boolean becameWritable;
+		synchronized (outboundQueue) {
+			failed = new ArrayList<QueuedMessage>(outboundQueue);
+			outboundQueue.clear();
+			becameWritable = !writable;
+			writable = true;
+		}
+		for (QueuedMessage message : failed)
+			message.future.completeExceptionally(exception);
+		if (becameWritable)
+			reportWritability();
+	}
+
+	/**
+	 * Reports the current writability to <code>writabilityChanged</code>
+	 * unless it was reported already. A thread that changed the
+	 * writability may be overtaken by another that changed it back, and
+	 * then reports nothing.
+	 */
+	private void reportWritability() {
+		synchronized (writabilityLock) {
+			boolean now;
+			synchronized (outboundQueue) {
+				now = writable;
+			}
+			if (now != reportedWritable) {
+				reportedWritable = now;
+				writabilityChanged(now);
+			}
+		}
+	}
+
+	/**
+	 * Flushes a message just written, or makes sure that it will be flushed
+	 * once the flush delay has elapsed. Must be called holding the lock of
+	 * the stream.
+	 * 
+	 * @param stream
+	 *            the stream the message was written to.
+	 * @exception IOException
+	 *                if an I/O error occurs when flushing.
+	 */
+	private void flushWritten(final OutputStream stream) throws IOException {
+		final long delay = flushDelay;
+		if (delay == 0) {
+			stream.flush();
+			return;
+		}
+		if (flushPending)
+			return;
+
+		flushPending = true;
+		Thread.ofVirtual().start(new Runnable() {
+			public void run() {
+				long deadline = System.nanoTime() + delay;
+				long wait;
+				while ((wait = deadline - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
+
+				synchronized (stream) {
+					flushPending = false;
+					try {
+						stream.flush();
+					} catch (IOException ex) {
+						// The reader thread reports the broken connection
+					}
+				}
+			}
+		});
 	}
 
 
@@ -146,8 +688,17 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	final public void closeConnection() throws IOException {
-		// Prevent the thread from looping any more
-		readyToStop = true;
+		// Prevent the thread from looping any more, and a connection being
+		// opened from starting
+		synchronized (connectionLock) {
+			closeRequests++;
+			readyToStop = true;
+		}
+
+		// Stop waiting to reconnect, if the connection was lost
+		Thread reconnector = this.reconnector;
+		if (reconnector != null)
+			LockSupport.unpark(reconnector);
 
 		try {
 			closeAll();
@@ -202,6 +753,187 @@ public abstract class AbstractClient implements Runnable {
 		this.host = host;
 	}
 
+	/**
+	 * Selects the codec of the next connection. The server must know the
+	 * codec; the codecs of the framework are always available, but servers
+	 * that predate codecs know none. With null, the default, the legacy
+	 * object stream is used, which a server using the selector engine can
+	 * only serve with a dedicated thread. The change only takes effect at
+	 * the time of the next call to openConnection().
+	 * 
+	 * @param codec
+	 *            the codec, or null for the legacy object stream.
+	 */
+	final public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets when the legacy object stream to the server is reset, releasing
+	 * the references it keeps to every object written and letting the
+	 * server release its own. The stream is reset once either limit is
+	 * reached; the defaults are 1024 messages and one megabyte. The change
+	 * only takes effect at the time of the next call to openConnection().
+	 * 
+	 * @param messages
+	 *            the number of messages between resets.
+	 * @param bytes
+	 *            the number of bytes between resets.
+	 */
+	final public void setStreamReset(int messages, long bytes) {
+		this.streamResetMessages = Math.max(1, messages);
+		this.streamResetBytes = Math.max(1, bytes);
+	}
+
+	/**
+	 * Sets how messages are coalesced into socket writes. Messages are
+	 * buffered and written together once <code>flushBytes</code> are
+	 * buffered. Without a delay, the default, every message is flushed as
+	 * it is sent; with a positive <code>maxDelayMicros</code>, a message
+	 * waits up to that long for others to share its write, trading latency
+	 * for fewer system calls. The byte threshold, 8192 by default, only
+	 * takes effect at the time of the next call to openConnection(); the
+	 * delay takes effect immediately.
+	 * 
+	 * @param flushBytes
+	 *            the number of bytes buffered before a write.
+	 * @param maxDelayMicros
+	 *            the longest time, in microseconds, a message may wait for
+	 *            others to be written with it.
+	 */
+	final public void setFlushPolicy(int flushBytes, long maxDelayMicros) {
+		this.flushBytes = Math.max(1, flushBytes);
+		this.flushDelay = Math.max(0, maxDelayMicros) * 1000;
+	}
+
+	/**
+	 * Selects whether messages are written unshared on the legacy object
+	 * stream, so that the stream does not keep them between resets. The
+	 * change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param unsharedWrites
+	 *            true to write messages unshared.
+	 */
+	final public void setUnsharedWrites(boolean unsharedWrites) {
+		this.unsharedWrites = unsharedWrites;
+	}
+
+	/**
+	 * Returns the number of messages written to the legacy object stream
+	 * since it was last reset. Always zero when a codec is in use.
+	 * 
+	 * @return the number of messages retained by the stream.
+	 */
+	final public int getStreamRetainedMessages() {
+		BoundedObjectOutputStream output = this.output;
+		return output == null ? 0 : output.getRetainedMessages();
+	}
+
+	/**
+	 * Selects whether the thread reading messages from the server is a
+	 * virtual thread, which makes many clients in one process cheap. The
+	 * change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param virtualThread
+	 *            true to read on a virtual thread.
+	 */
+	final public void setVirtualThread(boolean virtualThread) {
+		this.virtualThread = virtualThread;
+	}
+
+	/**
+	 * Sets the number of messages that may wait to be written by
+	 * <code>sendToServerAsync</code>. The default is 1024. Takes effect
+	 * immediately.
+	 * 
+	 * @param limit
+	 *            the number of queued messages.
+	 */
+	final public void setOutboundQueueLimit(int limit) {
+		synchronized (outboundQueue) {
+			this.outboundQueueLimit = Math.max(1, limit);
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written by the writer
+	 * thread.
+	 * 
+	 * @return the number of queued messages.
+	 */
+	final public int getOutboundQueueSize() {
+		synchronized (outboundQueue) {
+			return outboundQueue.size();
+		}
+	}
+
+	/**
+	 * Returns true if <code>sendToServerAsync</code> accepts messages, false
+	 * from the moment the outbound queue fills up until the writer thread
+	 * has taken the queued messages.
+	 * 
+	 * @return true if the outbound queue has room.
+	 */
+	final public boolean isWritable() {
+		synchronized (outboundQueue) {
+			return writable;
+		}
+	}
+
+	/**
+	 * Sets how the client reconnects when its connection to the server is
+	 * lost. With no policy, the default, the client stays disconnected after
+	 * calling <code>connectionException</code>. Closing the connection
+	 * stops any attempt to reconnect.
+	 * 
+	 * @param policy
+	 *            the delays and number of attempts, or null not to reconnect.
+	 */
+	final public void setReconnectPolicy(ReconnectPolicy policy) {
+		this.reconnectPolicy = policy;
+	}
+
+	/**
+	 * Sets how long the server may be silent before the client pings it,
+	 * to learn whether it is still there. Only applies to connections
+	 * using a codec, and takes effect at the next call to
+	 * openConnection(). Set to 0 by default: the server is not pinged.
+	 * 
+	 * @param millis
+	 *            the interval, in milliseconds, 0 not to ping.
+	 */
+	final public void setHeartbeatInterval(long millis) {
+		this.heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Sets how long the server may be silent, sending neither messages nor
+	 * answers to pings, before the client closes the connection. The
+	 * connection is then lost as if it had failed: a
+	 * <code>SocketTimeoutException</code> is reported to
+	 * <code>connectionException</code> and the reconnect policy, if any,
+	 * applies. Should be a few heartbeat intervals. Only applies to
+	 * connections using a codec, and takes effect at the next call to
+	 * openConnection(). Set to 0 by default: no limit.
+	 * 
+	 * @param millis
+	 *            the timeout, in milliseconds, 0 for no limit.
+	 */
+	final public void setIdleTimeout(long millis) {
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Returns how the client reconnects when its connection is lost.
+	 * 
+	 * @return the reconnect policy, or null if the client does not reconnect.
+	 */
+	final public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
 	/**
 	 * returns the client's description.
 	 * 
@@ -218,7 +950,12 @@ public abstract class AbstractClient implements Runnable {
 	 * <code>handleMessageFromServer()</code>. Not to be explicitly called.
 	 */
 	final public void run() {
-		connectionEstablished();
+		if (reconnected) {
+			reconnected = false;
+			connectionReestablished();
+		} else {
+			connectionEstablished();
+		}
 
 		// The message from the server
 		Object msg;
@@ -230,7 +967,18 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				if (frameInput != null) {
+					int length = frameInput.readInt();
+					lastReceived = System.nanoTime();
+					if (Framing.isControl(length)) {
+						if (length == Framing.PING)
+							queueControl(Framing.PONG);
+						continue;
+					}
+					msg = Framing.readPayload(frameInput, length, connectionCodec);
+				} else {
+					msg = input.readObject();
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -243,13 +991,76 @@ public abstract class AbstractClient implements Runnable {
 				} catch (Exception ex) {
 				}
 
-				connectionException(exception);
+				// A connection closed for being idle reports why
+				SocketTimeoutException idle = idleException;
+				connectionException(idle != null ? idle : exception);
+
+				ReconnectPolicy policy = reconnectPolicy;
+				if (policy != null) {
+					clientReader = null;
+					reconnect(policy, exception);
+				}
 			}
 		} finally {
-			clientReader = null;
+			// Unless a reader for a new connection has taken over
+			if (clientReader == Thread.currentThread())
+				clientReader = null;
 		}
 	}
 
+	/**
+	 * Reconnects to the server after the connection was lost, on the thread
+	 * that was reading from it, waiting as the policy says before each
+	 * attempt. Gives up once the attempts are exhausted, or as soon as the
+	 * connection is closed or opened by another thread.
+	 * 
+	 * @param policy
+	 *            the reconnect policy.
+	 * @param exception
+	 *            why the connection was lost.
+	 */
+	private void reconnect(ReconnectPolicy policy, Exception exception) {
+		// A close from now on cancels the attempts, even one under way
+		int closes = closeRequests;
+
+		// A connection that stayed up long enough starts a new series of
+		// attempts; one dropped at once, such as by a server refusing the
+		// client, keeps backing off
+		if (System.nanoTime() - connectedAt >= policy.getMaxDelay() * 1000000L)
+			reconnectAttempts = 0;
+
+		reconnector = Thread.currentThread();
+		try {
+			while (policy.allows(++reconnectAttempts)) {
+				long delay = policy.delayBefore(reconnectAttempts);
+				reconnecting(reconnectAttempts, delay);
+
+				long deadline = System.nanoTime() + delay * 1000000L;
+				long remaining;
+				while (!readyToStop && (remaining = deadline - System.nanoTime()) > 0)
+					LockSupport.parkNanos(remaining);
+				if (readyToStop || isConnected())
+					return;
+
+				try {
+					reconnected = true;
+					openConnection(closes);
+					return;
+				} catch (IOException ex) {
+					reconnected = false;
+					exception = ex;
+				}
+				if (closeRequests != closes)
+					return;
+			}
+		} finally {
+			reconnector = null;
+		}
+
+		reconnectAttempts = 0;
+		reconnectFailed(exception);
+	}
+
 	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
 
 	/**
@@ -280,6 +1091,54 @@ public abstract class AbstractClient implements Runnable {
 	protected void connectionEstablished() {
 	}
 
+	/**
+	 * Hook method called after the client has reconnected by itself, instead
+	 * of <code>connectionEstablished</code>, before any message from the
+	 * server is handled. Subclasses may override it to restore their session
+	 * on the server, such as by logging in again. The default implementation
+	 * calls <code>connectionEstablished</code>.
+	 */
+	protected void connectionReestablished() {
+		connectionEstablished();
+	}
+
+	/**
+	 * Hook method called before each attempt to reconnect after the
+	 * connection was lost, on the thread that was reading from the server.
+	 * The default implementation does nothing.
+	 * 
+	 * @param attempt
+	 *            the number of the attempt, starting at 1.
+	 * @param delay
+	 *            how long the client waits before the attempt, in
+	 *            milliseconds.
+	 */
+	protected void reconnecting(int attempt, long delay) {
+	}
+
+	/**
+	 * Hook method called when the reconnect policy allows no more attempts.
+	 * The client then stays disconnected. The default implementation does
+	 * nothing.
+	 * 
+	 * @param exception
+	 *            why the last attempt failed.
+	 */
+	protected void reconnectFailed(Exception exception) {
+	}
+
+	/**
+	 * Hook method called when the outbound queue fills up, with false, and
+	 * when the writer thread has made room again, with true. It is called on
+	 * the thread that filled the queue or on the writer thread, and must not
+	 * block. The default implementation does nothing.
+	 * 
+	 * @param writable
+	 *            true if <code>sendToServerAsync</code> accepts messages again.
+	 */
+	protected void writabilityChanged(boolean writable) {
+	}
+
 	/**
 	 * Handles a message sent from the server to this client. This MUST be
 	 * implemented by subclasses, who should respond to messages.
@@ -298,6 +1157,10 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		TimingWheel.Timeout check = idleCheck;
+		if (check != null)
+			check.cancel();
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -310,6 +1173,12 @@ public abstract class AbstractClient implements Runnable {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame streams
+			if (frameOutput != null)
+				frameOutput.close();
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -317,7 +1186,101 @@ public abstract class AbstractClient implements Runnable {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
 			clientSocket = null;
+			failQueued(new SocketException("connection closed"));
+		}
+	}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * A message waiting for the writer thread.
+	 */
+	private static final class QueuedMessage {
+		/**
+		 * The frame of the message, or the message itself for the legacy
+		 * object stream.
+		 */
+		final Object item;
+
+		/**
+		 * Completed once the message is written.
+		 */
+		final CompletableFuture<Void> future;
+
+		QueuedMessage(Object item, CompletableFuture<Void> future) {
+			this.item = item;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Checks the liveness of the server on one connection, on the timing
+	 * wheel: pings the server once it has been silent for the heartbeat
+	 * interval, and closes the socket once it has been silent for the idle
+	 * timeout, which makes the reader thread lose the connection.
+	 */
+	private final class IdleCheck implements Runnable {
+		/**
+		 * The socket of the connection checked. The check stops once the
+		 * client has closed it or moved to another connection.
+		 */
+		private final Socket socket;
+
+		private final long heartbeat;
+		private final long timeout;
+
+		IdleCheck(Socket socket, long heartbeat, long timeout) {
+			this.socket = socket;
+			this.heartbeat = heartbeat;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Schedules the first check.
+		 */
+		void start() {
+			schedule(0);
+		}
+
+		public void run() {
+			if (clientSocket != socket)
+				return;
+
+			long idle = System.nanoTime() - lastReceived;
+			if (timeout > 0 && idle >= timeout) {
+				idleException = new SocketTimeoutException("no data from server for "
+						+ TimeUnit.NANOSECONDS.toMillis(idle) + " ms");
+				try {
+					socket.close();
+				} catch (IOException ex) {
+				}
+				return;
+			}
+
+			if (heartbeat > 0 && idle >= heartbeat)
+				queueControl(Framing.PING);
+			schedule(idle);
+		}
+
+		/**
+		 * Schedules the next check, given how long the server has been
+		 * silent.
+		 */
+		private void schedule(long idle) {
+			long next = Long.MAX_VALUE;
+			if (heartbeat > 0)
+				next = idle < heartbeat ? heartbeat - idle : heartbeat;
+			if (timeout > 0)
+				next = Math.min(next, timeout - idle);
+
+			TimingWheel.Timeout check = TimingWheel.getShared().schedule(this, next, TimeUnit.NANOSECONDS);
+			idleCheck = check;
+			// The connection may have been closed before the check was recorded
+			if (clientSocket != socket)
+				check.cancel();
 		}
 	}
 }
@@ -0,0 +1,140 @@
+package ocsf.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A <code> ReconnectPolicy </code> tells an <code> AbstractClient </code>
+ * that lost its connection to the server how long to wait before each
+ * attempt to connect again, and how many attempts to make before giving up.
+ * <p>
+ * The delays grow exponentially, from the initial delay up to the maximum
+ * delay, and are jittered: the delay before an attempt is drawn at random
+ * between zero and the exponential bound. When a server restarts, the
+ * clients it dropped all lose their connection at the same moment; with
+ * jitter, their attempts to reconnect are spread over the delay instead of
+ * reaching the server at once.
+ * <p>
+ * A policy is immutable and may be shared by any number of clients.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setReconnectPolicy(ReconnectPolicy)
+ */
+public final class ReconnectPolicy {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The bound of the delay before the first attempt, in milliseconds.
+	 */
+	private final long initialDelay;
+
+	/**
+	 * The bound of the delay before any attempt, in milliseconds.
+	 */
+	private final long maxDelay;
+
+	/**
+	 * The number of attempts made before giving up, zero for no limit.
+	 */
+	private final int maxAttempts;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a reconnect policy.
+	 *
+	 * @param initialDelay
+	 *            the bound of the delay before the first attempt, in
+	 *            milliseconds. Each later attempt doubles it.
+	 * @param maxDelay
+	 *            the bound of the delay before any attempt, in milliseconds.
+	 * @param maxAttempts
+	 *            the number of attempts made before giving up, zero to try
+	 *            forever.
+	 * @exception IllegalArgumentException
+	 *                if a delay is not positive, if the maximum delay is less
+	 *                than the initial delay or if the number of attempts is
+	 *                negative.
+	 */
+	public ReconnectPolicy(long initialDelay, long maxDelay, int maxAttempts) {
+		if (initialDelay <= 0 || maxDelay < initialDelay)
+			throw new IllegalArgumentException("invalid delays: " + initialDelay + ", " + maxDelay);
+		if (maxAttempts < 0)
+			throw new IllegalArgumentException("invalid number of attempts: " + maxAttempts);
+
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns true if an attempt may be made.
+	 *
+	 * @param attempt
+	 *            the number of the attempt, starting at 1.
+	 * @return true unless the number of attempts is exhausted.
+	 */
+	public boolean allows(int attempt) {
+		return maxAttempts == 0 || attempt <= maxAttempts;
+	}
+
+	/**
+	 * Returns a delay to wait before an attempt: a random value between
+	 * zero and the initial delay doubled for each earlier attempt, at most
+	 * the maximum delay. Every call draws a new value.
+	 *
+	 * @param attempt
+	 *            the number of the attempt, starting at 1.
+	 * @return the delay, in milliseconds.
+	 */
+	public long delayBefore(int attempt) {
+		long bound = initialDelay;
+		for (int i = 1; i < attempt && bound < maxDelay; i++)
+			bound *= 2;
+		bound = Math.min(bound, maxDelay);
+
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	/**
+	 * Returns the bound of the delay before the first attempt.
+	 *
+	 * @return the initial delay, in milliseconds.
+	 */
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	/**
+	 * Returns the bound of the delay before any attempt.
+	 *
+	 * @return the maximum delay, in milliseconds.
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Returns the number of attempts made before giving up.
+	 *
+	 * @return the number of attempts, zero for no limit.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns a description of the policy.
+	 *
+	 * @return the delays and number of attempts.
+	 */
+	public String toString() {
+		return "ReconnectPolicy[" + initialDelay + "-" + maxDelay + " ms, "
+				+ (maxAttempts == 0 ? "unlimited" : String.valueOf(maxAttempts)) + " attempts]";
+	}
+}
+// End of ReconnectPolicy class
@@ -0,0 +1,172 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * An object stream for long-lived connections using the legacy object
+ * stream protocol. A plain <code> ObjectOutputStream </code> keeps a
+ * reference to every object it has written, so that it can write a back
+ * reference if the object is written again; on a connection that stays open
+ * for days, that table grows without bound. This stream resets itself once
+ * a given number of messages or bytes has been written since the last reset,
+ * which releases those references on both ends of the connection. It can
+ * also write every message unshared, so that messages are not retained at
+ * all between resets.<p>
+ *
+ * The number of messages and bytes written since the last reset tell how
+ * much the stream is currently retaining.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public class BoundedObjectOutputStream extends ObjectOutputStream
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Counts the bytes written to the underlying stream.
+	 */
+	private final CountingOutputStream counter;
+
+	/**
+	 * The number of messages after which the stream is reset.
+	 */
+	private final int resetMessages;
+
+	/**
+	 * The number of bytes after which the stream is reset.
+	 */
+	private final long resetBytes;
+
+	/**
+	 * Indicates if messages are written unshared.
+	 */
+	private final boolean unshared;
+
+	/**
+	 * The number of messages written since the last reset.
+	 */
+	private volatile int retainedMessages = 0;
+
+	/**
+	 * The byte count of the underlying stream at the last reset.
+	 */
+	private volatile long bytesAtReset = 0;
+
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates a stream writing the serialization stream header to an
+	 * output stream.
+	 *
+	 * @param output the stream to write to.
+	 * @param resetMessages the number of messages after which the stream
+	 * is reset.
+	 * @param resetBytes the number of bytes after which the stream is
+	 * reset.
+	 * @param unshared true to write every message unshared.
+	 * @exception IOException if the header cannot be written.
+	 */
+	public BoundedObjectOutputStream(OutputStream output, int resetMessages,
+		long resetBytes, boolean unshared) throws IOException
+	{
+		this(new CountingOutputStream(output), resetMessages, resetBytes, unshared);
+	}
+
+	private BoundedObjectOutputStream(CountingOutputStream counter,
+		int resetMessages, long resetBytes, boolean unshared) throws IOException
+	{
+		super(counter);
+		this.counter = counter;
+		this.resetMessages = resetMessages;
+		this.resetBytes = resetBytes;
+		this.unshared = unshared;
+	}
+
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Writes a message, then resets the stream if it has reached one of
+	 * its limits.
+	 *
+	 * @param msg the message.
+	 * @exception IOException if an I/O error occurs.
+	 */
+	public void writeMessage(Object msg) throws IOException
+	{
+		if (unshared)
+			writeUnshared(msg);
+		else
+			writeObject(msg);
+
+		retainedMessages++;
+		if (retainedMessages >= resetMessages
+			|| counter.count - bytesAtReset >= resetBytes)
+		{
+			reset();
+		}
+	}
+
+	/**
+	 * Resets the stream, forgetting every object written so far.
+	 *
+	 * @exception IOException if an I/O error occurs.
+	 */
+	public void reset() throws IOException
+	{
+		super.reset();
+		retainedMessages = 0;
+		bytesAtReset = counter.count;
+	}
+
+	/**
+	 * Returns the number of messages written since the last reset.
+	 *
+	 * @return the number of retained messages.
+	 */
+	public int getRetainedMessages()
+	{
+		return retainedMessages;
+	}
+
+	/**
+	 * Returns the number of bytes written since the last reset, a measure
+	 * of the memory held by the references the stream keeps.
+	 *
+	 * @return the number of bytes written since the last reset.
+	 */
+	public long getRetainedBytes()
+	{
+		return counter.count - bytesAtReset;
+	}
+
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Passes bytes through, counting them.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream
+	{
+		private volatile long count = 0;
+
+		CountingOutputStream(OutputStream output)
+		{
+			super(output);
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
+// End of BoundedObjectOutputStream class
@@ -0,0 +1,102 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The default codec. A payload is a one byte tag followed by the message:
+ * strings, which are almost all the messages of a chat, are sent as plain
+ * UTF-8 and byte arrays as they are. Any other object falls back to Java
+ * serialization, so that nothing that worked with the legacy protocol is
+ * refused.<p>
+ *
+ * A short chat line therefore costs its own length plus five bytes on the
+ * wire, and neither side creates an object stream to handle it.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.common.SerializationCodec
+ */
+public final class CompactCodec implements MessageCodec
+{
+	/**
+	 * The identifier of this codec.
+	 */
+	public static final int ID = 1;
+
+	/**
+	 * Tag of a null message.
+	 */
+	private static final int TAG_NULL = 0;
+
+	/**
+	 * Tag of a string, followed by its UTF-8 bytes.
+	 */
+	private static final int TAG_STRING = 1;
+
+	/**
+	 * Tag of a byte array, followed by its bytes.
+	 */
+	private static final int TAG_BYTES = 2;
+
+	/**
+	 * Tag of any other object, followed by its Java serialization.
+	 */
+	private static final int TAG_OBJECT = 3;
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public void encode(Object msg, OutputStream output) throws IOException
+	{
+		if (msg == null)
+		{
+			output.write(TAG_NULL);
+		}
+		else if (msg instanceof String)
+		{
+			output.write(TAG_STRING);
+			output.write(((String)msg).getBytes(StandardCharsets.UTF_8));
+		}
+		else if (msg instanceof byte[])
+		{
+			output.write(TAG_BYTES);
+			output.write((byte[])msg);
+		}
+		else
+		{
+			output.write(TAG_OBJECT);
+			ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+			objectOutput.writeObject(msg);
+			objectOutput.flush();
+		}
+	}
+
+	public Object decode(byte[] buffer, int offset, int length)
+		throws IOException, ClassNotFoundException
+	{
+		if (length < 1)
+			throw new StreamCorruptedException("empty payload");
+
+		switch (buffer[offset])
+		{
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return new String(buffer, offset + 1, length - 1, StandardCharsets.UTF_8);
+			case TAG_BYTES:
+				byte[] bytes = new byte[length - 1];
+				System.arraycopy(buffer, offset + 1, bytes, 0, bytes.length);
+				return bytes;
+			case TAG_OBJECT:
+				ObjectInputStream objectInput = new ObjectInputStream(
+					new ByteArrayInputStream(buffer, offset + 1, length - 1));
+				return objectInput.readObject();
+			default:
+				throw new StreamCorruptedException("unknown tag " + buffer[offset]);
+		}
+	}
+}
+// End of CompactCodec class
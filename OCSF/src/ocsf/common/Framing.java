@@ -0,0 +1,251 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> Framing </code> class defines the length-prefixed wire format
+ * used by connections that do not speak the legacy continuous
+ * <code> ObjectOutputStream </code> protocol. A framed connection starts
+ * with the four byte <code> MAGIC </code> value sent by the client, followed
+ * by one byte identifying the <code> MessageCodec </code> it selected. After
+ * that every message, in both directions, is a four byte big-endian length
+ * followed by that many bytes of payload produced by the codec.<p>
+ *
+ * A negative length that no message can have marks a control frame, which
+ * has no payload: a <code> PING </code> frame asks the peer to answer with a
+ * <code> PONG </code> frame. Either side may ping the other to learn that
+ * it is still there; the framework answers pings itself, and control
+ * frames never reach the application.<p>
+ *
+ * Because each frame is self-contained it can be decoded as soon as its
+ * last byte arrives, which is what allows the selector based server engine
+ * to serve many connections from a few threads.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.common.MessageCodec
+ * @see ocsf.server.AbstractServer#setSelectorThreads(int)
+ * @see ocsf.client.AbstractClient#setCodec(MessageCodec)
+ */
+public final class Framing
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The value sent by a client to announce the framed protocol ("OCSF").
+	 * A legacy client instead starts with the serialization stream magic
+	 * 0xACED, so the two can be told apart from the first bytes received.
+	 */
+	public static final int MAGIC = 0x4F435346;
+
+	/**
+	 * The number of bytes sent by a client to open a framed connection:
+	 * the magic value and the codec identifier.
+	 */
+	public static final int HANDSHAKE_LENGTH = 5;
+
+	/**
+	 * The first two bytes of a legacy Java serialization stream.
+	 */
+	public static final int STREAM_MAGIC = 0xACED;
+
+	/**
+	 * The largest payload accepted in a single frame. Anything longer is
+	 * treated as a corrupted stream rather than allocated.
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * The length field of a ping frame, to be answered with a pong frame.
+	 */
+	public static final int PING = -1;
+
+	/**
+	 * The length field of a pong frame, the answer to a ping frame.
+	 */
+	public static final int PONG = -2;
+
+	/**
+	 * The codecs known to this process, indexed by identifier.
+	 */
+	private static final MessageCodec[] codecs = new MessageCodec[256];
+
+	static
+	{
+		registerCodec(new SerializationCodec());
+		registerCodec(new CompactCodec());
+	}
+
+	// CONSTRUCTORS *****************************************************
+
+	private Framing() {}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Makes a codec available to the connections of this process. A
+	 * client may only select a codec that is registered on the server.
+	 *
+	 * @param codec the codec to register.
+	 * @exception IllegalArgumentException if the identifier of the codec
+	 * is out of range or already used by another codec.
+	 */
+	public static synchronized void registerCodec(MessageCodec codec)
+	{
+		int id = codec.getId();
+		if (id < 0 || id >= codecs.length)
+			throw new IllegalArgumentException("codec id out of range: " + id);
+		if (codecs[id] != null && codecs[id].getClass() != codec.getClass())
+			throw new IllegalArgumentException("codec id already used: " + id);
+
+		codecs[id] = codec;
+	}
+
+	/**
+	 * Returns the codec registered with an identifier.
+	 *
+	 * @param id the identifier sent by the client.
+	 * @return the codec.
+	 * @exception StreamCorruptedException if no codec has this identifier.
+	 */
+	public static synchronized MessageCodec getCodec(int id)
+		throws StreamCorruptedException
+	{
+		MessageCodec codec = id >= 0 && id < codecs.length ? codecs[id] : null;
+		if (codec == null)
+			throw new StreamCorruptedException("unknown codec " + id);
+
+		return codec;
+	}
+
+	/**
+	 * Returns the codec clients should use with servers that know codecs:
+	 * the <code> CompactCodec </code>.
+	 *
+	 * @return the default codec.
+	 */
+	public static MessageCodec getDefaultCodec()
+	{
+		try
+		{
+			return getCodec(CompactCodec.ID);
+		}
+		catch (StreamCorruptedException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Encodes an object as a complete frame, length prefix included.
+	 *
+	 * @param msg the object to encode.
+	 * @param codec the codec of the connection.
+	 * @return the bytes of the frame.
+	 * @exception IOException if the object cannot be encoded.
+	 */
+	public static byte[] encode(Object msg, MessageCodec codec) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		bytes.write(new byte[4]);
+		codec.encode(msg, bytes);
+
+		byte[] frame = bytes.toByteArray();
+		int length = frame.length - 4;
+		checkLength(length);
+		frame[0] = (byte)(length >>> 24);
+		frame[1] = (byte)(length >>> 16);
+		frame[2] = (byte)(length >>> 8);
+		frame[3] = (byte)length;
+		return frame;
+	}
+
+	/**
+	 * Writes the handshake opening a framed connection.
+	 *
+	 * @param output the stream to the server.
+	 * @param codec the codec selected for the connection.
+	 * @exception IOException if an I/O error occurs.
+	 */
+	public static void writeHandshake(DataOutputStream output, MessageCodec codec)
+		throws IOException
+	{
+		output.writeInt(MAGIC);
+		output.writeByte(codec.getId());
+	}
+
+	/**
+	 * Reads one complete frame from a blocking stream.
+	 *
+	 * @param input the stream to read from.
+	 * @param codec the codec of the connection.
+	 * @return the decoded object.
+	 * @exception IOException if an I/O error occurs or the frame is
+	 * corrupted.
+	 * @exception ClassNotFoundException if the class of the object
+	 * cannot be found.
+	 */
+	public static Object readFrame(DataInputStream input, MessageCodec codec)
+		throws IOException, ClassNotFoundException
+	{
+		return readPayload(input, input.readInt(), codec);
+	}
+
+	/**
+	 * Reads the payload of a frame whose length was already read from a
+	 * blocking stream.
+	 *
+	 * @param input the stream to read from.
+	 * @param length the length read.
+	 * @param codec the codec of the connection.
+	 * @return the decoded object.
+	 * @exception IOException if an I/O error occurs or the frame is
+	 * corrupted.
+	 * @exception ClassNotFoundException if the class of the object
+	 * cannot be found.
+	 */
+	public static Object readPayload(DataInputStream input, int length, MessageCodec codec)
+		throws IOException, ClassNotFoundException
+	{
+		checkLength(length);
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return codec.decode(payload, 0, length);
+	}
+
+	/**
+	 * Tells if a length read from the wire is that of a control frame.
+	 *
+	 * @param length the length read.
+	 * @return true for a ping or pong frame.
+	 */
+	public static boolean isControl(int length)
+	{
+		return length == PING || length == PONG;
+	}
+
+	/**
+	 * Returns the bytes of a control frame.
+	 *
+	 * @param type <code> PING </code> or <code> PONG </code>.
+	 * @return the frame.
+	 */
+	public static byte[] controlFrame(int type)
+	{
+		return new byte[] {(byte)(type >>> 24), (byte)(type >>> 16), (byte)(type >>> 8), (byte)type};
+	}
+
+	/**
+	 * Checks that a frame length read from the wire is acceptable.
+	 *
+	 * @param length the length to check.
+	 * @exception StreamCorruptedException if the length is negative or
+	 * larger than <code> MAX_FRAME_LENGTH </code>.
+	 */
+	public static void checkLength(int length) throws StreamCorruptedException
+	{
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+	}
+}
+// End of Framing class
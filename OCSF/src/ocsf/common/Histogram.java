@@ -0,0 +1,185 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code> Histogram </code> class counts non-negative values, such as
+ * latencies in nanoseconds, so that their percentiles can be reported.
+ * Values are counted in buckets whose width grows with the value: every
+ * power of two is split into 32 buckets, so a reported percentile is
+ * within about 3% of the true value, whatever its magnitude, and the
+ * histogram has a fixed size.<p>
+ *
+ * Recording takes no lock and allocates nothing, so any number of threads
+ * may record into the same histogram while another reads it; the count
+ * and sum are striped, so that those threads do not all contend on them.
+ * A reading taken while values are recorded may miss the most recent
+ * ones.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public final class Histogram
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of bits of a value kept exactly within its power of two.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * The number of buckets per power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The number of buckets needed for every positive <code> long </code>.
+	 */
+	private static final int BUCKETS =
+		bucketOf(Long.MAX_VALUE) + 1;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of values counted in each bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * The number of values recorded.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * The sum of the values recorded.
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * The largest value recorded.
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 *
+	 * @param value the value to record.
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the number of values.
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Returns the largest value recorded, or zero.
+	 *
+	 * @return the largest value.
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the values recorded, or zero.
+	 *
+	 * @return the mean value.
+	 */
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double)sum.sum() / n;
+	}
+
+	/**
+	 * Returns the value below which a percentage of the recorded values
+	 * fall, rounded up to the end of its bucket.
+	 *
+	 * @param percentile the percentage, between 0 and 100.
+	 * @return the value at the percentile, or zero if no value was
+	 * recorded.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total);
+		rank = Math.max(1, rank);
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every value recorded.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the bucket counting a value. Values below twice the number
+	 * of buckets per power of two have a bucket each.
+	 */
+	private static int bucketOf(long value)
+	{
+		if (value < 2 * SUB_BUCKETS)
+			return (int)value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+
+	/**
+	 * Returns the largest value counted by a bucket.
+	 */
+	private static long highestValueOf(int bucket)
+	{
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
+// End of Histogram class
@@ -0,0 +1,55 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageCodec </code> turns the objects exchanged by a client and a
+ * server into the payload of a frame and back. The codec of a framed
+ * connection is chosen by the client, which sends its identifier right after
+ * the <code> Framing.MAGIC </code> value; the server then uses the same codec
+ * for that connection in both directions.<p>
+ *
+ * A codec must be stateless and safe to use from several threads, since one
+ * instance serves every connection that selected it. Codecs other than the
+ * built-in ones are made available to both sides with
+ * <code> Framing.registerCodec </code>.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.common.Framing
+ */
+public interface MessageCodec
+{
+	/**
+	 * Returns the identifier sent by the client to select this codec, in
+	 * the range 0 to 255. Identifiers below 16 are reserved for the
+	 * codecs of the framework.
+	 *
+	 * @return the identifier of the codec.
+	 */
+	int getId();
+
+	/**
+	 * Writes the payload representing a message.
+	 *
+	 * @param msg the message to encode.
+	 * @param output the stream receiving the payload.
+	 * @exception IOException if the message cannot be encoded.
+	 */
+	void encode(Object msg, OutputStream output) throws IOException;
+
+	/**
+	 * Reads a message from a payload.
+	 *
+	 * @param buffer the array holding the payload.
+	 * @param offset the position of the first payload byte.
+	 * @param length the payload length.
+	 * @return the decoded message.
+	 * @exception IOException if the payload is corrupted.
+	 * @exception ClassNotFoundException if the class of a decoded object
+	 * cannot be found.
+	 */
+	Object decode(byte[] buffer, int offset, int length)
+		throws IOException, ClassNotFoundException;
+}
+// End of MessageCodec interface
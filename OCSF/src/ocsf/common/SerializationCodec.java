@@ -0,0 +1,42 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A codec encoding every message with Java serialization, one independent
+ * serialization stream per frame. It accepts any serializable object, as
+ * the legacy object stream protocol does, but repeats the stream header and
+ * class descriptors in every frame.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.common.CompactCodec
+ */
+public final class SerializationCodec implements MessageCodec
+{
+	/**
+	 * The identifier of this codec.
+	 */
+	public static final int ID = 0;
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public void encode(Object msg, OutputStream output) throws IOException
+	{
+		ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+		objectOutput.writeObject(msg);
+		objectOutput.flush();
+	}
+
+	public Object decode(byte[] buffer, int offset, int length)
+		throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream objectInput = new ObjectInputStream(
+			new ByteArrayInputStream(buffer, offset, length));
+		return objectInput.readObject();
+	}
+}
+// End of SerializationCodec class
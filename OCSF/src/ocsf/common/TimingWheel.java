@@ -0,0 +1,319 @@
+package ocsf.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The <code> TimingWheel </code> class runs tasks after a delay, with the
+ * precision of a tick, on a single thread. It is how the framework watches
+ * the liveness of every connection without a timer per connection.<p>
+ *
+ * The wheel is an array of buckets, each a list of the tasks due within one
+ * tick. Scheduling a task only adds it to a queue, without locking; once
+ * per tick the thread of the wheel moves the newly scheduled tasks into the
+ * bucket of the tick they are due, and runs the tasks of the current
+ * bucket. A task due after more than one turn of the wheel waits in its
+ * bucket for the right number of turns. Scheduling, cancelling and expiring
+ * a task thus cost the same whatever the number of tasks, and a tick with
+ * no task due costs nearly nothing.<p>
+ *
+ * Tasks run on the thread of the wheel, one after the other, so they must
+ * be short and never block; a task that throws an exception does not stop
+ * the wheel.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setIdleTimeout(long)
+ * @see ocsf.client.AbstractClient#setIdleTimeout(long)
+ */
+public final class TimingWheel
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The wheel shared by the servers and clients of this process, with
+	 * ticks of a tenth of a second, created when first used.
+	 */
+	private static final class SharedWheel
+	{
+		static final TimingWheel wheel =
+			new TimingWheel("OCSF timing wheel", 100, TimeUnit.MILLISECONDS, 512);
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The duration of a tick, in nanoseconds.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * The first task of each bucket. Only the thread of the wheel uses
+	 * the buckets.
+	 */
+	private final Timeout[] buckets;
+
+	/**
+	 * The number of buckets less one, the buckets being a power of two.
+	 */
+	private final int mask;
+
+	/**
+	 * The tasks scheduled since the last tick.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * When the wheel started, as given by <code>System.nanoTime</code>.
+	 * Deadlines are counted from then.
+	 */
+	private final long startTime;
+
+	/**
+	 * The thread turning the wheel.
+	 */
+	private final Thread worker;
+
+	private volatile boolean stopped = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel and starts its thread, a daemon thread.
+	 *
+	 * @param name the name of the thread.
+	 * @param tick the duration of a tick.
+	 * @param unit the unit of the duration.
+	 * @param ticksPerWheel the number of buckets, rounded up to a power
+	 * of two.
+	 * @exception IllegalArgumentException if the tick or the number of
+	 * buckets is not positive.
+	 */
+	public TimingWheel(String name, long tick, TimeUnit unit, int ticksPerWheel)
+	{
+		if (tick <= 0 || ticksPerWheel <= 0 || ticksPerWheel > 1 << 30)
+			throw new IllegalArgumentException("invalid wheel: " + tick + " " + unit + ", " + ticksPerWheel);
+
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel)
+			size <<= 1;
+
+		this.tickNanos = unit.toNanos(tick);
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					turn();
+				}
+			}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the wheel shared by the servers and clients of this process.
+	 *
+	 * @return the shared wheel.
+	 */
+	public static TimingWheel getShared()
+	{
+		return SharedWheel.wheel;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Schedules a task to run once a delay has elapsed, at the end of the
+	 * tick within which it elapses.
+	 *
+	 * @param task the task.
+	 * @param delay the delay; zero or less runs the task at the next tick.
+	 * @param unit the unit of the delay.
+	 * @return the handle to cancel the task.
+	 * @exception IllegalStateException if the wheel is stopped.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		if (stopped)
+			throw new IllegalStateException("timing wheel stopped");
+
+		long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+		Timeout timeout = new Timeout(task, Math.max(0, deadline));
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the thread of the wheel. The tasks still scheduled never run.
+	 */
+	public void stop()
+	{
+		stopped = true;
+		LockSupport.unpark(worker);
+	}
+
+	/**
+	 * Returns the duration of a tick.
+	 *
+	 * @return the tick, in nanoseconds.
+	 */
+	public long getTickNanos()
+	{
+		return tickNanos;
+	}
+
+	/**
+	 * Turns the wheel, one tick at a time, until it is stopped. A tick
+	 * late because tasks took long is caught up at once.
+	 */
+	private void turn()
+	{
+		long tick = 0;
+		while (!stopped)
+		{
+			long end = (tick + 1) * tickNanos;
+			long remaining;
+			while (!stopped && (remaining = end - (System.nanoTime() - startTime)) > 0)
+				LockSupport.parkNanos(this, remaining);
+			if (stopped)
+				return;
+
+			placeScheduled(tick);
+			expire(tick);
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves the tasks scheduled since the last tick into their buckets.
+	 * A task already due goes into the bucket of the current tick.
+	 */
+	private void placeScheduled(long tick)
+	{
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null)
+		{
+			if (timeout.isCancelled())
+				continue;
+
+			long due = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (due - tick) / buckets.length;
+			int bucket = (int)(due & mask);
+			timeout.next = buckets[bucket];
+			buckets[bucket] = timeout;
+		}
+	}
+
+	/**
+	 * Runs the tasks of the current bucket that are due this turn, and
+	 * drops the cancelled ones.
+	 */
+	private void expire(long tick)
+	{
+		int bucket = (int)(tick & mask);
+		Timeout previous = null;
+		Timeout timeout = buckets[bucket];
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			if (timeout.isCancelled() || timeout.rounds <= 0)
+			{
+				if (previous == null)
+					buckets[bucket] = next;
+				else
+					previous.next = next;
+				timeout.next = null;
+
+				if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+				{
+					try
+					{
+						timeout.task.run();
+					}
+					catch (Throwable ex)
+					{
+						// A failing task must not stop the wheel
+					}
+				}
+			}
+			else
+			{
+				timeout.rounds--;
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * A task scheduled on a wheel, which may be cancelled until it runs.
+	 */
+	public static final class Timeout
+	{
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+
+		/**
+		 * When the task is due, in nanoseconds since the wheel started.
+		 */
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		/**
+		 * The turns of the wheel left before the task is due, and the next
+		 * task of the bucket. Only the thread of the wheel uses them.
+		 */
+		private long rounds;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, unless it already ran.
+		 *
+		 * @return true if the task will not run.
+		 */
+		public boolean cancel()
+		{
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		/**
+		 * Tells if the task was cancelled.
+		 *
+		 * @return true if the task was cancelled before it ran.
+		 */
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Tells if the task ran.
+		 *
+		 * @return true once the task was started.
+		 */
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+	}
+}
+// End of TimingWheel class
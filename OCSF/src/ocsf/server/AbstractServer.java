@@ -5,6 +5,12 @@ package ocsf.server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.BoundedObjectOutputStream;
 
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
@@ -14,6 +20,66 @@ import java.io.*;
 * server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
+* Alternatively, when <code> setSelectorThreads </code> is given a positive
+* count, connections are served by that many event loops built on a
+* <code> Selector </code>, so that a large number of mostly idle clients
+* does not cost one thread each. The hook methods are called in the same
+* way with either engine.<p>
+*
+* With <code> setVirtualThreads(true) </code> the blocking read loop of each
+* connection runs on a virtual thread instead, keeping the object stream
+* protocol while making a connection about as cheap as a selector
+* registration. Uncaught exceptions are still routed to
+* <code> clientException </code> and the connections are still returned by
+* <code> getClientConnections </code>.<p>
+*
+* Connections are accepted by a thread waiting on a <code> Selector </code>,
+* which <code> stopListening </code> wakes up at once. A client is only
+* reported to <code> clientConnected </code> once it has announced its
+* protocol, which is read by the thread of the connection, so that a slow
+* or broken client does not hold up the others. With
+* <code> setAcceptorThreads </code>, several threads accept connections, each
+* on its own socket bound to the same port where the platform supports
+* <code> SO_REUSEPORT </code>, so that a storm of connections is spread
+* among them.<p>
+*
+* Messages from one client are always handled in the order they were
+* received. By default, as in earlier versions of the framework, one
+* message is handled at a time server-wide. A subclass whose
+* <code> handleMessageFromClient </code> is thread safe may call
+* <code> setSerialDispatch(false) </code> to handle the messages of
+* different clients in parallel. With
+* <code> setDispatchThreads </code>, messages are handed off to a pool of
+* worker threads, so that slow handlers do not hold up the threads
+* reading from the clients.<p>
+*
+* With <code> setHeartbeatInterval </code>, a client using a codec that has
+* sent nothing for the interval is pinged, and answers with a pong without
+* the hook methods seeing either. With <code> setIdleTimeout </code>, a
+* client that has sent nothing for the timeout is disconnected, counted
+* under <code> DisconnectReason.IDLE </code> and reported to
+* <code> clientException </code>. Together they evict peers that vanished
+* without closing their connection. Every connection is checked on a
+* single shared <code> TimingWheel </code> rather than with a timer of its
+* own.<p>
+*
+* With <code> setRateLimit </code>, every client may send at most so many
+* messages and bytes per second, with bursts of up to a second's worth.
+* Each connection measures its client with token buckets of its own, used
+* only by the thread reading from it, before a message is decoded, so that
+* one client flooding the server, whose messages may each be sent on to
+* every other client, cannot hold up the others. The
+* <code> RateLimitPolicy </code> decides whether a message over the limit
+* is delayed, discarded, handled anyway or costs the client its
+* connection; <code> clientRateLimited </code> is told.<p>
+*
+* The server keeps <code> ServerMetrics </code>, and every connection its
+* own <code> ConnectionMetrics </code>, counting connections, messages and
+* bytes and timing the handling and broadcasting of messages. They are
+* registered as MBeans while the server is open. Connections, messages,
+* broadcasts and stalled writes are also reported as JDK Flight Recorder
+* events, which cost nothing unless a recording is running.<p>
+*
 * Method <code> handleMessageFromClient </code> must be defined by
 * a concrete subclass. Several other hook methods may also be
 * overriden.<p>
@@ -35,9 +101,19 @@ public abstract class AbstractServer implements Runnable
 	// INSTANCE VARIABLES *********************************************
 
 	/**
-	 * The server socket: listens for clients who want to connect.
+	 * The server sockets: listen for clients who want to connect. There
+	 * is one socket per acceptor thread when they are bound with
+	 * <code> SO_REUSEPORT </code>, otherwise a single one they share.
+	 * Null once the server is closed, which the acceptor threads check
+	 * without taking the lock of the server.
 	 */
-	private ServerSocket serverSocket = null;
+	private volatile ServerSocketChannel[] serverChannels = null;
+
+	/**
+	 * The selectors the acceptor threads wait on for connections, one per
+	 * thread, while the server is listening.
+	 */
+	private volatile Selector[] acceptSelectors;
 
 	/**
 	 * The connection listener thread.
@@ -50,20 +126,17 @@ public abstract class AbstractServer implements Runnable
 	private int port;
 
 	/**
-	 * The server timeout while for accepting connections.
-	 * After timing out, the server will check to see if a command to
-	 * stop the server has been issued; it not it will resume accepting
-	 * connections.
-	 * Set to half a second by default.
+	 * The maximum queue length; i.e. the maximum number of clients that
+	 * can be waiting to connect.
+	 * Set to 128 by default.
 	 */
-	private int timeout = 500;
+	private int backlog = 128;
 
 	/**
-	 * The maximum queue length; i.e. the maximum number of clients that
-	 * can be waiting to connect.
-	 * Set to 10 by default.
+	 * The number of threads accepting connections.
+	 * Set to 1 by default.
 	 */
-	private int backlog = 10;
+	private int acceptorThreads = 1;
 
 	/**
 	 * The thread group associated with client threads. Each member of the
@@ -73,9 +146,154 @@ public abstract class AbstractServer implements Runnable
 
 	/**
 	 * Indicates if the listening thread is ready to stop.  Set to
-	 * false by default.
+	 * false by default. Read by every acceptor thread.
+	 */
+	private volatile boolean readyToStop = false;
+
+	/**
+	 * The number of event loops of the selector engine. Zero, the default,
+	 * gives every connection its own thread.
+	 */
+	private int selectorThreads = 0;
+
+	/**
+	 * The event loops serving the connections when the selector engine is
+	 * in use, null otherwise.
+	 */
+	private volatile SelectorLoop[] selectorLoops;
+
+	/**
+	 * The number of connections handed to the event loops, which picks
+	 * the loop that receives the next one.
+	 */
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Indicates if the read loop of each connection runs on a virtual
+	 * thread rather than a platform thread. Set to false by default.
+	 */
+	private boolean virtualThreads = false;
+
+	/**
+	 * The connected clients, however their connections are served.
+	 */
+	private final ClientRegistry clients = new ClientRegistry();
+
+	/**
+	 * The connections served by their own thread that are still waiting
+	 * for their client to announce its protocol. They are not clients yet,
+	 * but are closed with the server.
+	 */
+	private final Set<ConnectionToClient> handshaking =
+		ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Indicates if messages from all clients are handled one at a time
+	 * while holding the server's lock. Set to true by default.
+	 */
+	private volatile boolean serialDispatch = true;
+
+	/**
+	 * The number of worker threads handling messages. Zero, the default,
+	 * handles each message on the thread that read it.
+	 */
+	private int dispatchThreads = 0;
+
+	/**
+	 * The worker threads handling messages, null when messages are handled
+	 * on the thread that read them. Each worker handles the messages of a
+	 * fixed subset of the clients, so that the messages of a client are
+	 * handled in order.
+	 */
+	private volatile ExecutorService[] dispatchLanes;
+
+	/**
+	 * The maximum number of messages waiting to be written to each client.
+	 * Set to 1024 by default.
+	 */
+	private volatile int outboundQueueLimit = 1024;
+
+	/**
+	 * What happens to a message for a client whose outbound queue is full.
+	 * Set to <code>DISCONNECT</code> by default.
+	 */
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+
+	/**
+	 * How many messages, and how many bytes of messages, each client may
+	 * send per second. Set to 0 by default: no limit.
+	 */
+	private volatile double messageRate = 0;
+	private volatile double byteRate = 0;
+
+	/**
+	 * What happens to a message that takes its client over the rate
+	 * limit. Set to <code>DELAY</code> by default.
+	 */
+	private volatile RateLimitPolicy rateLimitPolicy = RateLimitPolicy.DELAY;
+
+	/**
+	 * Runs the threads writing queued messages to clients served by their
+	 * own thread. A writer only exists while a client has messages queued,
+	 * and may block on that client's socket without affecting the others.
+	 */
+	private final ExecutorService outboundWriters =
+		Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("OCSF writer ", 0).factory());
+
+	/**
+	 * The number of messages after which the object stream of a legacy
+	 * client is reset. Set to 1024 by default.
+	 */
+	private volatile int streamResetMessages = 1024;
+
+	/**
+	 * The number of bytes after which the object stream of a legacy
+	 * client is reset. Set to one megabyte by default.
+	 */
+	private volatile long streamResetBytes = 1024 * 1024;
+
+	/**
+	 * Indicates if messages to legacy clients are written unshared. Set
+	 * to false by default.
+	 */
+	private volatile boolean unsharedWrites = false;
+
+	/**
+	 * The number of bytes written to a client that are buffered before
+	 * they are flushed to the socket. Set to 8192 by default.
+	 */
+	private volatile int flushBytes = 8192;
+
+	/**
+	 * How long, in nanoseconds, buffered bytes may wait for more messages
+	 * before they are flushed. Set to 0 by default: bytes are flushed as
+	 * soon as no more messages are queued.
+	 */
+	private volatile long flushDelay = 0;
+
+	/**
+	 * How long, in nanoseconds, a client may be silent before it is
+	 * pinged. Set to 0 by default: clients are not pinged.
+	 */
+	private volatile long heartbeatInterval = 0;
+
+	/**
+	 * How long, in nanoseconds, a client may be silent before it is
+	 * disconnected. Set to 0 by default: clients may stay silent forever.
+	 */
+	private volatile long idleTimeout = 0;
+
+	/**
+	 * What the server has been doing.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics(clients);
+
+	/**
+	 * Indicates if the metrics of every client are registered as an MBean.
+	 * Set to false by default.
 	 */
-	private boolean readyToStop = false;
+	private volatile boolean connectionMBeans = false;
 
 
 	// CONSTRUCTOR ******************************************************
@@ -97,7 +315,7 @@ public abstract class AbstractServer implements Runnable
 				public void uncaughtException(
 					Thread thread, Throwable exception)
 				{
-					clientException((ConnectionToClient)thread, exception);
+					((ConnectionToClient)thread).readLoopFailed(exception);
 				}
 			};
 	}
@@ -113,16 +331,34 @@ public abstract class AbstractServer implements Runnable
 	 * @exception IOException if an I/O error occurs
 	 * when creating the server socket.
 	 */
-	final public void listen() throws IOException
+	final synchronized public void listen() throws IOException
 	{
 		if (!isListening())
 		{
-			if (serverSocket == null)
+			if (serverChannels == null)
 			{
-				serverSocket = new ServerSocket(getPort(), backlog);
+				openServerChannels();
+				try
+				{
+					openDispatchLanes();
+					if (selectorThreads > 0)
+						openSelectorEngine();
+				}
+				catch (IOException ex)
+				{
+					try
+					{
+						closeServerChannels(serverChannels);
+					}
+					catch (IOException exc) {}
+					serverChannels = null;
+					closeDispatchLanes();
+					throw ex;
+				}
+				metrics.publish(serverChannels[0].socket().getLocalPort());
 			}
 
-			serverSocket.setSoTimeout(timeout);
+			acceptSelectors = openAcceptSelectors(serverChannels);
 			readyToStop = false;
 			connectionListener = new Thread(this);
 			connectionListener.start();
@@ -130,11 +366,19 @@ public abstract class AbstractServer implements Runnable
 	}
 
 	/**
-	 * Causes the server to stop accepting new connections.
+	 * Causes the server to stop accepting new connections. The acceptor
+	 * threads are woken up, so the server stops at once.
 	 */
 	final public void stopListening()
 	{
 		readyToStop = true;
+
+		Selector[] selectors = acceptSelectors;
+		if (selectors != null)
+		{
+			for (int i=0; i<selectors.length; i++)
+				selectors[i].wakeup();
+		}
 	}
 
 	/**
@@ -151,27 +395,35 @@ public abstract class AbstractServer implements Runnable
 	 */
 	final synchronized public void close() throws IOException
 	{
-		if (serverSocket == null)
+		ServerSocketChannel[] channels = serverChannels;
+		if (channels == null)
 			return;
+
+		// Acceptor threads close the connections they accept from now on
+		serverChannels = null;
 		stopListening();
 		try
 		{
-			serverSocket.close();
+			closeServerChannels(channels);
 		}
 		finally
 		{
-			// Close the client sockets of the already connected clients
-			Thread[] clientThreadList = getClientConnections();
-			for (int i=0; i<clientThreadList.length; i++)
+			// Close the client sockets of the already connected clients,
+			// and of those still announcing their protocol
+			for (ConnectionToClient client : clients.snapshot())
 			{
 				try
 				{
-					((ConnectionToClient)clientThreadList[i]).close();
+					client.close();
 				}
 				// Ignore all exceptions when closing clients.
 				catch(Exception ex) {}
 			}
-			serverSocket = null;
+			for (ConnectionToClient client : handshaking)
+				client.abandon();
+			metrics.unpublish();
+			closeSelectorEngine();
+			closeDispatchLanes();
 			serverClosed();
 		}
 	}
@@ -182,23 +434,91 @@ public abstract class AbstractServer implements Runnable
 	 * before actually sending messages to all clients.  This method
 	 * can be overriden, but if so it should still perform the general
 	 * function of sending to all clients, perhaps after some kind
-	 * of filtering is done. Any exception thrown while
-	 * sending the message to a particular client is ignored.
+	 * of filtering is done.<p>
+	 *
+	 * The message is only queued for each client and written later by
+	 * the I/O layer, so a slow client does not delay the others. It is
+	 * encoded once, unless it is already an <code>EncodedMessage</code>,
+	 * and the same bytes are written to every client. A client
+	 * whose queue is full is dealt with according to the overflow policy,
+	 * and a client whose connection fails while the message is written is
+	 * reported through <code>clientException</code>. An exception thrown
+	 * while queuing the message for a particular client, such as the
+	 * client having just disconnected, is ignored.
 	 *
 	 * @param msg   Object The message to be sent
 	 */
 	public void sendToAllClients(Object msg)
 	{
-		Thread[] clientThreadList = getClientConnections();
+		ConnectionToClient[] targets = clients.snapshot();
+		ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+		event.begin();
+		long start = System.nanoTime();
+		if (!(msg instanceof EncodedMessage))
+			msg = new EncodedMessage(msg);
 
-		for (int i=0; i<clientThreadList.length; i++)
+		for (ConnectionToClient client : targets)
 		{
 			try
 			{
-				((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+				client.offerToClient(msg);
 			}
 			catch (Exception ex) {}
 		}
+		metrics.broadcastQueued(System.nanoTime() - start);
+		broadcastDone(event, msg, targets.length);
+	}
+
+	/**
+	 * Sends a message to some of the clients connected to the server,
+	 * such as the members of a group. As with
+	 * <code>sendToAllClients</code>, the message is encoded once and
+	 * only queued for each client, and an exception thrown while queuing
+	 * it for a particular client is ignored.
+	 *
+	 * @param clients the clients to send the message to.
+	 * @param msg     Object The message to be sent
+	 */
+	public void sendToClients(Iterable<ConnectionToClient> clients, Object msg)
+	{
+		ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+		event.begin();
+		long start = System.nanoTime();
+		if (!(msg instanceof EncodedMessage))
+			msg = new EncodedMessage(msg);
+
+		int fanOut = 0;
+		for (ConnectionToClient client : clients)
+		{
+			try
+			{
+				client.offerToClient(msg);
+			}
+			catch (Exception ex) {}
+			fanOut++;
+		}
+		metrics.broadcastQueued(System.nanoTime() - start);
+		broadcastDone(event, msg, fanOut);
+	}
+
+	/**
+	 * Commits the flight recorder event of a broadcast, if it is recorded.
+	 *
+	 * @param event  the event begun with the broadcast.
+	 * @param msg    the message sent.
+	 * @param fanOut the number of clients the message was sent to.
+	 */
+	private static void broadcastDone(ServerEvents.Broadcast event,
+		Object msg, int fanOut)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			Object message = ((EncodedMessage)msg).getMessage();
+			event.messageClass = message == null ? null : message.getClass().getName();
+			event.fanOut = fanOut;
+			event.commit();
+		}
 	}
 
 
@@ -221,19 +541,28 @@ public abstract class AbstractServer implements Runnable
 	 * each connection (e.g. kill it, send a message to it etc.).
 	 * Remember that after this array is obtained, some clients
 	 * in this migth disconnect. New clients can also connect,
-	 * these later will not appear in the array.
+	 * these later will not appear in the array. A new array is
+	 * allocated on every call; <code>getClients</code> avoids that.
 	 *
 	 * @return an array of <code>Thread</code> containing
 	 * <code>ConnectionToClient</code> instances.
 	 */
-	synchronized final public Thread[] getClientConnections()
+	final public Thread[] getClientConnections()
 	{
-		Thread[] clientThreadList = new
-			Thread[clientThreadGroup.activeCount()];
-
-		clientThreadGroup.enumerate(clientThreadList);
+		ConnectionToClient[] snapshot = clients.snapshot();
+		return Arrays.copyOf(snapshot, snapshot.length, Thread[].class);
+	}
 
-		return clientThreadList;
+	/**
+	 * Returns the registry of the connected clients. Iterating over it
+	 * takes no lock and sees the clients connected when the iteration
+	 * began.
+	 *
+	 * @return the connected clients.
+	 */
+	final public ClientRegistry getClients()
+	{
+		return clients;
 	}
 
 	/**
@@ -243,7 +572,41 @@ public abstract class AbstractServer implements Runnable
 	 */
 	final public int getNumberOfClients()
 	{
-		return clientThreadGroup.activeCount();
+		return clients.size();
+	}
+
+	/**
+	 * Returns the number of messages discarded, over all clients, because
+	 * the outbound queue of the client was full.
+	 *
+	 * @return the number of discarded messages.
+	 */
+	final public long getDroppedMessages()
+	{
+		return metrics.getDroppedMessages();
+	}
+
+	/**
+	 * Returns the number of clients disconnected because their outbound
+	 * queue overflowed.
+	 *
+	 * @return the number of slow clients disconnected.
+	 */
+	final public long getSlowConsumerDisconnects()
+	{
+		return metrics.getSlowConsumerDisconnects();
+	}
+
+	/**
+	 * Returns the metrics of the server: connections, messages and bytes
+	 * exchanged, queue depths, and the time taken to handle and broadcast
+	 * messages.
+	 *
+	 * @return the metrics of the server.
+	 */
+	final public ServerMetrics getMetrics()
+	{
+		return metrics;
 	}
 
 	/**
@@ -269,22 +632,23 @@ public abstract class AbstractServer implements Runnable
 	}
 
 	/**
-	 * Sets the timeout time when accepting connections.
-	 * The default is half a second. This means that stopping the
-	 * server may take up to timeout duration to actually stop.
-	 * The server must be stopped and restarted for the timeout
-	 * change to be effective.
+	 * Formerly set the timeout after which the listening thread checked
+	 * whether it had been asked to stop. The listening thread now waits
+	 * for connections without a timeout and is woken up by
+	 * <code> stopListening </code>, so this method has no effect.
 	 *
-	 * @param timeout the timeout time in ms.
+	 * @param timeout the timeout time in ms, ignored.
+	 * @deprecated stopping the server no longer waits for a timeout.
 	 */
+	@Deprecated
 	final public void setTimeout(int timeout)
 	{
-		this.timeout = timeout;
 	}
 
 	/**
 	 * Sets the maximum number of waiting connections accepted by the
-	 * operating system. The default is 20.
+	 * operating system. The default is 128. With several acceptor
+	 * threads on sockets of their own, every socket has this backlog.
 	 * The server must be closed and restarted for the backlog
 	 * change to be in effect.
 	 *
@@ -295,163 +659,998 @@ public abstract class AbstractServer implements Runnable
 		this.backlog = backlog;
 	}
 
-	// RUN METHOD -------------------------------------------------------
-
 	/**
-	 * Runs the listening thread that allows clients to connect.
-	 * Not to be called.
+	 * Sets the number of threads accepting connections. The default is
+	 * one. Where the platform supports <code> SO_REUSEPORT </code>, as
+	 * Linux does, every acceptor thread gets its own socket bound to the
+	 * port, and the operating system spreads incoming connections among
+	 * them; elsewhere the threads share one socket. More than one acceptor
+	 * helps absorb a burst of connections, such as every client
+	 * reconnecting after a restart of the server.
+	 * The server must be closed and restarted for the change to be
+	 * in effect.
+	 *
+	 * @param acceptorThreads the number of acceptor threads.
 	 */
-	final public void run()
+	final public void setAcceptorThreads(int acceptorThreads)
 	{
-		// call the hook method to notify that the server is starting
-		serverStarted();
-
-		try
-		{
-			// Repeatedly waits for a new client connection, accepts it, and
-			// starts a new thread to handle data exchange.
-			while(!readyToStop)
-			{
-				try
-				{
-					// Wait here for new connection attempts, or a timeout
-					Socket clientSocket = serverSocket.accept();
-
-					// When a client is accepted, create a thread to handle
-					// the data exchange, then add it to thread group
-
-					synchronized(this)
-					{
-						new ConnectionToClient(
-							this.clientThreadGroup, clientSocket, this);
-					}
-				}
-				catch (InterruptedIOException exception)
-				{
-					// This will be thrown when a timeout occurs.
-					// The server will continue to listen if not ready to stop.
-				}
-			}
-
-			// call the hook method to notify that the server has stopped
-			serverStopped();
-		}
-		catch (IOException exception)
-		{
-			if (!readyToStop)
-			{
-				// Closing the socket must have thrown a SocketException
-				listeningException(exception);
-			}
-			else
-			{
-				serverStopped();
-			}
-		}
-		finally
-		{
-			readyToStop = true;
-			connectionListener = null;
-		}
+		this.acceptorThreads = Math.max(1, acceptorThreads);
 	}
 
-
-	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
-
 	/**
-	 * Hook method called each time a new client connection is
-	 * accepted. The default implementation does nothing.
-	 * @param client the connection connected to the client.
+	 * Sets the number of event loops serving connections with the
+	 * selector engine. Zero, the default, creates one thread per
+	 * connection instead. A small number, typically the number of
+	 * processors, is enough for tens of thousands of connections.
+	 * Clients must use a codec to be served by the loops; legacy object
+	 * stream clients are still accepted and get their own thread.
+	 * The server must be closed and restarted for the change to be
+	 * in effect.
+	 *
+	 * @param selectorThreads the number of event loops.
+	 * @see ocsf.client.AbstractClient#setCodec(ocsf.common.MessageCodec)
 	 */
-	protected void clientConnected(ConnectionToClient client) {}
+	final public void setSelectorThreads(int selectorThreads)
+	{
+		this.selectorThreads = Math.max(0, selectorThreads);
+	}
 
 	/**
-	 * Hook method called each time a client disconnects.
-	 * The default implementation does nothing. The method
-	 * may be overridden by subclasses but should remains synchronized.
+	 * Selects whether the read loop of each new connection runs on a
+	 * virtual thread instead of a platform thread of the client thread
+	 * group. The connection objects are then no longer started threads,
+	 * but they are still enumerated by <code>getClientConnections</code>
+	 * and their uncaught exceptions still reach <code>clientException</code>.
+	 * Takes effect for connections accepted after the call.
 	 *
-	 * @param client the connection with the client.
+	 * @param virtualThreads true to use virtual threads.
 	 */
-	synchronized protected void clientDisconnected(
-		ConnectionToClient client) {}
+	final public void setVirtualThreads(boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
 
 	/**
-	 * Hook method called each time an exception is thrown in a
-	 * ConnectionToClient thread.
-	 * The method may be overridden by subclasses but should remains
-	 * synchronized.
+	 * Sets the maximum number of messages that may wait to be written to
+	 * a client. The default is 1024. Takes effect immediately.
 	 *
-	 * @param client the client that raised the exception.
-	 * @param Throwable the exception thrown.
+	 * @param outboundQueueLimit the maximum number of queued messages.
 	 */
-	synchronized protected void clientException(
-		ConnectionToClient client, Throwable exception) {}
+	final public void setOutboundQueueLimit(int outboundQueueLimit)
+	{
+		this.outboundQueueLimit = Math.max(1, outboundQueueLimit);
+	}
 
 	/**
-	 * Hook method called when the server stops accepting
-	 * connections because an exception has been raised.
-	 * The default implementation does nothing.
-	 * This method may be overriden by subclasses.
+	 * Sets what happens to a message for a client whose outbound queue
+	 * is full. The default is to disconnect the client. Takes effect
+	 * immediately.
 	 *
-	 * @param exception the exception raised.
+	 * @param overflowPolicy the policy.
 	 */
-	protected void listeningException(Throwable exception) {}
+	final public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+	{
+		this.overflowPolicy = overflowPolicy;
+	}
 
 	/**
-	 * Hook method called when the server starts listening for
-	 * connections.  The default implementation does nothing.
-	 * The method may be overridden by subclasses.
+	 * Sets how fast each client may send messages. A client may send a
+	 * second's worth in a burst, then as fast as the rate allows. The
+	 * byte rate counts the payload of frames, so it does not apply to
+	 * clients using the legacy object stream. The default is no limit.
+	 * Takes effect immediately.
+	 *
+	 * @param messagesPerSecond the number of messages, 0 for no limit.
+	 * @param bytesPerSecond the number of bytes, 0 for no limit.
 	 */
-	protected void serverStarted() {}
+	final public void setRateLimit(int messagesPerSecond, long bytesPerSecond)
+	{
+		this.messageRate = Math.max(0, messagesPerSecond);
+		this.byteRate = Math.max(0, bytesPerSecond);
+	}
 
 	/**
-	 * Hook method called when the server stops accepting
-	 * connections.  The default implementation
-	 * does nothing. This method may be overriden by subclasses.
+	 * Sets what happens to a message that takes its client over the rate
+	 * limit. The default is to delay reading from the client. Takes
+	 * effect immediately.
+	 *
+	 * @param rateLimitPolicy the policy.
 	 */
-	protected void serverStopped() {}
+	final public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy)
+	{
+		this.rateLimitPolicy = rateLimitPolicy;
+	}
 
 	/**
-	 * Hook method called when the server is clased.
-	 * The default implementation does nothing. This method may be
-	 * overriden by subclasses. When the server is closed while still
-	 * listening, serverStopped() will also be called.
+	 * Sets when the object stream to a client using the legacy protocol
+	 * is reset. The stream keeps a reference to every object written
+	 * until it is reset, so without resets a long-lived connection holds
+	 * on to every message ever sent. The stream is reset once either
+	 * limit is reached; the defaults are 1024 messages and one megabyte.
+	 * Takes effect for connections accepted after the call.
+	 *
+	 * @param messages the number of messages between resets.
+	 * @param bytes the number of bytes between resets.
 	 */
-	protected void serverClosed() {}
+	final public void setStreamReset(int messages, long bytes)
+	{
+		this.streamResetMessages = Math.max(1, messages);
+		this.streamResetBytes = Math.max(1, bytes);
+	}
 
 	/**
-	 * Handles a command sent from one client to the server.
-	 * This MUST be implemented by subclasses, who should respond to
-	 * messages.
-	 * This method is called by a synchronized method so it is also
-	 * implcitly synchronized.
+	 * Selects whether messages to clients using the legacy protocol are
+	 * written unshared, so that the stream does not keep them between
+	 * resets. A client then receives a distinct object each time, even
+	 * if the same object is sent twice. Takes effect for connections
+	 * accepted after the call.
 	 *
-	 * @param msg   the message sent.
-	 * @param client the connection connected to the client that
-	 *  sent the message.
+	 * @param unsharedWrites true to write messages unshared.
 	 */
-	protected abstract void handleMessageFromClient(
-		Object msg, ConnectionToClient client);
-
-
-	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+	final public void setUnsharedWrites(boolean unsharedWrites)
+	{
+		this.unsharedWrites = unsharedWrites;
+	}
 
 	/**
-	 * Receives a command sent from the client to the server.
-	 * Called by the run method of <code>ConnectionToClient</code>
-	 * instances that are watching for messages coming from the server
-	 * This method is synchronized to ensure that whatever effects it has
-	 * do not conflict with work being done by other threads. The method
-	 * simply calls the <code>handleMessageFromClient</code> slot method.
+	 * Sets how messages to a client are coalesced into socket writes.
+	 * Messages are buffered and written together once
+	 * <code>flushBytes</code> are buffered, or once no more messages are
+	 * queued for the client. With a positive <code>maxDelayMicros</code>,
+	 * the last messages written also wait up to that long for more
+	 * messages to share their write; this trades latency for fewer
+	 * system calls; the selector engine measures it in milliseconds.
+	 * Messages still waiting when a connection is closed are discarded,
+	 * like queued messages. The defaults are 8192 bytes and no delay. The
+	 * byte threshold takes effect for connections accepted after the call,
+	 * the delay immediately.
 	 *
-	 * @param msg   the message sent.
-	 * @param client the connection connected to the client that
+	 * @param flushBytes the number of bytes buffered before a write.
+	 * @param maxDelayMicros the longest time, in microseconds, a message
+	 *        may wait for others to be written with it.
+	 */
+	final public void setFlushPolicy(int flushBytes, long maxDelayMicros)
+	{
+		this.flushBytes = Math.max(1, flushBytes);
+		this.flushDelay = Math.max(0, maxDelayMicros) * 1000;
+	}
+
+	/**
+	 * Sets how long a client using a codec may be silent before the server
+	 * pings it, to learn whether it is still there. The client answers
+	 * without its application seeing the ping; clients using the legacy
+	 * object stream are never pinged. Connections established before the
+	 * call are only affected if they were already checked. Set to 0 by
+	 * default: clients are not pinged.
+	 *
+	 * @param millis the interval, in milliseconds, 0 not to ping.
+	 */
+	final public void setHeartbeatInterval(long millis)
+	{
+		this.heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Sets how long a client using a codec may be silent, sending neither
+	 * messages nor answers to pings, before the server disconnects it.
+	 * Should be a few heartbeat intervals, so that a live client always
+	 * has time to answer. The connection is counted under
+	 * <code> DisconnectReason.IDLE </code> and the
+	 * <code> SocketTimeoutException </code> reported to
+	 * <code> clientException </code>. Connections established before the
+	 * call are only affected if they were already checked. Set to 0 by
+	 * default: clients may stay silent forever.
+	 *
+	 * @param millis the timeout, in milliseconds, 0 for none.
+	 */
+	final public void setIdleTimeout(long millis)
+	{
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Selects whether the metrics of every client are registered as an
+	 * MBean while it is connected, in addition to those of the server.
+	 * Registering costs a little on every connection, so it is not done
+	 * by default. Clients connected before the call are not affected.
+	 *
+	 * @param connectionMBeans true to register every client.
+	 */
+	final public void setConnectionMBeans(boolean connectionMBeans)
+	{
+		this.connectionMBeans = connectionMBeans;
+	}
+
+	/**
+	 * Selects whether messages from all clients are handled one at a
+	 * time, while holding the lock of the server, as they are by default.
+	 * Subclasses whose <code>handleMessageFromClient</code> is thread
+	 * safe may call this method with false, so that messages from
+	 * different clients are handled in parallel and only the messages of
+	 * each client are handled in order.
+	 *
+	 * @param serialDispatch true to handle one message at a time.
+	 */
+	final public void setSerialDispatch(boolean serialDispatch)
+	{
+		this.serialDispatch = serialDispatch;
+	}
+
+	/**
+	 * Sets the number of worker threads handling messages. With zero,
+	 * the default, each message is handled on the thread that read it,
+	 * so that a slow handler delays the other clients sharing that
+	 * thread, if any. With a positive count, messages are queued to the
+	 * worker serving the client and the reader moves on. The server must
+	 * be closed and restarted for the change to be in effect.
+	 *
+	 * @param dispatchThreads the number of worker threads.
+	 */
+	final public void setDispatchThreads(int dispatchThreads)
+	{
+		this.dispatchThreads = Math.max(0, dispatchThreads);
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Runs the listening thread that allows clients to connect. The
+	 * thread is the first acceptor thread; it starts the others, if any,
+	 * and waits for them to stop.
+	 * Not to be called.
+	 */
+	final public void run()
+	{
+		// call the hook method to notify that the server is starting
+		serverStarted();
+
+		Selector[] selectors = acceptSelectors;
+		IOException[] failure = new IOException[1];
+		try
+		{
+			Thread[] acceptors = new Thread[selectors.length - 1];
+			for (int i=0; i<acceptors.length; i++)
+			{
+				final Selector selector = selectors[i + 1];
+				final IOException[] acceptorFailure = failure;
+				acceptors[i] = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						acceptConnections(selector, acceptorFailure);
+					}
+				}, "OCSF acceptor " + (i + 1));
+				acceptors[i].start();
+			}
+			acceptConnections(selectors[0], failure);
+
+			try
+			{
+				for (int i=0; i<acceptors.length; i++)
+					acceptors[i].join();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			IOException exception;
+			synchronized (failure)
+			{
+				exception = failure[0];
+			}
+			if (exception != null)
+			{
+				// Accepting failed while the server was listening
+				listeningException(exception);
+			}
+			else
+			{
+				// call the hook method to notify that the server has stopped
+				serverStopped();
+			}
+		}
+		finally
+		{
+			readyToStop = true;
+			acceptSelectors = null;
+			connectionListener = null;
+		}
+	}
+
+	/**
+	 * Accepts connections until the server stops listening. The thread
+	 * waits on a selector, without a timeout, and accepts every pending
+	 * connection each time it is woken up. The first exception raised while
+	 * the server is listening stops every acceptor thread and is reported
+	 * to <code> listeningException </code>.
+	 *
+	 * @param selector the selector of the acceptor thread, closed on return.
+	 * @param failure where the exception stopping the server is stored.
+	 */
+	private void acceptConnections(Selector selector, IOException[] failure)
+	{
+		try
+		{
+			while (!readyToStop)
+			{
+				if (selector.select() == 0)
+					continue;
+
+				Set<SelectionKey> selected = selector.selectedKeys();
+				for (SelectionKey key : selected)
+				{
+					ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
+					SocketChannel channel;
+					while (!readyToStop && (channel = serverChannel.accept()) != null)
+						connectionAccepted(channel);
+				}
+				selected.clear();
+			}
+		}
+		catch (IOException exception)
+		{
+			if (!readyToStop)
+			{
+				synchronized (failure)
+				{
+					if (failure[0] == null)
+						failure[0] = exception;
+				}
+				stopListening();
+			}
+		}
+		finally
+		{
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Hands an accepted connection to an event loop, or to a thread of its
+	 * own that waits for the client to announce its protocol. A connection
+	 * that cannot be set up is closed without affecting the others.
+	 * Acceptor threads call this method concurrently, without the lock of
+	 * the server: a connection handed off while the server is closed is
+	 * either found by <code> close </code> or abandoned here.
+	 *
+	 * @param channel the accepted connection.
+	 */
+	private void connectionAccepted(SocketChannel channel)
+	{
+		metrics.connectionAccepted();
+		try
+		{
+			ServerSocketChannel[] channels = serverChannels;
+			SelectorLoop[] loops = selectorLoops;
+			if (channels == null)
+			{
+				// The server was closed while accepting
+				channel.close();
+				return;
+			}
+
+			ConnectionToClient client;
+			if (loops != null)
+			{
+				int next = nextLoop.getAndIncrement() & Integer.MAX_VALUE;
+				client = loops[next % loops.length].register(channel);
+			}
+			else
+			{
+				client = new ConnectionToClient(
+					this.clientThreadGroup, channel.socket(), this);
+			}
+
+			// Closed meanwhile, perhaps before the connection was known
+			if (serverChannels != channels)
+				client.abandon();
+		}
+		catch (IOException exception)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException ex) {}
+		}
+	}
+
+
+	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+	/**
+	 * Hook method called each time a new client connection is
+	 * accepted. The default implementation does nothing.
+	 * @param client the connection connected to the client.
+	 */
+	protected void clientConnected(ConnectionToClient client) {}
+
+	/**
+	 * Hook method called each time a client disconnects.
+	 * The default implementation does nothing. The method
+	 * may be overridden by subclasses but should remains synchronized.
+	 *
+	 * @param client the connection with the client.
+	 */
+	synchronized protected void clientDisconnected(
+		ConnectionToClient client) {}
+
+	/**
+	 * Hook method called each time an exception is thrown in a
+	 * ConnectionToClient thread.
+	 * The method may be overridden by subclasses but should remains
+	 * synchronized.
+	 *
+	 * @param client the client that raised the exception.
+	 * @param Throwable the exception thrown.
+	 */
+	synchronized protected void clientException(
+		ConnectionToClient client, Throwable exception) {}
+
+	/**
+	 * Hook method called when the server stops accepting
+	 * connections because an exception has been raised.
+	 * The default implementation does nothing.
+	 * This method may be overriden by subclasses.
+	 *
+	 * @param exception the exception raised.
+	 */
+	protected void listeningException(Throwable exception) {}
+
+	/**
+	 * Hook method called when a client goes over the rate limit, at
+	 * most once a second for each client, unless the policy disconnects
+	 * it. It is called on the thread reading from the client, before the
+	 * message is handled or discarded, and must not block.
+	 * The default implementation does nothing.
+	 *
+	 * @param client the connection with the client.
+	 */
+	protected void clientRateLimited(ConnectionToClient client) {}
+
+	/**
+	 * Hook method called when the server starts listening for
+	 * connections.  The default implementation does nothing.
+	 * The method may be overridden by subclasses.
+	 */
+	protected void serverStarted() {}
+
+	/**
+	 * Hook method called when the server stops accepting
+	 * connections.  The default implementation
+	 * does nothing. This method may be overriden by subclasses.
+	 */
+	protected void serverStopped() {}
+
+	/**
+	 * Hook method called when the server is clased.
+	 * The default implementation does nothing. This method may be
+	 * overriden by subclasses. When the server is closed while still
+	 * listening, serverStopped() will also be called.
+	 */
+	protected void serverClosed() {}
+
+	/**
+	 * Handles a command sent from one client to the server.
+	 * This MUST be implemented by subclasses, who should respond to
+	 * messages.
+	 * Messages of different clients are handled one at a time unless
+	 * <code>setSerialDispatch(false)</code> has been called; messages of
+	 * the same client are always handled one after the other.
+	 *
+	 * @param msg   the message sent.
+	 * @param client the connection connected to the client that
+	 *  sent the message.
+	 */
+	protected abstract void handleMessageFromClient(
+		Object msg, ConnectionToClient client);
+
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Receives a command sent from the client to the server.
+	 * Called by the run method of <code>ConnectionToClient</code>
+	 * instances that are watching for messages coming from the server,
+	 * or by the event loops of the selector engine. The message is either
+	 * handled right away or queued to the worker serving the client.
+	 *
+	 * @param msg   the message sent.
+	 * @param size  the size of the frame payload, or -1 for the legacy
+	 *  object stream.
+	 * @param client the connection connected to the client that
 	 *  sent the message.
 	 */
-	final synchronized void receiveMessageFromClient(
-		Object msg, ConnectionToClient client)
+	final void receiveMessageFromClient(
+		final Object msg, final int size, final ConnectionToClient client)
 	{
-		this.handleMessageFromClient(msg, client);
+		client.getMetrics().messageReceived();
+
+		ExecutorService[] lanes = dispatchLanes;
+		if (lanes == null)
+		{
+			dispatchMessage(msg, size, client);
+			return;
+		}
+
+		// The same client always maps to the same worker
+		int lane = (System.identityHashCode(client) & 0x7fffffff) % lanes.length;
+		try
+		{
+			lanes[lane].execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						dispatchMessage(msg, size, client);
+					}
+					catch (Throwable exception)
+					{
+						client.connectionFailed(exception);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// The server is being closed; the message is dropped.
+		}
+	}
+
+	/**
+	 * Calls the <code>handleMessageFromClient</code> slot method,
+	 * holding the lock of the server if serial dispatch is selected, and
+	 * records the time it took, lock included.
+	 *
+	 * @param msg   the message sent.
+	 * @param size  the size of the frame payload, or -1.
+	 * @param client the connection connected to the client that
+	 *  sent the message.
+	 */
+	private void dispatchMessage(Object msg, int size, ConnectionToClient client)
+	{
+		ServerEvents.MessageReceived event = new ServerEvents.MessageReceived();
+		event.begin();
+		long start = System.nanoTime();
+		try
+		{
+			if (serialDispatch)
+			{
+				synchronized(this)
+				{
+					this.handleMessageFromClient(msg, client);
+				}
+			}
+			else
+			{
+				this.handleMessageFromClient(msg, client);
+			}
+		}
+		finally
+		{
+			metrics.messageHandled(System.nanoTime() - start);
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.connection = client.getName();
+				event.messageClass = msg == null ? null : msg.getClass().getName();
+				event.size = size;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Returns the thread group of the connection threads.
+	 */
+	ThreadGroup getClientThreadGroup()
+	{
+		return clientThreadGroup;
+	}
+
+	/**
+	 * Creates the object stream to a client using the legacy protocol.
+	 *
+	 * @param output the socket stream.
+	 * @exception IOException if the stream header cannot be written.
+	 */
+	BoundedObjectOutputStream createObjectOutput(OutputStream output)
+		throws IOException
+	{
+		BoundedObjectOutputStream stream = new BoundedObjectOutputStream(
+			new BufferedOutputStream(output, flushBytes),
+			streamResetMessages, streamResetBytes, unsharedWrites);
+		stream.flush(); // the client waits for the stream header
+		return stream;
+	}
+
+	/**
+	 * Creates the buffered stream of frames to a client using a codec.
+	 *
+	 * @param output the socket stream.
+	 */
+	DataOutputStream createFrameOutput(OutputStream output)
+	{
+		return new DataOutputStream(new BufferedOutputStream(output, flushBytes));
+	}
+
+	/**
+	 * Returns the number of bytes buffered before a write to a client.
+	 */
+	int getFlushBytes()
+	{
+		return flushBytes;
+	}
+
+	/**
+	 * Returns how long, in nanoseconds, written messages may wait for
+	 * more messages before they are flushed.
+	 */
+	long getFlushDelay()
+	{
+		return flushDelay;
+	}
+
+	/**
+	 * Returns how long, in nanoseconds, a client may be silent before it
+	 * is pinged, 0 if clients are not pinged.
+	 */
+	long getHeartbeatInterval()
+	{
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Returns how long, in nanoseconds, a client may be silent before it
+	 * is disconnected, 0 if it may stay silent forever.
+	 */
+	long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	/**
+	 * Returns the maximum number of messages queued for each client.
+	 */
+	int getOutboundQueueLimit()
+	{
+		return outboundQueueLimit;
+	}
+
+	/**
+	 * Returns what happens to a message for a client whose outbound
+	 * queue is full.
+	 */
+	OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Returns how many messages each client may send per second, 0 for
+	 * no limit.
+	 */
+	double getMessageRate()
+	{
+		return messageRate;
+	}
+
+	/**
+	 * Returns how many bytes of messages each client may send per
+	 * second, 0 for no limit.
+	 */
+	double getByteRate()
+	{
+		return byteRate;
+	}
+
+	/**
+	 * Returns what happens to a message that takes its client over the
+	 * rate limit.
+	 */
+	RateLimitPolicy getRateLimitPolicy()
+	{
+		return rateLimitPolicy;
+	}
+
+	/**
+	 * Counts a message that took its client over the rate limit.
+	 */
+	void messageRateLimited()
+	{
+		metrics.messageRateLimited();
+	}
+
+	/**
+	 * Counts a message discarded because a client's queue was full.
+	 */
+	void messageDropped()
+	{
+		metrics.messageDropped();
+	}
+
+	/**
+	 * Starts a thread writing the messages queued for a client.
+	 *
+	 * @param writer the task writing the messages.
+	 */
+	void startOutboundWriter(Runnable writer)
+	{
+		outboundWriters.execute(writer);
+	}
+
+	/**
+	 * Returns true if connection read loops run on virtual threads.
+	 */
+	boolean usesVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	/**
+	 * Adds a connection to the connected clients, registering its metrics
+	 * if connection MBeans are selected.
+	 */
+	void registerClient(ConnectionToClient client)
+	{
+		handshaking.remove(client);
+		if (!clients.add(client))
+			return;
+
+		if (connectionMBeans)
+			metrics.publish(client);
+	}
+
+	/**
+	 * Notes a connection served by its own thread that is waiting for its
+	 * client to announce its protocol, so that it is closed with the server.
+	 */
+	void handshakeStarted(ConnectionToClient client)
+	{
+		handshaking.add(client);
+	}
+
+	/**
+	 * Reports a registered connection whose client has announced its
+	 * protocol, then calls <code> clientConnected </code>.
+	 */
+	void connectionEstablished(ConnectionToClient client)
+	{
+		ServerEvents.ConnectionAccepted event = new ServerEvents.ConnectionAccepted();
+		if (event.shouldCommit())
+		{
+			event.connection = client.getName();
+			event.address = addressOf(client);
+			event.protocol = client.getProtocol();
+			event.commit();
+		}
+		clientConnected(client);
+	}
+
+	/**
+	 * Removes a connection from the connected clients, counting why it
+	 * left the first time it does.
+	 *
+	 * @param reason why the connection is closed.
+	 */
+	void unregisterClient(ConnectionToClient client, DisconnectReason reason)
+	{
+		handshaking.remove(client);
+		if (!clients.remove(client))
+			return;
+
+		metrics.disconnected(reason);
+		metrics.unpublish(client);
+
+		ServerEvents.ConnectionClosed event = new ServerEvents.ConnectionClosed();
+		if (event.shouldCommit())
+		{
+			ConnectionMetrics counts = client.getMetrics();
+			event.connection = client.getName();
+			event.address = addressOf(client);
+			event.reason = reason.name();
+			event.connectedFor = System.currentTimeMillis() - counts.getConnectedSince();
+			event.messagesReceived = counts.getMessagesReceived();
+			event.messagesSent = counts.getMessagesSent();
+			event.bytesReceived = counts.getBytesReceived();
+			event.bytesSent = counts.getBytesSent();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Returns the address of a client for an event, or null.
+	 */
+	private static String addressOf(ConnectionToClient client)
+	{
+		InetAddress address = client.getInetAddress();
+		return address == null ? null : address.getHostAddress();
+	}
+
+	/**
+	 * Opens the server sockets and binds them to the port: one socket per
+	 * acceptor thread, with <code>SO_REUSEPORT</code>, if there are several
+	 * and the platform supports it, a single socket otherwise. The sockets
+	 * after the first are bound to the port the first one got, so that
+	 * port 0 gives them all the same port.
+	 *
+	 * @exception IOException if a socket cannot be opened or bound.
+	 */
+	private void openServerChannels() throws IOException
+	{
+		ServerSocketChannel first = ServerSocketChannel.open();
+		boolean reusePort = acceptorThreads > 1
+			&& first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		ServerSocketChannel[] channels =
+			new ServerSocketChannel[reusePort ? acceptorThreads : 1];
+		channels[0] = first;
+		try
+		{
+			int localPort = getPort();
+			for (int i=0; i<channels.length; i++)
+			{
+				if (channels[i] == null)
+					channels[i] = ServerSocketChannel.open();
+				if (reusePort)
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channels[i].configureBlocking(false);
+				channels[i].bind(new InetSocketAddress(localPort), backlog);
+				localPort = channels[i].socket().getLocalPort();
+			}
+		}
+		catch (IOException ex)
+		{
+			try
+			{
+				closeServerChannels(channels);
+			}
+			catch (IOException exc) {}
+			throw ex;
+		}
+		serverChannels = channels;
+	}
+
+	/**
+	 * Closes the server sockets, all of them even if closing one fails.
+	 *
+	 * @exception IOException the first exception raised closing a socket.
+	 */
+	private static void closeServerChannels(ServerSocketChannel[] channels)
+		throws IOException
+	{
+		IOException failure = null;
+		for (int i=0; i<channels.length; i++)
+		{
+			if (channels[i] == null)
+				continue;
+			try
+			{
+				channels[i].close();
+			}
+			catch (IOException ex)
+			{
+				if (failure == null)
+					failure = ex;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Opens the selectors of the acceptor threads. Each one waits for
+	 * connections on the socket of its thread, or on the shared socket.
+	 *
+	 * @exception IOException if a selector cannot be opened.
+	 */
+	private Selector[] openAcceptSelectors(ServerSocketChannel[] channels)
+		throws IOException
+	{
+		// Sockets bound with SO_REUSEPORT each need their own acceptor
+		int count = channels.length > 1 ? channels.length : acceptorThreads;
+		Selector[] selectors = new Selector[count];
+		try
+		{
+			for (int i=0; i<selectors.length; i++)
+			{
+				selectors[i] = Selector.open();
+				channels[i % channels.length].register(selectors[i], SelectionKey.OP_ACCEPT);
+			}
+		}
+		catch (IOException ex)
+		{
+			for (int i=0; i<selectors.length; i++)
+			{
+				try
+				{
+					if (selectors[i] != null)
+						selectors[i].close();
+				}
+				catch (IOException exc) {}
+			}
+			throw ex;
+		}
+		return selectors;
+	}
+
+	/**
+	 * Starts the event loops of the selector engine.
+	 *
+	 * @exception IOException if a selector cannot be opened.
+	 */
+	private void openSelectorEngine() throws IOException
+	{
+		try
+		{
+			selectorLoops = new SelectorLoop[selectorThreads];
+			for (int i=0; i<selectorLoops.length; i++)
+				selectorLoops[i] = new SelectorLoop(this, i);
+		}
+		catch (IOException ex)
+		{
+			closeSelectorEngine();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Starts the worker threads handling messages, if any.
+	 */
+	private void openDispatchLanes()
+	{
+		if (dispatchThreads == 0)
+			return;
+
+		ExecutorService[] lanes = new ExecutorService[dispatchThreads];
+		for (int i=0; i<lanes.length; i++)
+		{
+			final String name = "OCSF dispatch " + i;
+			lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					return new Thread(runnable, name);
+				}
+			});
+		}
+		dispatchLanes = lanes;
+	}
+
+	/**
+	 * Stops the worker threads handling messages, once the messages
+	 * already queued have been handled.
+	 */
+	private void closeDispatchLanes()
+	{
+		ExecutorService[] lanes = dispatchLanes;
+		if (lanes == null)
+			return;
+
+		dispatchLanes = null;
+		for (int i=0; i<lanes.length; i++)
+			lanes[i].shutdown();
+	}
+
+	/**
+	 * Stops the event loops, if any.
+	 */
+	private void closeSelectorEngine()
+	{
+		if (selectorLoops == null)
+			return;
+
+		for (int i=0; i<selectorLoops.length; i++)
+		{
+			if (selectorLoops[i] != null)
+				selectorLoops[i].stop();
+		}
+		selectorLoops = null;
 	}
 }
 // End of AbstractServer Class
@@ -0,0 +1,151 @@
+package ocsf.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * An <code> AttributeKey </code> identifies a typed attribute that a server
+ * keeps about each of its clients, such as the login ID of the client.
+ * Every key is given a slot when it is created, and a
+ * <code> ConnectionToClient </code> keeps its attributes in an array indexed
+ * by slot, so that reading an attribute costs an array access instead of
+ * hashing a string and casting the value found.<p>
+ *
+ * Keys are meant to be created once, as constants. There is a single key
+ * per name: <code> valueOf </code> returns the existing key when called
+ * again with the same name and type. Calls to <code> setInfo </code> and
+ * <code> getInfo </code> with the name of a key read and write the
+ * attribute of that key, so that code still using names sees the same
+ * values as code using the key.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @param <T> the type of the values of the attribute.
+ * @see ocsf.server.ConnectionToClient#getAttribute(AttributeKey)
+ * @see ocsf.server.ConnectionToClient#setAttribute(AttributeKey, Object)
+ */
+public final class AttributeKey<T>
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Every key created, by name.
+	 */
+	private static final ConcurrentHashMap<String, AttributeKey<?>> keys =
+		new ConcurrentHashMap<String, AttributeKey<?>>();
+
+	/**
+	 * The number of slots given to keys so far.
+	 */
+	private static final AtomicInteger slots = new AtomicInteger();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final String name;
+
+	private final Class<T> type;
+
+	/**
+	 * The index of the attribute in the attributes of a connection.
+	 */
+	private final int slot;
+
+	// CONSTRUCTORS *****************************************************
+
+	private AttributeKey(String name, Class<T> type, int slot)
+	{
+		this.name = name;
+		this.type = type;
+		this.slot = slot;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the key of the attribute with the given name, creating it
+	 * the first time.
+	 *
+	 * @param name the name of the attribute.
+	 * @param type the type of the values of the attribute.
+	 * @return the key.
+	 * @exception IllegalArgumentException if a key with that name already
+	 * exists for another type.
+	 */
+	public static <T> AttributeKey<T> valueOf(String name, final Class<T> type)
+	{
+		AttributeKey<?> key = keys.computeIfAbsent(name,
+			new Function<String, AttributeKey<?>>()
+			{
+				public AttributeKey<?> apply(String keyName)
+				{
+					return new AttributeKey<T>(keyName, type, slots.getAndIncrement());
+				}
+			});
+
+		if (key.type != type)
+			throw new IllegalArgumentException(
+				"attribute " + name + " holds " + key.type.getName());
+
+		@SuppressWarnings("unchecked")
+		AttributeKey<T> typed = (AttributeKey<T>)key;
+		return typed;
+	}
+
+	/**
+	 * Returns the key with the given name, or null if there is none.
+	 */
+	static AttributeKey<?> forName(String name)
+	{
+		return keys.get(name);
+	}
+
+	/**
+	 * Returns the number of slots given to keys so far.
+	 */
+	static int slotCount()
+	{
+		return slots.get();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the name of the attribute.
+	 *
+	 * @return the name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the type of the values of the attribute.
+	 *
+	 * @return the type.
+	 */
+	public Class<T> getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Returns the name of the attribute.
+	 *
+	 * @return the name.
+	 */
+	public String toString()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the index of the attribute in the attributes of a connection.
+	 */
+	int getSlot()
+	{
+		return slot;
+	}
+}
+// End of AttributeKey class
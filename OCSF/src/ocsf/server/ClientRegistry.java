@@ -0,0 +1,177 @@
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The <code> ClientRegistry </code> holds the connections of a server, from
+ * the moment a client is connected until its connection is closed, however
+ * the connection is served. It replaces the enumeration of the client
+ * thread group, which allocated an array on every call and could miss or
+ * include connections racily.<p>
+ *
+ * The connections are kept in a concurrent set, so that adding or removing
+ * one costs the same however many clients are connected, even when many
+ * connect or disconnect at once. Broadcasts and iterations read an array
+ * of the connections instead, built from the set the first time it is
+ * needed after a change and reused until the next change. Iterating over
+ * the registry therefore takes no lock and allocates nothing but the
+ * iterator, and <code> forEach </code> allocates nothing at all, unless
+ * the array has to be rebuilt; either sees the connections present when
+ * the iteration began. A burst of connections thus costs one copy for the
+ * next broadcast, not one per connection.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#getClients()
+ */
+public final class ClientRegistry implements Iterable<ConnectionToClient>
+{
+	// CLASS VARIABLES **************************************************
+
+	private static final ConnectionToClient[] NO_CLIENTS = new ConnectionToClient[0];
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The registered connections.
+	 */
+	private final Set<ConnectionToClient> clients = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The number of changes made to the set, counted once each change is
+	 * complete.
+	 */
+	private final AtomicLong changes = new AtomicLong();
+
+	/**
+	 * The last array of the connections built, and the number of changes
+	 * it includes.
+	 */
+	private volatile Snapshot snapshot = new Snapshot(0, NO_CLIENTS);
+
+	// CONSTRUCTORS *****************************************************
+
+	ClientRegistry() {}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the number of connections in the registry.
+	 *
+	 * @return the number of connections.
+	 */
+	public int size()
+	{
+		return clients.size();
+	}
+
+	/**
+	 * Returns an iterator over the connections present when it is
+	 * created. Connections cannot be removed through it.
+	 *
+	 * @return the iterator.
+	 */
+	public Iterator<ConnectionToClient> iterator()
+	{
+		final ConnectionToClient[] snapshot = snapshot();
+
+		return new Iterator<ConnectionToClient>()
+		{
+			private int next = 0;
+
+			public boolean hasNext()
+			{
+				return next < snapshot.length;
+			}
+
+			public ConnectionToClient next()
+			{
+				if (next >= snapshot.length)
+					throw new NoSuchElementException();
+				return snapshot[next++];
+			}
+		};
+	}
+
+	/**
+	 * Performs an action for each connection present when the call is
+	 * made, without allocating.
+	 *
+	 * @param action the action to perform.
+	 */
+	public void forEach(Consumer<? super ConnectionToClient> action)
+	{
+		for (ConnectionToClient client : snapshot())
+			action.accept(client);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Returns the current connections, rebuilding the array if the set
+	 * changed since it was last built. The array must not be modified.
+	 */
+	ConnectionToClient[] snapshot()
+	{
+		// Every change counted is already in the set when it is copied
+		long count = changes.get();
+		Snapshot current = snapshot;
+		if (current.changes == count)
+			return current.clients;
+
+		ConnectionToClient[] copy = clients.toArray(NO_CLIENTS);
+		snapshot = new Snapshot(count, copy);
+		return copy;
+	}
+
+	/**
+	 * Adds a connection to the registry.
+	 *
+	 * @param client the connection.
+	 * @return false if the connection was already registered.
+	 */
+	boolean add(ConnectionToClient client)
+	{
+		if (!clients.add(client))
+			return false;
+
+		changes.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes a connection from the registry.
+	 *
+	 * @param client the connection.
+	 * @return false if the connection was not registered.
+	 */
+	boolean remove(ConnectionToClient client)
+	{
+		if (!clients.remove(client))
+			return false;
+
+		changes.incrementAndGet();
+		return true;
+	}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * An array of the connections, and the number of changes it includes.
+	 */
+	private static final class Snapshot
+	{
+		final long changes;
+		final ConnectionToClient[] clients;
+
+		Snapshot(long changes, ConnectionToClient[] clients)
+		{
+			this.changes = changes;
+			this.clients = clients;
+		}
+	}
+}
+// End of ClientRegistry class
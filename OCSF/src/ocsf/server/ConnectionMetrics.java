@@ -0,0 +1,169 @@
+package ocsf.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * The <code> ConnectionMetrics </code> class counts the messages and bytes
+ * exchanged with one client. Every count is also added to the
+ * <code> ServerMetrics </code> of the server, so that the server-wide
+ * figures are kept without visiting the connections. Bytes are counted as
+ * they are read from and written to the socket, whatever the protocol of
+ * the client.<p>
+ *
+ * The counters are striped: updating them takes no lock, and the threads
+ * reading from and writing to the client do not contend on them.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.ConnectionToClient#getMetrics()
+ * @see ocsf.server.ServerMetrics
+ */
+public final class ConnectionMetrics implements ConnectionMetricsMBean
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connection counted.
+	 */
+	private final ConnectionToClient client;
+
+	/**
+	 * The metrics of the server, which every count is added to.
+	 */
+	private final ServerMetrics serverMetrics;
+
+	/**
+	 * When the connection was accepted, in milliseconds since the epoch.
+	 */
+	private final long connectedSince = System.currentTimeMillis();
+
+	private final LongAdder messagesReceived = new LongAdder();
+
+	private final LongAdder bytesReceived = new LongAdder();
+
+	private final LongAdder messagesSent = new LongAdder();
+
+	private final LongAdder bytesSent = new LongAdder();
+
+	/**
+	 * The name under which the connection is registered as an MBean, null
+	 * when it is not.
+	 */
+	private volatile ObjectName objectName;
+
+	// CONSTRUCTORS *****************************************************
+
+	ConnectionMetrics(ConnectionToClient client, ServerMetrics serverMetrics)
+	{
+		this.client = client;
+		this.serverMetrics = serverMetrics;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public String getAddress()
+	{
+		InetAddress address = client.getInetAddress();
+		return address == null ? null : address.getHostAddress();
+	}
+
+	public long getConnectedSince()
+	{
+		return connectedSince;
+	}
+
+	public long getMessagesReceived()
+	{
+		return messagesReceived.sum();
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived.sum();
+	}
+
+	public long getMessagesSent()
+	{
+		return messagesSent.sum();
+	}
+
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+
+	public int getQueuedMessages()
+	{
+		return client.getOutboundQueueSize();
+	}
+
+	public long getDroppedMessages()
+	{
+		return client.getDroppedMessages();
+	}
+
+	/**
+	 * Returns a one line summary of the counts.
+	 *
+	 * @return the summary.
+	 */
+	public String toString()
+	{
+		return "in " + getMessagesReceived() + " msgs/" + getBytesReceived()
+			+ " bytes, out " + getMessagesSent() + " msgs/" + getBytesSent()
+			+ " bytes, queued " + getQueuedMessages()
+			+ ", dropped " + getDroppedMessages();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Counts a message received from the client.
+	 */
+	void messageReceived()
+	{
+		messagesReceived.increment();
+		serverMetrics.messageReceived();
+	}
+
+	/**
+	 * Counts bytes read from the client.
+	 */
+	void bytesReceived(long count)
+	{
+		bytesReceived.add(count);
+		serverMetrics.bytesReceived(count);
+	}
+
+	/**
+	 * Counts a message written to the client.
+	 */
+	void messageSent()
+	{
+		messagesSent.increment();
+		serverMetrics.messageSent();
+	}
+
+	/**
+	 * Counts bytes written to the client.
+	 */
+	void bytesSent(long count)
+	{
+		bytesSent.add(count);
+		serverMetrics.bytesSent(count);
+	}
+
+	ObjectName getObjectName()
+	{
+		return objectName;
+	}
+
+	void setObjectName(ObjectName objectName)
+	{
+		this.objectName = objectName;
+	}
+}
+// End of ConnectionMetrics class
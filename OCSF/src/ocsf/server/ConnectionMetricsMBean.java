@@ -0,0 +1,74 @@
+package ocsf.server;
+
+/**
+ * The management interface of the <code> ConnectionMetrics </code> of a
+ * client. When the server publishes connection MBeans, it is registered
+ * with the platform MBean server under the name
+ * <code> ocsf:type=Connection,port=<i>port</i>,name=<i>name</i> </code>
+ * while the client is connected.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.ConnectionMetrics
+ * @see ocsf.server.AbstractServer#setConnectionMBeans(boolean)
+ */
+public interface ConnectionMetricsMBean
+{
+	/**
+	 * Returns the address of the client.
+	 *
+	 * @return the address, or null once the connection is closed.
+	 */
+	String getAddress();
+
+	/**
+	 * Returns when the connection was accepted.
+	 *
+	 * @return the time of connection, in milliseconds since the epoch.
+	 */
+	long getConnectedSince();
+
+	/**
+	 * Returns the number of messages received from the client.
+	 *
+	 * @return the number of messages received.
+	 */
+	long getMessagesReceived();
+
+	/**
+	 * Returns the number of bytes read from the client.
+	 *
+	 * @return the number of bytes read.
+	 */
+	long getBytesReceived();
+
+	/**
+	 * Returns the number of messages written to the client.
+	 *
+	 * @return the number of messages written.
+	 */
+	long getMessagesSent();
+
+	/**
+	 * Returns the number of bytes written to the client.
+	 *
+	 * @return the number of bytes written.
+	 */
+	long getBytesSent();
+
+	/**
+	 * Returns the number of messages waiting in the outbound queue.
+	 *
+	 * @return the number of queued messages.
+	 */
+	int getQueuedMessages();
+
+	/**
+	 * Returns the number of messages to the client discarded because its
+	 * outbound queue was full.
+	 *
+	 * @return the number of discarded messages.
+	 */
+	long getDroppedMessages();
+}
+// End of ConnectionMetricsMBean interface
@@ -5,7 +5,16 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.common.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -14,6 +23,40 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * The protocol of the connection is recognised from the first bytes sent by
+ * the client: either the legacy object stream, or length-prefixed frames
+ * encoded with the <code>MessageCodec</code> named in the client's handshake.
+ * A connection is either served by its own thread, reading with blocking
+ * calls, or by a <code>SelectorLoop</code> of the selector based engine,
+ * reading frames from a non-blocking channel. A legacy client accepted by the
+ * selector engine is handed over to its own thread once its protocol has been
+ * recognised.
+ * <p>
+ * When the server uses virtual threads, this object is never started as a
+ * thread itself: its <code>run</code> method is executed by a virtual thread
+ * instead.
+ * <p>
+ * Messages to the client go through a bounded outbound queue. A message is
+ * written right away when nothing is queued before it; otherwise it waits in
+ * the queue until the event loop or a writer thread of the server gets to it,
+ * so that a client reading slowly never holds up the sender. When the queue
+ * is full, the <code>OverflowPolicy</code> of the server decides what
+ * happens.
+ * <p>
+ * The messages and bytes exchanged with the client are counted by its
+ * <code>ConnectionMetrics</code>.
+ * <p>
+ * When the server has a heartbeat interval or an idle timeout, a connection
+ * using a codec is checked on the shared <code>TimingWheel</code>: a client
+ * that has sent nothing for the heartbeat interval is pinged, and one that
+ * has sent nothing, not even a pong, for the idle timeout is disconnected.
+ * The legacy object stream cannot carry pings, so it is never checked.
+ * <p>
+ * When the server has a rate limit, every message from the client is
+ * measured against it before it is decoded, with a token bucket for
+ * messages and one for bytes, and the <code>RateLimitPolicy</code> of the
+ * server decides what happens to a message over the limit.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -47,26 +90,210 @@ public class ConnectionToClient extends Thread {
 	/**
 	 * Stream used to write to the client.
 	 */
-	private ObjectOutputStream output;
+	private BoundedObjectOutputStream output;
+
+	/**
+	 * The codec selected by the client, or null if the client uses the
+	 * legacy object stream.
+	 */
+	private MessageCodec codec;
+
+	/**
+	 * Stream used to read frames from the client when it is served by its
+	 * own thread and uses a codec.
+	 */
+	private DataInputStream frameInput;
+
+	/**
+	 * Stream used to write frames to the client when it is served by its
+	 * own thread and uses a codec.
+	 */
+	private DataOutputStream frameOutput;
 
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean readyToStop;
+	private volatile boolean readyToStop;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * client. Used by the setInfo and getInfo methods for names that are not
+	 * those of an <code>AttributeKey</code>. Also the lock taken to change an
+	 * attribute.
+	 */
+	private final ConcurrentHashMap<String, Object> savedInfo = new ConcurrentHashMap<String, Object>(10);
+
+	/**
+	 * The attributes of the client, indexed by the slot of their key. The array
+	 * is replaced by a longer one when a key created after the connection is
+	 * set; elements are only changed while holding the lock of savedInfo.
+	 */
+	private volatile AtomicReferenceArray<Object> attributes = new AtomicReferenceArray<Object>(
+			AttributeKey.slotCount());
+
+	/**
+	 * The initial size of the buffer receiving bytes from a non-blocking
+	 * channel. The buffer grows as needed to hold a complete frame.
+	 */
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	/**
+	 * The largest number of queued frames written to a non-blocking channel
+	 * with a single gathering write.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * The non-blocking channel of a connection served by the selector engine,
+	 * null for connections served by their own thread.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The event loop serving this connection, null when the connection is
+	 * served by its own thread.
+	 */
+	private SelectorLoop selectorLoop;
+
+	/**
+	 * The registration of the channel with the selector of the loop.
+	 */
+	private SelectionKey selectionKey;
+
+	/**
+	 * Bytes received from the channel and not yet decoded.
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * Messages waiting to be written to the client: encoded frames, or
+	 * objects waiting for the writer of the legacy object stream. Also used
+	 * as the lock ordering writes to the client.
+	 */
+	private final ArrayDeque<Object> outboundQueue = new ArrayDeque<Object>();
+
+	/**
+	 * Indicates if a thread is writing queued messages to the streams of a
+	 * connection served by its own thread. Only that thread writes to them.
+	 */
+	private boolean draining = false;
+
+	/**
+	 * Indicates if messages written to the streams have not been flushed
+	 * yet. Only the thread owning the streams uses it.
+	 */
+	private boolean unflushed = false;
+
+	/**
+	 * When the oldest message not yet flushed was written, as given by
+	 * <code>System.nanoTime</code>.
+	 */
+	private long unflushedSince;
+
+	/**
+	 * The number of bytes in the frames of the outbound queue.
+	 */
+	private long queuedBytes = 0;
+
+	/**
+	 * Indicates if the event loop has been asked to write the queue when
+	 * the channel is writable.
+	 */
+	private boolean writeRequested = false;
+
+	/**
+	 * Indicates if the event loop will write the queue once the flush delay
+	 * of the server has elapsed.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * The flight recorder event timing how long the channel has been full,
+	 * while the event loop waits for it to become writable and a recording
+	 * is running.
 	 */
-	private HashMap<String, Object> savedInfo	= new HashMap <String, Object>	(10);
+	private ServerEvents.SendStall writeStall;
+
+	/**
+	 * The frames passed to a gathering write.
+	 */
+	private ByteBuffer[] gather;
+
+	/**
+	 * The number of messages to this client discarded because its outbound
+	 * queue was full.
+	 */
+	private long droppedMessages = 0;
+
+	/**
+	 * Counts the messages and bytes exchanged with the client.
+	 */
+	private final ConnectionMetrics metrics;
+
+	/**
+	 * When bytes were last received from the client, as given by
+	 * <code>System.nanoTime</code>.
+	 */
+	private volatile long lastReceived = System.nanoTime();
+
+	/**
+	 * The next check of the liveness of the client on the timing wheel, or
+	 * null if the connection is not checked.
+	 */
+	private volatile TimingWheel.Timeout idleCheck;
+
+	/**
+	 * The messages and bytes the client may still send within the rate
+	 * limit of the server. Only the thread reading from the client uses
+	 * them.
+	 */
+	private final TokenBucket messageTokens = new TokenBucket();
+	private final TokenBucket byteTokens = new TokenBucket();
+
+	/**
+	 * When <code>clientRateLimited</code> was last called for the client,
+	 * as given by <code>System.nanoTime</code>, if it was.
+	 */
+	private boolean rateLimitReported = false;
+	private long rateLimitReportedAt;
+
+	/**
+	 * Indicates if the event loop stopped reading from the channel until
+	 * the client is back within the rate limit.
+	 */
+	private boolean readPaused = false;
+
+	/**
+	 * The shortest time, in nanoseconds, between two calls to
+	 * <code>clientRateLimited</code> for the same client.
+	 */
+	private static final long RATE_LIMIT_REPORT_INTERVAL = 1000000000L;
+
+	/**
+	 * Result of <code>enqueue</code>: the message was queued.
+	 */
+	private static final int QUEUED = 0;
+
+	/**
+	 * Result of <code>enqueue</code>: the message was discarded.
+	 */
+	private static final int DROPPED = 1;
+
+	/**
+	 * Result of <code>enqueue</code>: the queue is full and the connection
+	 * must be closed.
+	 */
+	private static final int OVERFLOWED = 2;
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client, served by its own thread. The
+	 * thread reads the protocol announced by the client before the
+	 * connection is reported to the server.
 	 * 
 	 * @param group
 	 *            the thread groupSystem.out.println("Client at "+ client +
@@ -83,30 +310,53 @@ public class ConnectionToClient extends Thread {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.metrics = new ConnectionMetrics(this, server.getMetrics());
 
 		clientSocket.setSoTimeout(0); // make sure timeout is infinite
+		clientSocket.setTcpNoDelay(true); // writes are already coalesced
 
-		// Initialize the objects streams
-		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-		} catch (IOException ex) {
-			try {
-				closeAll();
-			} catch (Exception exc) {
-			}
-
-			throw ex; // Rethrow the exception.
-		}
+		readyToStop = false;
+		startReader(); // Start the thread waits for data from the socket
+	}
 
+	/**
+	 * Constructs a new connection served by an event loop of the selector
+	 * engine. The connection is not reported to the server until the client
+	 * has announced its protocol.
+	 * 
+	 * @param group
+	 *            the thread group that contains the connections.
+	 * @param channel
+	 *            the accepted channel, already in non-blocking mode.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @param selectorLoop
+	 *            the event loop that serves the channel.
+	 */
+	ConnectionToClient(ThreadGroup group, SocketChannel channel, AbstractServer server,
+			SelectorLoop selectorLoop) {
+		super(group, (Runnable) null);
+		this.channel = channel;
+		this.clientSocket = channel.socket();
+		this.server = server;
+		this.metrics = new ConnectionMetrics(this, server.getMetrics());
+		this.selectorLoop = selectorLoop;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.gather = new ByteBuffer[MAX_GATHER];
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. With a connection served by its own
+	 * thread, the object is written on the calling thread unless messages are
+	 * already queued for the client, in which case it is queued behind them.
+	 * With the selector engine, whatever cannot be written without blocking
+	 * is queued. When the server has a flush delay, the message may still be
+	 * waiting for others to share its write when this method returns. The
+	 * message may be an <code>EncodedMessage</code>, in which case its
+	 * shared encoding is used.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
@@ -114,10 +364,110 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when sending the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		if (selectorLoop != null) {
+			offerToClient(msg);
+			return;
+		}
 
-		output.writeObject(msg);
+		Object item = outboundItem(msg);
+		int result;
+		synchronized (outboundQueue) {
+			if (clientSocket == null || (output == null && frameOutput == null))
+				throw new SocketException("socket does not exist");
+
+			if (draining) {
+				result = enqueue(item, true);
+			} else {
+				// This thread now owns the stream
+				draining = true;
+				result = -1;
+			}
+		}
+
+		if (result == OVERFLOWED)
+			overflowed();
+		if (result != -1)
+			return;
+
+		try {
+			writeItem(item);
+		} catch (IOException ex) {
+			synchronized (outboundQueue) {
+				draining = false;
+			}
+			throw ex;
+		}
+		handOffDraining();
+	}
+
+	/**
+	 * Queues an object to be sent to the client and returns without waiting
+	 * for it to be written. This is how <code>sendToAllClients</code> reaches
+	 * every client, so that one slow client does not delay the others. The
+	 * message may be an <code>EncodedMessage</code>, in which case its shared
+	 * encoding is used.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @return false if the message was discarded, or the connection closed,
+	 *         because the outbound queue is full.
+	 * @exception IOException
+	 *                if the connection is closed or the message cannot be
+	 *                encoded.
+	 */
+	final public boolean offerToClient(Object msg) throws IOException {
+		return offerItem(outboundItem(msg), true);
+	}
+
+	/**
+	 * Queues a message, or its encoded frame, to be sent to the client,
+	 * writing it right away when the event loop serves the connection and
+	 * nothing is queued before it.
+	 * 
+	 * @param item
+	 *            the message, or its encoded frame.
+	 * @param bounded
+	 *            false for a control frame, which is queued even if the
+	 *            queue is full.
+	 * @return false if the message was discarded, or the connection closed,
+	 *         because the outbound queue is full.
+	 * @exception IOException
+	 *                if the connection is closed.
+	 */
+	private boolean offerItem(Object item, boolean bounded) throws IOException {
+		int result;
+		boolean startWriter = false;
+
+		synchronized (outboundQueue) {
+			if (clientSocket == null || (channel == null && output == null && frameOutput == null))
+				throw new SocketException("socket does not exist");
+
+			if (selectorLoop != null && outboundQueue.isEmpty() && server.getFlushDelay() == 0) {
+				ByteBuffer buffer = (ByteBuffer) item;
+				metrics.bytesSent(channel.write(buffer));
+				if (!buffer.hasRemaining()) {
+					metrics.messageSent();
+					return true;
+				}
+			}
+
+			result = enqueue(item, bounded);
+			if (result == QUEUED) {
+				if (selectorLoop != null) {
+					requestWrite();
+				} else if (!draining) {
+					draining = true;
+					startWriter = true;
+				}
+			}
+		}
+
+		// Closing takes the server lock, so it is done outside the queue lock
+		if (result == OVERFLOWED)
+			overflowed();
+		if (startWriter)
+			server.startOutboundWriter(outboundWriter);
+		return result == QUEUED;
 	}
 
 
@@ -132,7 +482,7 @@ public class ConnectionToClient extends Thread {
 		readyToStop = true; // Set the flag that tells the thread to stop
 
 		try {
-			closeAll();
+			closeAll(DisconnectReason.CLOSED);
 		} finally {
 			server.clientDisconnected(this);
 		}
@@ -140,6 +490,17 @@ public class ConnectionToClient extends Thread {
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Tells if the connection is still open. Whatever the server engine,
+	 * a connection closed by any thread, or being closed, is no longer
+	 * connected.
+	 * 
+	 * @return true until the connection is closed.
+	 */
+	final public boolean isConnected() {
+		return !readyToStop;
+	}
+
 	/**
 	 * Returns the address of the client.
 	 * 
@@ -161,26 +522,144 @@ public class ConnectionToClient extends Thread {
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a hash map, unless the
+	 * type of information is the name of an <code>AttributeKey</code>, in which
+	 * case the attribute of the key is set.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 * @param info
-	 *            the information itself.
+	 *            the information itself, or null to forget it.
+	 * @exception ClassCastException
+	 *                if the information does not suit the type of the key
+	 *                with that name.
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		AttributeKey<?> key = AttributeKey.forName(infoType);
+		if (key != null) {
+			putAttribute(key.getSlot(), key.getType().cast(info));
+		} else if (info == null) {
+			savedInfo.remove(infoType);
+		} else {
+			savedInfo.put(infoType, info);
+		}
 	}
 
 	/**
 	 * Returns information about the client saved using setInfo. Based on a hash
-	 * map.
+	 * map, unless the type of information is the name of an
+	 * <code>AttributeKey</code>, in which case the attribute of the key is
+	 * returned.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 */
 	public Object getInfo(String infoType) {
-		return savedInfo.get(infoType);
+		AttributeKey<?> key = AttributeKey.forName(infoType);
+		return key != null ? getAttribute(key) : savedInfo.get(infoType);
+	}
+
+	/**
+	 * Returns an attribute of the client. Takes no lock and allocates nothing,
+	 * so it may be called for every message.
+	 * 
+	 * @param key
+	 *            identifies the attribute.
+	 * @return the value of the attribute, or null if it is not set.
+	 */
+	@SuppressWarnings("unchecked")
+	public final <T> T getAttribute(AttributeKey<T> key) {
+		AtomicReferenceArray<Object> values = attributes;
+		int slot = key.getSlot();
+		return slot < values.length() ? (T) values.get(slot) : null;
+	}
+
+	/**
+	 * Sets an attribute of the client. The value is safely published: any
+	 * thread reading the attribute afterwards sees it.
+	 * 
+	 * @param key
+	 *            identifies the attribute.
+	 * @param value
+	 *            the value of the attribute, or null to clear it.
+	 */
+	public final <T> void setAttribute(AttributeKey<T> key, T value) {
+		putAttribute(key.getSlot(), value);
+	}
+
+	/**
+	 * Stores the value of an attribute in its slot, first making room for
+	 * the slot if its key was created after the connection.
+	 */
+	private void putAttribute(int slot, Object value) {
+		synchronized (savedInfo) {
+			AtomicReferenceArray<Object> values = attributes;
+			if (slot >= values.length()) {
+				AtomicReferenceArray<Object> grown = new AtomicReferenceArray<Object>(
+						Math.max(slot + 1, AttributeKey.slotCount()));
+				for (int i = 0; i < values.length(); i++)
+					grown.set(i, values.get(i));
+				values = grown;
+				attributes = grown;
+			}
+			values.set(slot, value);
+		}
+	}
+
+	/**
+	 * Returns the number of messages written to the legacy object stream
+	 * since it was last reset, each of which the stream may still hold a
+	 * reference to. Always zero for clients using a codec.
+	 * 
+	 * @return the number of messages retained by the stream.
+	 */
+	final public int getStreamRetainedMessages() {
+		BoundedObjectOutputStream output = this.output;
+		return output == null ? 0 : output.getRetainedMessages();
+	}
+
+	/**
+	 * Returns the number of bytes written to the legacy object stream since
+	 * it was last reset. Always zero for clients using a codec.
+	 * 
+	 * @return the number of bytes written since the last reset.
+	 */
+	final public long getStreamRetainedBytes() {
+		BoundedObjectOutputStream output = this.output;
+		return output == null ? 0 : output.getRetainedBytes();
+	}
+
+	/**
+	 * Returns the number of messages waiting in the outbound queue.
+	 * 
+	 * @return the number of queued messages.
+	 */
+	final public int getOutboundQueueSize() {
+		synchronized (outboundQueue) {
+			return outboundQueue.size();
+		}
+	}
+
+	/**
+	 * Returns the counts of the messages and bytes exchanged with the
+	 * client.
+	 * 
+	 * @return the metrics of the connection.
+	 */
+	final public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the number of messages to this client that were discarded
+	 * because its outbound queue was full.
+	 * 
+	 * @return the number of discarded messages.
+	 */
+	final public long getDroppedMessages() {
+		synchronized (outboundQueue) {
+			return droppedMessages;
+		}
 	}
 
 	// RUN METHOD -------------------------------------------------------
@@ -190,24 +669,61 @@ public class ConnectionToClient extends Thread {
 	 * read to the server. Not to be called.
 	 */
 	final public void run() {
-		server.clientConnected(this);
+		if (input == null && frameInput == null) {
+			try {
+				if (!openStreams())
+					return;
+			} catch (Exception exception) {
+				connectionFailed(exception);
+				return;
+			}
+		}
+		startIdleCheck();
+		server.connectionEstablished(this);
 
 		// This loop reads the input stream and responds to messages
 		// from clients
 		try {
-			// The message from the client
+			// The message from the client, the size of its frame, and how
+			// long to wait for the client to be back within the rate limit
 			Object msg;
+			int size;
+			long wait;
 
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+				if (codec != null) {
+					size = frameInput.readInt();
+					if (Framing.isControl(size)) {
+						controlReceived(size);
+						continue;
+					}
+					Framing.checkLength(size);
+					byte[] payload = new byte[size];
+					frameInput.readFully(payload);
+					wait = rateLimit(size);
+					if (wait < 0)
+						continue;
+					msg = codec.decode(payload, 0, size);
+				} else {
+					size = -1;
+					msg = input.readObject();
+					wait = rateLimit(size);
+					if (wait < 0)
+						continue;
+				}
+				server.receiveMessageFromClient(msg, size, this);
+
+				// The client waits in the socket buffers meanwhile
+				long resume = System.nanoTime() + wait;
+				while (wait > 0 && !readyToStop && (wait = resume - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
 				try {
-					closeAll();
+					closeAll(reasonFor(exception));
 				} catch (Exception ex) {
 				}
 
@@ -218,13 +734,791 @@ public class ConnectionToClient extends Thread {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Registers the connection with the server, or notes that it waits for
+	 * the protocol of its client, then starts the loop reading from the
+	 * socket, either by starting this thread or, if the server uses virtual
+	 * threads, by running this connection on a new virtual thread. A
+	 * connection on a virtual thread is not a member of the thread group, so
+	 * its uncaught exceptions are routed to the server explicitly.
+	 */
+	private void startReader() {
+		if (input != null || frameInput != null)
+			server.registerClient(this);
+		else
+			server.handshakeStarted(this);
+		if (!server.usesVirtualThreads()) {
+			start();
+			return;
+		}
+
+		Thread.ofVirtual().name(getName()).uncaughtExceptionHandler(new UncaughtExceptionHandler() {
+			public void uncaughtException(Thread thread, Throwable exception) {
+				readLoopFailed(exception);
+			}
+		}).start(this);
+	}
+
+	/**
+	 * Reads the protocol announced by the client, opens the matching streams
+	 * and registers the connection with the server. Runs on the thread of the
+	 * connection, so that a slow or silent client only holds up itself.
+	 * 
+	 * @return false if the connection was closed meanwhile.
+	 * @exception IOException
+	 *                if the socket fails or the protocol is unknown.
+	 */
+	private boolean openStreams() throws IOException {
+		Socket socket = clientSocket;
+		if (socket == null)
+			return false;
+
+		InputStream socketInput = new BufferedInputStream(new CountingInputStream(socket.getInputStream()));
+		DataInputStream handshake = new DataInputStream(socketInput);
+		socketInput.mark(Framing.HANDSHAKE_LENGTH);
+		if (handshake.readInt() == Framing.MAGIC) {
+			codec = Framing.getCodec(handshake.readUnsignedByte());
+			frameInput = handshake;
+			frameOutput = server.createFrameOutput(new CountingOutputStream(socket.getOutputStream()));
+		} else {
+			socketInput.reset();
+			input = new ObjectInputStream(socketInput);
+			output = server.createObjectOutput(new CountingOutputStream(socket.getOutputStream()));
+		}
+
+		// A connection closed with the server while registering is removed
+		// again by whichever side sees the other second
+		server.registerClient(this);
+		if (readyToStop) {
+			server.unregisterClient(this, DisconnectReason.CLOSED);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes a connection whose client has not announced its protocol yet.
+	 * The server was not told of the connection, so
+	 * <code>clientDisconnected</code> is not called.
+	 */
+	void abandon() {
+		readyToStop = true;
+		try {
+			closeAll(DisconnectReason.CLOSED);
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * Called with an exception that escaped the read loop. The connection is
+	 * closed, so that it no longer counts as a client, before the exception
+	 * is reported to the server.
+	 * 
+	 * @param exception
+	 *            the uncaught exception.
+	 */
+	void readLoopFailed(Throwable exception) {
+		try {
+			closeAll(DisconnectReason.ERROR);
+		} catch (Exception ex) {
+		}
+
+		server.clientException(this, exception);
+	}
+
+	/**
+	 * Returns the protocol of the client: the class of its codec, or the
+	 * legacy object stream.
+	 */
+	String getProtocol() {
+		return codec != null ? codec.getClass().getSimpleName() : "object stream";
+	}
+
+	/**
+	 * Returns the non-blocking channel of the connection.
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Records the registration of the channel with its event loop.
+	 */
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+
+	/**
+	 * Returns what to queue for a message: its frame, sharing the encoding of
+	 * an <code>EncodedMessage</code>, or the object itself for the legacy
+	 * object stream.
+	 * 
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	private Object outboundItem(Object msg) throws IOException {
+		if (codec == null)
+			return msg instanceof EncodedMessage ? ((EncodedMessage) msg).getMessage() : msg;
+
+		if (msg instanceof EncodedMessage)
+			return ((EncodedMessage) msg).frame(codec);
+
+		return ByteBuffer.wrap(Framing.encode(msg, codec));
+	}
+
+	/**
+	 * Writes a queued item to the client with a blocking call. Only the thread
+	 * owning the streams may call this method.
+	 * 
+	 * @exception IOException
+	 *                if writing to the client fails.
+	 */
+	private void writeItem(Object item) throws IOException {
+		DataOutputStream frameOutput = this.frameOutput;
+		BoundedObjectOutputStream output = this.output;
+
+		if (frameOutput != null) {
+			// Frames are always backed by an array, shared for broadcasts
+			ByteBuffer frame = (ByteBuffer) item;
+			frameOutput.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		} else if (output != null) {
+			output.writeMessage(item);
+		} else {
+			throw new SocketException("socket does not exist");
+		}
+		metrics.messageSent();
+
+		if (!unflushed) {
+			unflushed = true;
+			unflushedSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Writes the buffered messages to the socket. Only the thread owning
+	 * the streams may call this method.
+	 * 
+	 * @exception IOException
+	 *                if writing to the client fails.
+	 */
+	private void flushOutput() throws IOException {
+		DataOutputStream frameOutput = this.frameOutput;
+		BoundedObjectOutputStream output = this.output;
+
+		if (frameOutput != null)
+			frameOutput.flush();
+		else if (output != null)
+			output.flush();
+		unflushed = false;
+	}
+
+	/**
+	 * Removes the message at the head of the outbound queue. Must be called
+	 * holding the queue lock.
+	 */
+	private Object pollItem() {
+		Object item = outboundQueue.poll();
+		if (item instanceof ByteBuffer)
+			queuedBytes -= ((ByteBuffer) item).remaining();
+		return item;
+	}
+
+	/**
+	 * Adds a message to the outbound queue, applying the overflow policy of
+	 * the server if the queue is full. Must be called holding the queue lock.
+	 * 
+	 * @param item
+	 *            the message, or its encoded frame.
+	 * @param bounded
+	 *            false to queue the item even if the queue is full.
+	 * @return QUEUED, DROPPED or OVERFLOWED.
+	 */
+	private int enqueue(Object item, boolean bounded) {
+		if (bounded && outboundQueue.size() >= server.getOutboundQueueLimit()) {
+			switch (server.getOverflowPolicy()) {
+			case DROP_NEWEST:
+				messageDropped();
+				return DROPPED;
+			case DROP_OLDEST:
+				// A frame partly written must stay at the head of the queue
+				Object head = pollItem();
+				if (head instanceof ByteBuffer && ((ByteBuffer) head).position() > 0) {
+					pollItem();
+					outboundQueue.addFirst(head);
+					queuedBytes += ((ByteBuffer) head).remaining();
+				}
+				messageDropped();
+				break;
+			default:
+				return OVERFLOWED;
+			}
+		}
+
+		outboundQueue.add(item);
+		if (item instanceof ByteBuffer)
+			queuedBytes += ((ByteBuffer) item).remaining();
+		return QUEUED;
+	}
+
+	/**
+	 * Counts a discarded message for this client and for the server.
+	 */
+	private void messageDropped() {
+		droppedMessages++;
+		server.messageDropped();
+	}
+
+	/**
+	 * Closes the connection with a client whose outbound queue overflowed,
+	 * as required by the <code>DISCONNECT</code> policy.
+	 */
+	private void overflowed() {
+		connectionFailed(new IOException("outbound queue overflow: client too slow"),
+				DisconnectReason.SLOW_CONSUMER);
+	}
+
+	/**
+	 * Gives up ownership of the streams after a write on the calling
+	 * thread. The message is flushed unless the server has a flush delay, in
+	 * which case ownership passes to a writer thread of the server, as it
+	 * does if messages were queued in the meantime.
+	 * 
+	 * @exception IOException
+	 *                if flushing to the client fails.
+	 */
+	private void handOffDraining() throws IOException {
+		if (server.getFlushDelay() == 0) {
+			try {
+				flushOutput();
+			} catch (IOException ex) {
+				synchronized (outboundQueue) {
+					draining = false;
+				}
+				throw ex;
+			}
+
+			synchronized (outboundQueue) {
+				if (outboundQueue.isEmpty() || clientSocket == null) {
+					draining = false;
+					return;
+				}
+			}
+		}
+		server.startOutboundWriter(outboundWriter);
+	}
+
+	/**
+	 * Writes the messages queued for the streams until the queue is
+	 * empty, flushing them as the flush policy of the server requires, then
+	 * gives up ownership of the streams. Run by a writer thread of the server
+	 * once <code>draining</code> has been set for it.
+	 */
+	private final Runnable outboundWriter = new Runnable() {
+		public void run() {
+			try {
+				while (true) {
+					Object item;
+					synchronized (outboundQueue) {
+						item = pollItem();
+						if ((item == null && !unflushed) || clientSocket == null) {
+							draining = false;
+							return;
+						}
+					}
+
+					long delay = server.getFlushDelay();
+					if (item != null) {
+						writeItem(item);
+						// Keep buffering until the oldest message has waited long enough
+						if (delay == 0 || System.nanoTime() - unflushedSince < delay)
+							continue;
+					} else {
+						// Give other messages a chance to share the write
+						long wait = delay - (System.nanoTime() - unflushedSince);
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+							continue;
+						}
+					}
+					flushOutput();
+				}
+			} catch (Exception ex) {
+				synchronized (outboundQueue) {
+					draining = false;
+				}
+				connectionFailed(ex);
+			}
+		}
+	};
+
+	/**
+	 * Called by the event loop when the channel can accept more bytes.
+	 * 
+	 * @exception IOException
+	 *                if the write fails.
+	 */
+	void channelWritable() throws IOException {
+		synchronized (outboundQueue) {
+			if (writeQueued()) {
+				writeRequested = false;
+				selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+
+				ServerEvents.SendStall stall = writeStall;
+				writeStall = null;
+				if (stall != null) {
+					stall.end();
+					if (stall.shouldCommit()) {
+						stall.connection = getName();
+						stall.commit();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the channel accepts without
+	 * blocking, several frames at a time. Must be called holding the queue
+	 * lock.
+	 * 
+	 * @return true if the queue was emptied.
+	 * @exception IOException
+	 *                if the write fails.
+	 */
+	private boolean writeQueued() throws IOException {
+		while (!outboundQueue.isEmpty()) {
+			int count = 0;
+			for (Object item : outboundQueue) {
+				gather[count++] = (ByteBuffer) item;
+				if (count == MAX_GATHER)
+					break;
+			}
+
+			long written = channel.write(gather, 0, count);
+			queuedBytes -= written;
+			metrics.bytesSent(written);
+			ByteBuffer last = gather[count - 1];
+			Arrays.fill(gather, 0, count, null);
+
+			while (!outboundQueue.isEmpty() && !((ByteBuffer) outboundQueue.peek()).hasRemaining()) {
+				outboundQueue.poll();
+				metrics.messageSent();
+			}
+			if (last.hasRemaining())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Asks the event loop to write the outbound queue: as soon as the
+	 * channel is writable if the server has no flush delay or enough bytes
+	 * are queued, otherwise once the delay has elapsed. Must be called
+	 * holding the queue lock.
+	 */
+	private void requestWrite() {
+		if (writeRequested)
+			return;
+
+		long delay = server.getFlushDelay();
+		if (delay == 0 || queuedBytes >= server.getFlushBytes()) {
+			awaitWritable();
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			selectorLoop.schedule(scheduledFlush, delay);
+		}
+	}
+
+	/**
+	 * Asks the event loop to write the outbound queue as soon as the channel
+	 * is writable, and starts timing the wait if a recording is running. Must
+	 * be called holding the queue lock.
+	 */
+	private void awaitWritable() {
+		writeRequested = true;
+		selectionKey.interestOpsOr(SelectionKey.OP_WRITE);
+		if (!selectorLoop.inLoop())
+			selectionKey.selector().wakeup();
+
+		ServerEvents.SendStall stall = new ServerEvents.SendStall();
+		if (stall.isEnabled()) {
+			stall.begin();
+			stall.bytes = queuedBytes;
+			writeStall = stall;
+		}
+	}
+
+	/**
+	 * Writes the frames that waited for the flush delay of the server. Run
+	 * by the event loop.
+	 */
+	private final Runnable scheduledFlush = new Runnable() {
+		public void run() {
+			try {
+				synchronized (outboundQueue) {
+					flushScheduled = false;
+					if (writeRequested || channel == null)
+						return;
+
+					if (!writeQueued())
+						awaitWritable();
+				}
+			} catch (Exception ex) {
+				connectionFailed(ex);
+			}
+		}
+	};
+
+	/**
+	 * Called by the event loop when bytes are available on the channel.
+	 * Every complete frame received is sent to the server for handling.
+	 * 
+	 * @exception Exception
+	 *                if the channel fails, the client closed it, or a frame
+	 *                cannot be decoded.
+	 */
+	void channelReadable() throws Exception {
+		int read = channel.read(readBuffer);
+		if (read < 0)
+			throw new EOFException("connection closed by client");
+		metrics.bytesReceived(read);
+		lastReceived = System.nanoTime();
+
+		readBuffer.flip();
+		try {
+			if (codec == null) {
+				// A legacy client sends a four byte header, then waits for ours
+				if (readBuffer.remaining() < 4)
+					return;
+
+				int magic = readBuffer.getInt(readBuffer.position());
+				if (magic == Framing.MAGIC) {
+					if (readBuffer.remaining() < Framing.HANDSHAKE_LENGTH)
+						return;
+
+					codec = Framing.getCodec(readBuffer.get(readBuffer.position() + 4) & 0xff);
+					readBuffer.position(readBuffer.position() + Framing.HANDSHAKE_LENGTH);
+					server.registerClient(this);
+					startIdleCheck();
+					server.connectionEstablished(this);
+				} else if ((magic >>> 16) == Framing.STREAM_MAGIC) {
+					handOverToThread();
+					return;
+				} else {
+					throw new StreamCorruptedException("unknown protocol");
+				}
+			}
+
+			readFrames();
+		} finally {
+			if (readBuffer != null)
+				readBuffer.compact();
+		}
+	}
+
+	/**
+	 * Sends every complete frame of the read buffer to the server for
+	 * handling, unless reading is paused by the rate limit. The buffer must
+	 * be flipped for reading.
+	 * 
+	 * @exception Exception
+	 *                if a frame cannot be decoded.
+	 */
+	private void readFrames() throws Exception {
+		while (!readyToStop && !readPaused && readBuffer.remaining() >= 4) {
+			int length = readBuffer.getInt(readBuffer.position());
+			if (Framing.isControl(length)) {
+				readBuffer.position(readBuffer.position() + 4);
+				controlReceived(length);
+				continue;
+			}
+			Framing.checkLength(length);
+			if (readBuffer.remaining() < 4 + length) {
+				if (readBuffer.capacity() < 4 + length) {
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(readBuffer);
+					larger.flip();
+					readBuffer = larger;
+				}
+				break;
+			}
+
+			int start = readBuffer.position() + 4;
+			readBuffer.position(start + length);
+			long wait = rateLimit(length);
+			if (wait < 0)
+				continue;
+
+			Object msg = codec.decode(readBuffer.array(), start, length);
+			server.receiveMessageFromClient(msg, length, this);
+			if (wait > 0) {
+				// The client waits in the socket buffers meanwhile
+				readPaused = true;
+				selectionKey.interestOpsAnd(~SelectionKey.OP_READ);
+				selectorLoop.schedule(resumeReading, wait);
+			}
+		}
+	}
+
+	/**
+	 * Handles the frames left in the read buffer once the client is back
+	 * within the rate limit, then reads from the channel again. Run by the
+	 * event loop.
+	 */
+	private final Runnable resumeReading = new Runnable() {
+		public void run() {
+			try {
+				if (readyToStop || channel == null)
+					return;
+
+				readPaused = false;
+				readBuffer.flip();
+				try {
+					readFrames();
+				} finally {
+					readBuffer.compact();
+				}
+				if (!readPaused)
+					selectionKey.interestOpsOr(SelectionKey.OP_READ);
+			} catch (Exception ex) {
+				connectionFailed(ex);
+			}
+		}
+	};
+
+	/**
+	 * Applies the rate limit of the server to a message received from the
+	 * client, before it is decoded. Calls <code>clientRateLimited</code>
+	 * when the client goes over the limit, at most once a second.
+	 * 
+	 * @param size
+	 *            the size of the frame payload, or -1 for the legacy object
+	 *            stream, whose bytes are not limited.
+	 * @return -1 if the message must be discarded, otherwise how long, in
+	 *         nanoseconds, to stop reading from the client once the message
+	 *         is handled.
+	 */
+	private long rateLimit(int size) {
+		double messageRate = server.getMessageRate();
+		double byteRate = size >= 0 ? server.getByteRate() : 0;
+		if (messageRate == 0 && byteRate == 0)
+			return 0;
+
+		long now = System.nanoTime();
+		messageTokens.refill(messageRate, now);
+		byteTokens.refill(byteRate, now);
+		RateLimitPolicy policy = server.getRateLimitPolicy();
+		long wait = 0;
+		if (policy == RateLimitPolicy.DELAY) {
+			wait = Math.max(messageTokens.take(1, messageRate), byteTokens.take(size, byteRate));
+			if (wait == 0)
+				return 0;
+		} else if (messageTokens.allows(1, messageRate) && byteTokens.allows(size, byteRate)) {
+			messageTokens.take(1, messageRate);
+			byteTokens.take(size, byteRate);
+			return 0;
+		}
+
+		server.messageRateLimited();
+		if (policy == RateLimitPolicy.DISCONNECT) {
+			connectionFailed(new IOException("rate limit exceeded"), DisconnectReason.RATE_LIMITED);
+			return -1;
+		}
+
+		if (!rateLimitReported || now - rateLimitReportedAt >= RATE_LIMIT_REPORT_INTERVAL) {
+			rateLimitReported = true;
+			rateLimitReportedAt = now;
+			server.clientRateLimited(this);
+		}
+		return policy == RateLimitPolicy.DROP ? -1 : wait;
+	}
+
+	/**
+	 * Answers a ping from the client. A pong needs no answer: receiving it
+	 * was enough to show the client is alive.
+	 * 
+	 * @param type
+	 *            the type of the control frame.
+	 * @exception IOException
+	 *                if the connection is closed.
+	 */
+	private void controlReceived(int type) throws IOException {
+		if (type == Framing.PING)
+			offerItem(ByteBuffer.wrap(Framing.controlFrame(Framing.PONG)), false);
+	}
+
+	/**
+	 * Starts checking the liveness of the client on the timing wheel, if the
+	 * server asks for it and the client uses a codec.
+	 */
+	private void startIdleCheck() {
+		long next = nextIdleCheck(0);
+		if (codec != null && next > 0)
+			scheduleIdleCheck(next);
+	}
+
+	/**
+	 * Returns how long until the connection must next be checked, given how
+	 * long the client has been silent.
+	 * 
+	 * @param idle
+	 *            how long the client has sent nothing, in nanoseconds.
+	 * @return the delay, in nanoseconds, or 0 if the connection is no longer
+	 *         checked.
+	 */
+	private long nextIdleCheck(long idle) {
+		long heartbeat = server.getHeartbeatInterval();
+		long timeout = server.getIdleTimeout();
+		long next = Long.MAX_VALUE;
+		if (heartbeat > 0)
+			next = idle < heartbeat ? heartbeat - idle : heartbeat;
+		if (timeout > 0)
+			next = Math.min(next, timeout - idle);
+		return next == Long.MAX_VALUE ? 0 : next;
+	}
+
+	/**
+	 * Schedules the next check of the liveness of the client.
+	 */
+	private void scheduleIdleCheck(long delay) {
+		TimingWheel.Timeout check = TimingWheel.getShared().schedule(idleChecker, delay, TimeUnit.NANOSECONDS);
+		idleCheck = check;
+
+		// The connection may have been closed before the check was recorded
+		if (clientSocket == null)
+			check.cancel();
+	}
+
+	/**
+	 * Checks the liveness of the client on the timing wheel: pings it if it
+	 * has been silent for the heartbeat interval, and disconnects it if it
+	 * has been silent for the idle timeout. Closing the connection calls
+	 * <code>clientException</code>, so it is done on a thread of its own
+	 * rather than holding up the wheel.
+	 */
+	private final Runnable idleChecker = new Runnable() {
+		public void run() {
+			if (readyToStop || clientSocket == null)
+				return;
+
+			long idle = System.nanoTime() - lastReceived;
+			long timeout = server.getIdleTimeout();
+			if (timeout > 0 && idle >= timeout) {
+				final SocketTimeoutException exception = new SocketTimeoutException("no data from client for "
+						+ TimeUnit.NANOSECONDS.toMillis(idle) + " ms");
+				Thread.ofVirtual().name(getName() + " idle").start(new Runnable() {
+					public void run() {
+						connectionFailed(exception, DisconnectReason.IDLE);
+					}
+				});
+				return;
+			}
+
+			long heartbeat = server.getHeartbeatInterval();
+			if (heartbeat > 0 && idle >= heartbeat) {
+				try {
+					offerItem(ByteBuffer.wrap(Framing.controlFrame(Framing.PING)), false);
+				} catch (IOException ex) {
+					return; // Closed meanwhile
+				}
+			}
+
+			long next = nextIdleCheck(idle);
+			if (next > 0)
+				scheduleIdleCheck(next);
+		}
+	};
+
+	/**
+	 * Called when serving the connection raised an exception outside of the
+	 * run method: on an event loop or on a worker thread handling messages.
+	 * Handled like an exception in the run method of a connection thread,
+	 * except that a reader thread still blocked on the socket will not
+	 * report the exception again once the socket is closed.
+	 * 
+	 * @param exception
+	 *            the exception raised.
+	 */
+	void connectionFailed(Throwable exception) {
+		connectionFailed(exception, reasonFor(exception));
+	}
+
+	/**
+	 * Closes the connection after a failure and reports the exception to
+	 * the server, unless the connection is already being closed.
+	 * 
+	 * @param exception
+	 *            the exception raised.
+	 * @param reason
+	 *            why the connection is lost.
+	 */
+	private void connectionFailed(Throwable exception, DisconnectReason reason) {
+		if (!readyToStop) {
+			readyToStop = true;
+			try {
+				closeAll(reason);
+			} catch (Exception ex) {
+			}
+
+			server.clientException(this, exception);
+		}
+	}
+
+	/**
+	 * Returns why a connection failing with an exception is lost: the end of
+	 * the stream means the client closed it.
+	 */
+	private static DisconnectReason reasonFor(Throwable exception) {
+		return exception instanceof EOFException ? DisconnectReason.CLIENT_CLOSED : DisconnectReason.ERROR;
+	}
+
+	/**
+	 * Moves a client speaking the legacy object stream protocol from the
+	 * event loop to its own thread. The channel is switched back to blocking
+	 * mode once the selector has dropped it, and the bytes already received
+	 * are replayed in front of the socket stream.
+	 */
+	private void handOverToThread() {
+		final byte[] received = new byte[readBuffer.remaining()];
+		readBuffer.get(received);
+		readBuffer = null;
+		selectionKey.cancel();
+
+		selectorLoop.execute(new Runnable() {
+			public void run() {
+				try {
+					channel.configureBlocking(true);
+					input = new ObjectInputStream(new SequenceInputStream(new ByteArrayInputStream(received),
+							new CountingInputStream(clientSocket.getInputStream())));
+					output = server.createObjectOutput(new CountingOutputStream(clientSocket.getOutputStream()));
+				} catch (IOException ex) {
+					connectionFailed(ex);
+					return;
+				}
+
+				selectorLoop = null;
+				startReader();
+			}
+		});
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
+	 * @param reason
+	 *            why the connection is closed, counted by the server unless
+	 *            the connection was already closed.
 	 * @exception IOException
 	 *                if an I/O error occur when closing the connection.
 	 */
-	private void closeAll() throws IOException {
+	private void closeAll(DisconnectReason reason) throws IOException {
+		readyToStop = true;
+		server.unregisterClient(this, reason);
+
+		TimingWheel.Timeout check = idleCheck;
+		if (check != null)
+			check.cancel();
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -237,6 +1531,12 @@ public class ConnectionToClient extends Thread {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame streams
+			if (frameOutput != null)
+				frameOutput.close();
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -244,7 +1544,15 @@ public class ConnectionToClient extends Thread {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
 			clientSocket = null;
+			synchronized (outboundQueue) {
+				channel = null;
+				outboundQueue.clear();
+				queuedBytes = 0;
+				writeStall = null;
+			}
 		}
 	}
 
@@ -253,9 +1561,71 @@ public class ConnectionToClient extends Thread {
 	 */
 	protected void finalize() {
 		try {
-			closeAll();
+			closeAll(DisconnectReason.CLOSED);
 		} catch (IOException e) {
 		}
 	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Passes the bytes read from the socket through, counting them.
+	 */
+	private final class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream input) {
+			super(input);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				metrics.bytesReceived(1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0) {
+				metrics.bytesReceived(count);
+				lastReceived = System.nanoTime();
+			}
+			return count;
+		}
+
+		public long skip(long n) throws IOException {
+			long count = in.skip(n);
+			metrics.bytesReceived(count);
+			return count;
+		}
+	}
+
+	/**
+	 * Passes the bytes written to the socket through, counting them. A write
+	 * that blocks for long because the client is not reading is reported as a
+	 * stall if a recording is running.
+	 */
+	private final class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			metrics.bytesSent(1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			ServerEvents.SendStall stall = new ServerEvents.SendStall();
+			stall.begin();
+			out.write(b, off, len);
+			metrics.bytesSent(len);
+			stall.end();
+			if (stall.shouldCommit()) {
+				stall.connection = getName();
+				stall.bytes = len;
+				stall.commit();
+			}
+		}
+	}
 }
 // End of ConnectionToClient class
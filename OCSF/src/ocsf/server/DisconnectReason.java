@@ -0,0 +1,48 @@
+package ocsf.server;
+
+/**
+ * Why a <code> ConnectionToClient </code> stopped being a client of the
+ * server. Every connection is counted under one reason when it leaves the
+ * registry of the server.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.ServerMetrics#getDisconnects(DisconnectReason)
+ */
+public enum DisconnectReason
+{
+	/**
+	 * The connection was closed by the server, either by a call to
+	 * <code> close </code> or because the server was closed.
+	 */
+	CLOSED,
+
+	/**
+	 * The client closed its end of the connection.
+	 */
+	CLIENT_CLOSED,
+
+	/**
+	 * The outbound queue of the client overflowed with the
+	 * <code> DISCONNECT </code> overflow policy.
+	 */
+	SLOW_CONSUMER,
+
+	/**
+	 * The client sent nothing, not even an answer to a ping, for the idle
+	 * timeout of the server.
+	 */
+	IDLE,
+
+	/**
+	 * The client went over the rate limit of the server with the
+	 * <code> DISCONNECT </code> rate limit policy.
+	 */
+	RATE_LIMITED,
+
+	/**
+	 * Reading from, writing to or handling a message of the client failed.
+	 */
+	ERROR
+}
+// End of DisconnectReason enum
@@ -0,0 +1,163 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+import ocsf.common.*;
+
+/**
+ * A message whose wire form is computed once and then shared by every
+ * connection it is sent to. <code> sendToAllClients </code> wraps each
+ * message it broadcasts in an instance of this class, so that the message is
+ * serialized once rather than once per client. A server can also keep
+ * instances for replies it sends often, such as fixed error messages, and
+ * pass them to <code> sendToClient </code>.<p>
+ *
+ * The frame is held in a single array: each framed connection writes its
+ * own view of the same bytes, straight from the array, whether it writes to
+ * a stream or to a channel. The message is encoded once for each codec in
+ * use among the recipients; the frame of the first codec is then read
+ * without taking a lock, so that the recipients after the first one do
+ * not contend on the message. Clients using the legacy object stream still
+ * receive the original object, serialized by their stream.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.ConnectionToClient#sendToClient(Object)
+ */
+public final class EncodedMessage
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The message itself.
+	 */
+	private final Object message;
+
+	/**
+	 * The encoding for the first codec the message was sent with, null
+	 * until it is sent to a framed connection.
+	 */
+	private volatile Encoding first;
+
+	/**
+	 * The encodings for the other codecs, created when first needed. Guarded
+	 * by the lock of this object.
+	 */
+	private IdentityHashMap<MessageCodec, Object> others;
+
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Wraps a message. The message is encoded the first time it is sent to
+	 * a client that needs the encoded form.
+	 *
+	 * @param message the message.
+	 */
+	public EncodedMessage(Object message)
+	{
+		this.message = message;
+	}
+
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the message itself.
+	 *
+	 * @return the message.
+	 */
+	public Object getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * Returns the string representation of the message.
+	 */
+	public String toString()
+	{
+		return String.valueOf(message);
+	}
+
+	/**
+	 * Returns a view of the frame encoded with a codec, positioned at its
+	 * start. Each caller gets its own position and limit over the shared
+	 * array, which it must not modify.
+	 *
+	 * @param codec the codec of the connection.
+	 * @return the frame.
+	 * @exception IOException if the message cannot be encoded.
+	 */
+	ByteBuffer frame(MessageCodec codec) throws IOException
+	{
+		Encoding encoding = first;
+		Object frame = encoding != null && encoding.codec == codec
+			? encoding.frame : encode(codec);
+
+		if (frame instanceof IOException)
+			throw (IOException)frame;
+
+		return ByteBuffer.wrap((byte[])frame);
+	}
+
+	/**
+	 * Returns the frame encoded with a codec, encoding it if it is the
+	 * first time, or the exception raised when encoding failed, so that it
+	 * is not attempted again for every client.
+	 */
+	private synchronized Object encode(MessageCodec codec)
+	{
+		Encoding encoding = first;
+		if (encoding != null && encoding.codec == codec)
+			return encoding.frame;
+		if (others != null && others.containsKey(codec))
+			return others.get(codec);
+
+		Object frame;
+		try
+		{
+			frame = Framing.encode(message, codec);
+		}
+		catch (IOException ex)
+		{
+			frame = ex;
+		}
+
+		if (encoding == null)
+		{
+			first = new Encoding(codec, frame);
+		}
+		else
+		{
+			if (others == null)
+				others = new IdentityHashMap<MessageCodec, Object>(4);
+			others.put(codec, frame);
+		}
+		return frame;
+	}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * A frame and the codec it was encoded with, published together.
+	 */
+	private static final class Encoding
+	{
+		final MessageCodec codec;
+
+		/**
+		 * The frame, or the exception raised when encoding failed.
+		 */
+		final Object frame;
+
+		Encoding(MessageCodec codec, Object frame)
+		{
+			this.codec = codec;
+			this.frame = frame;
+		}
+	}
+}
+// End of EncodedMessage class
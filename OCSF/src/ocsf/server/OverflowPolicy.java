@@ -0,0 +1,32 @@
+package ocsf.server;
+
+/**
+ * What a <code> ConnectionToClient </code> does with a message when its
+ * outbound queue already holds the maximum number of messages, which happens
+ * when the client reads more slowly than messages are sent to it.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setOverflowPolicy(OverflowPolicy)
+ * @see ocsf.server.AbstractServer#setOutboundQueueLimit(int)
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Discards the oldest message not yet being written to make room for
+	 * the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discards the new message.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Closes the connection with the slow client. The server is told
+	 * through <code> clientException </code>.
+	 */
+	DISCONNECT
+}
+// End of OverflowPolicy enum
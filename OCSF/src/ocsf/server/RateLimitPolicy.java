@@ -0,0 +1,41 @@
+package ocsf.server;
+
+/**
+ * What a <code> ConnectionToClient </code> does with a message that takes
+ * its client over the rate limit of the server, in messages or bytes per
+ * second. The limit is applied before the message is decoded and handed to
+ * <code> handleMessageFromClient </code>.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimitPolicy(RateLimitPolicy)
+ * @see ocsf.server.AbstractServer#setRateLimit(int, long)
+ */
+public enum RateLimitPolicy
+{
+	/**
+	 * Handles the message, then stops reading from the client until it is
+	 * back within the rate. What the client sends meanwhile waits in the
+	 * socket buffers, so that the client is slowed down by TCP flow control
+	 * without any message being lost.
+	 */
+	DELAY,
+
+	/**
+	 * Discards the message without decoding it.
+	 */
+	DROP,
+
+	/**
+	 * Handles the message anyway. The server only learns of the excess
+	 * through <code> clientRateLimited </code>.
+	 */
+	WARN,
+
+	/**
+	 * Closes the connection with the client. The server is told through
+	 * <code> clientException </code>.
+	 */
+	DISCONNECT
+}
+// End of RateLimitPolicy enum
@@ -0,0 +1,290 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop of the selector based server engine. Each loop owns one
+ * <code> Selector </code> and one thread, and serves every
+ * <code> ConnectionToClient </code> registered with it: reads are decoded
+ * and handed to the server as they complete, and writes that could not be
+ * completed immediately are finished when the channel becomes writable.<p>
+ *
+ * Work that must happen on the loop thread, such as registering a new
+ * channel, is queued with <code> execute </code> and run after the next
+ * selection. Work that must wait, such as writing messages held back by a
+ * flush delay, is queued with <code> schedule </code>.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setSelectorThreads(int)
+ */
+final class SelectorLoop implements Runnable
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose connections this loop serves.
+	 */
+	private final AbstractServer server;
+
+	/**
+	 * The selector watching the channels of this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * The thread running this loop.
+	 */
+	private final Thread loopThread;
+
+	/**
+	 * Tasks to be run on the loop thread after the next selection.
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Tasks waiting for their deadline, earliest first. Only used by the
+	 * loop thread.
+	 */
+	private final PriorityQueue<ScheduledTask> scheduledTasks =
+		new PriorityQueue<ScheduledTask>();
+
+	/**
+	 * Indicates if the loop is ready to stop.
+	 */
+	private volatile boolean readyToStop = false;
+
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs and starts an event loop.
+	 *
+	 * @param server the server whose connections are served.
+	 * @param index  the number of the loop, used to name its thread.
+	 * @exception IOException if the selector cannot be opened.
+	 */
+	SelectorLoop(AbstractServer server, int index) throws IOException
+	{
+		this.server = server;
+		this.selector = Selector.open();
+		this.loopThread = new Thread(this, "OCSF selector " + index);
+		loopThread.start();
+	}
+
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Registers a newly accepted channel with this loop.
+	 *
+	 * @param channel the accepted channel.
+	 * @return the connection of the channel.
+	 * @exception IOException if the channel cannot be made non-blocking.
+	 */
+	ConnectionToClient register(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true); // writes are already coalesced
+		final ConnectionToClient client =
+			new ConnectionToClient(server.getClientThreadGroup(), channel, server, this);
+
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					client.setSelectionKey(
+						client.getChannel().register(selector, SelectionKey.OP_READ, client));
+				}
+				catch (IOException ex)
+				{
+					client.connectionFailed(ex);
+				}
+			}
+		});
+		return client;
+	}
+
+	/**
+	 * Runs a task on the loop thread after the next selection. Keys
+	 * cancelled before the call have been deregistered by then.
+	 *
+	 * @param task the task to run.
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop thread once a delay has elapsed.
+	 *
+	 * @param task  the task to run.
+	 * @param delay the delay in nanoseconds.
+	 */
+	void schedule(Runnable task, long delay)
+	{
+		final ScheduledTask scheduled =
+			new ScheduledTask(System.nanoTime() + delay, task);
+
+		if (inLoop())
+		{
+			scheduledTasks.add(scheduled);
+			return;
+		}
+
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				scheduledTasks.add(scheduled);
+			}
+		});
+	}
+
+	/**
+	 * Returns true if the caller is running on this loop's thread.
+	 */
+	boolean inLoop()
+	{
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Stops the loop. Channels still registered are closed by the loop
+	 * thread before it exits.
+	 */
+	void stop()
+	{
+		readyToStop = true;
+		selector.wakeup();
+	}
+
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Selects ready channels and serves them until stopped. Not to be
+	 * called.
+	 */
+	public void run()
+	{
+		try
+		{
+			while (!readyToStop)
+			{
+				ScheduledTask next = scheduledTasks.peek();
+				if (next == null)
+				{
+					selector.select();
+				}
+				else
+				{
+					long wait = next.deadline - System.nanoTime();
+					if (wait > 0)
+						selector.select((wait + 999999) / 1000000);
+					else
+						selector.selectNow();
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				long now = System.nanoTime();
+				while ((next = scheduledTasks.peek()) != null && next.deadline - now <= 0)
+					scheduledTasks.poll().task.run();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					ConnectionToClient client = (ConnectionToClient)key.attachment();
+					try
+					{
+						if (key.isValid() && key.isWritable())
+							client.channelWritable();
+						if (key.isValid() && key.isReadable())
+							client.channelReadable();
+					}
+					catch (Throwable exception)
+					{
+						// Same routing as an uncaught exception in a
+						// connection thread.
+						client.connectionFailed(exception);
+					}
+				}
+			}
+		}
+		catch (IOException exception)
+		{
+			server.listeningException(exception);
+		}
+		finally
+		{
+			// Channels registered just before the loop stopped are closed
+			// with the others
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+			{
+				try
+				{
+					task.run();
+				}
+				catch (Throwable ex) {}
+			}
+			for (SelectionKey key : selector.keys())
+			{
+				try
+				{
+					((ConnectionToClient)key.attachment()).close();
+				}
+				catch (Exception ex) {}
+			}
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ex) {}
+		}
+	}
+
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * A task waiting for its deadline.
+	 */
+	private static final class ScheduledTask implements Comparable<ScheduledTask>
+	{
+		/**
+		 * When the task is due, as given by <code> System.nanoTime </code>.
+		 */
+		final long deadline;
+
+		/**
+		 * The task to run.
+		 */
+		final Runnable task;
+
+		ScheduledTask(long deadline, Runnable task)
+		{
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public int compareTo(ScheduledTask other)
+		{
+			return Long.compare(deadline - other.deadline, 0);
+		}
+	}
+}
+// End of SelectorLoop class
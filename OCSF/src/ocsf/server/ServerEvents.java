@@ -0,0 +1,152 @@
+package ocsf.server;
+
+import jdk.jfr.*;
+
+/**
+ * The JDK Flight Recorder events of the server. They tie what a recording
+ * shows about sockets, threads and locks to the connections of the server:
+ * every event names the <code> ConnectionToClient </code> concerned, whose
+ * name an application may set to something meaningful, such as the login
+ * ID of the client.<p>
+ *
+ * Events are created and committed following the Flight Recorder idiom:
+ * their fields are only filled in when <code> shouldCommit </code> returns
+ * true, so that when no recording is running an event costs a check and
+ * its allocation is optimised away. A timed event is ended before that
+ * check, which would otherwise compare a zero duration to the threshold
+ * of the event.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer
+ * @see ocsf.server.ConnectionToClient
+ */
+final class ServerEvents
+{
+	private ServerEvents() {}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * A client connected and announced its protocol.
+	 */
+	@Name("ocsf.ConnectionAccepted")
+	@Label("Connection Accepted")
+	@Category({"OCSF", "Connections"})
+	@Description("A client connected to the server and announced its protocol")
+	@StackTrace(false)
+	static final class ConnectionAccepted extends Event
+	{
+		@Label("Connection")
+		String connection;
+
+		@Label("Address")
+		String address;
+
+		@Label("Protocol")
+		String protocol;
+	}
+
+	/**
+	 * A client stopped being a client of the server.
+	 */
+	@Name("ocsf.ConnectionClosed")
+	@Label("Connection Closed")
+	@Category({"OCSF", "Connections"})
+	@Description("A connection was removed from the clients of the server")
+	@StackTrace(false)
+	static final class ConnectionClosed extends Event
+	{
+		@Label("Connection")
+		String connection;
+
+		@Label("Address")
+		String address;
+
+		@Label("Reason")
+		String reason;
+
+		@Label("Connected For")
+		@Timespan(Timespan.MILLISECONDS)
+		long connectedFor;
+
+		@Label("Messages Received")
+		long messagesReceived;
+
+		@Label("Messages Sent")
+		long messagesSent;
+
+		@Label("Bytes Received")
+		@DataAmount
+		long bytesReceived;
+
+		@Label("Bytes Sent")
+		@DataAmount
+		long bytesSent;
+	}
+
+	/**
+	 * A message from a client was handled. The duration of the event is
+	 * that of <code> handleMessageFromClient </code>, including the wait for
+	 * the lock of the server with serial dispatch.
+	 */
+	@Name("ocsf.MessageReceived")
+	@Label("Message Received")
+	@Category({"OCSF", "Messages"})
+	@Description("A message from a client was handled by the server")
+	@StackTrace(false)
+	static final class MessageReceived extends Event
+	{
+		@Label("Connection")
+		String connection;
+
+		@Label("Message Class")
+		String messageClass;
+
+		@Label("Size")
+		@Description("The size of the frame payload, or -1 for the legacy object stream")
+		@DataAmount
+		int size;
+	}
+
+	/**
+	 * A message was sent to several clients. The duration of the event is
+	 * the time taken to encode the message and queue it for every client.
+	 */
+	@Name("ocsf.Broadcast")
+	@Label("Broadcast")
+	@Category({"OCSF", "Messages"})
+	@Description("A message was queued for several clients")
+	static final class Broadcast extends Event
+	{
+		@Label("Message Class")
+		String messageClass;
+
+		@Label("Fan-out")
+		@Description("The number of clients the message was queued for")
+		int fanOut;
+	}
+
+	/**
+	 * Writing to a client could not proceed for a while: a blocking write
+	 * or flush to its socket took long, or its non-blocking channel stayed
+	 * full. Only stalls longer than the threshold are recorded.
+	 */
+	@Name("ocsf.SendStall")
+	@Label("Send Stall")
+	@Category({"OCSF", "Messages"})
+	@Description("Writing to a client waited for the client to read")
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static final class SendStall extends Event
+	{
+		@Label("Connection")
+		String connection;
+
+		@Label("Bytes")
+		@Description("The number of bytes waiting to be written")
+		@DataAmount
+		long bytes;
+	}
+}
+// End of ServerEvents class
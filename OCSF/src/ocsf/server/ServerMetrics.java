@@ -0,0 +1,426 @@
+package ocsf.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.*;
+
+import ocsf.common.Histogram;
+
+/**
+ * The <code> ServerMetrics </code> class tells what a server is doing:
+ * connections accepted and lost, by reason, messages and bytes exchanged
+ * with the clients, the depth of their outbound queues, how long
+ * <code> handleMessageFromClient </code> takes and how long a message sent
+ * to several clients takes to be queued for all of them.<p>
+ *
+ * Counters are striped and times are recorded in a
+ * <code> Histogram </code>, so that the threads serving the clients update
+ * them without taking a lock or contending on a shared variable. Queue
+ * depths are only computed when they are read.<p>
+ *
+ * While the server is open, its metrics are registered with the platform
+ * MBean server, and so are those of every client if the server publishes
+ * connection MBeans.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ * @see ocsf.server.ConnectionMetrics
+ */
+public final class ServerMetrics implements ServerMetricsMBean
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The clients of the server measured.
+	 */
+	private final ClientRegistry clients;
+
+	private final LongAdder acceptedConnections = new LongAdder();
+
+	private final LongAdder messagesReceived = new LongAdder();
+
+	private final LongAdder bytesReceived = new LongAdder();
+
+	private final LongAdder messagesSent = new LongAdder();
+
+	private final LongAdder bytesSent = new LongAdder();
+
+	private final LongAdder droppedMessages = new LongAdder();
+
+	private final LongAdder rateLimitedMessages = new LongAdder();
+
+	/**
+	 * The number of connections lost, by reason.
+	 */
+	private final LongAdder[] disconnects =
+		new LongAdder[DisconnectReason.values().length];
+
+	/**
+	 * The times taken by <code> handleMessageFromClient </code>, in
+	 * nanoseconds.
+	 */
+	private final Histogram handlerTimes = new Histogram();
+
+	/**
+	 * The times taken to queue a message for several clients, in
+	 * nanoseconds.
+	 */
+	private final Histogram broadcastTimes = new Histogram();
+
+	/**
+	 * The name under which these metrics are registered, null when they
+	 * are not.
+	 */
+	private volatile ObjectName objectName;
+
+	// CONSTRUCTORS *****************************************************
+
+	ServerMetrics(ClientRegistry clients)
+	{
+		this.clients = clients;
+		for (int i = 0; i < disconnects.length; i++)
+			disconnects[i] = new LongAdder();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public long getAcceptedConnections()
+	{
+		return acceptedConnections.sum();
+	}
+
+	public int getConnectedClients()
+	{
+		return clients.size();
+	}
+
+	public long getMessagesReceived()
+	{
+		return messagesReceived.sum();
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived.sum();
+	}
+
+	public long getMessagesSent()
+	{
+		return messagesSent.sum();
+	}
+
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+
+	public long getDroppedMessages()
+	{
+		return droppedMessages.sum();
+	}
+
+	public long getRateLimitedMessages()
+	{
+		return rateLimitedMessages.sum();
+	}
+
+	public long getQueuedMessages()
+	{
+		long queued = 0;
+		for (ConnectionToClient client : clients)
+			queued += client.getOutboundQueueSize();
+		return queued;
+	}
+
+	public int getLongestQueue()
+	{
+		int longest = 0;
+		for (ConnectionToClient client : clients)
+			longest = Math.max(longest, client.getOutboundQueueSize());
+		return longest;
+	}
+
+	/**
+	 * Returns the number of connections lost for a reason.
+	 *
+	 * @param reason the reason.
+	 * @return the number of connections lost for that reason.
+	 */
+	public long getDisconnects(DisconnectReason reason)
+	{
+		return disconnects[reason.ordinal()].sum();
+	}
+
+	public long getClosedDisconnects()
+	{
+		return getDisconnects(DisconnectReason.CLOSED);
+	}
+
+	public long getClientClosedDisconnects()
+	{
+		return getDisconnects(DisconnectReason.CLIENT_CLOSED);
+	}
+
+	public long getSlowConsumerDisconnects()
+	{
+		return getDisconnects(DisconnectReason.SLOW_CONSUMER);
+	}
+
+	public long getIdleDisconnects()
+	{
+		return getDisconnects(DisconnectReason.IDLE);
+	}
+
+	public long getRateLimitedDisconnects()
+	{
+		return getDisconnects(DisconnectReason.RATE_LIMITED);
+	}
+
+	public long getErrorDisconnects()
+	{
+		return getDisconnects(DisconnectReason.ERROR);
+	}
+
+	/**
+	 * Returns the times taken by <code> handleMessageFromClient </code>,
+	 * in nanoseconds.
+	 *
+	 * @return the histogram of handler times.
+	 */
+	public Histogram getHandlerTimes()
+	{
+		return handlerTimes;
+	}
+
+	/**
+	 * Returns the times taken to queue a message for several clients, in
+	 * nanoseconds.
+	 *
+	 * @return the histogram of fan-out times.
+	 */
+	public Histogram getBroadcastTimes()
+	{
+		return broadcastTimes;
+	}
+
+	public long getHandledMessages()
+	{
+		return handlerTimes.getCount();
+	}
+
+	public double getHandlerTimeMean()
+	{
+		return handlerTimes.getMean() / 1000;
+	}
+
+	public double getHandlerTime50()
+	{
+		return handlerTimes.getPercentile(50) / 1000.0;
+	}
+
+	public double getHandlerTime99()
+	{
+		return handlerTimes.getPercentile(99) / 1000.0;
+	}
+
+	public double getHandlerTimeMax()
+	{
+		return handlerTimes.getMax() / 1000.0;
+	}
+
+	public long getBroadcasts()
+	{
+		return broadcastTimes.getCount();
+	}
+
+	public double getBroadcastTimeMean()
+	{
+		return broadcastTimes.getMean() / 1000;
+	}
+
+	public double getBroadcastTime99()
+	{
+		return broadcastTimes.getPercentile(99) / 1000.0;
+	}
+
+	public double getBroadcastTimeMax()
+	{
+		return broadcastTimes.getMax() / 1000.0;
+	}
+
+	public void resetTimes()
+	{
+		handlerTimes.reset();
+		broadcastTimes.reset();
+	}
+
+	/**
+	 * Returns a report of the metrics, one subject per line.
+	 *
+	 * @return the report.
+	 */
+	public String toString()
+	{
+		return String.format("clients: %d connected, %d accepted%n"
+			+ "disconnects: %d closed, %d by client, %d slow, %d idle, %d rate limited, %d failed%n"
+			+ "in: %d messages, %d bytes, %d over rate limit%n"
+			+ "out: %d messages, %d bytes, %d queued (longest queue %d), %d dropped%n"
+			+ "handler: %d messages, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n"
+			+ "broadcast: %d messages, mean %.1f us, p99 %.1f us, max %.1f us",
+			getConnectedClients(), getAcceptedConnections(),
+			getClosedDisconnects(), getClientClosedDisconnects(),
+			getSlowConsumerDisconnects(), getIdleDisconnects(),
+			getRateLimitedDisconnects(), getErrorDisconnects(),
+			getMessagesReceived(), getBytesReceived(), getRateLimitedMessages(),
+			getMessagesSent(), getBytesSent(), getQueuedMessages(),
+			getLongestQueue(), getDroppedMessages(),
+			getHandledMessages(), getHandlerTimeMean(), getHandlerTime50(),
+			getHandlerTime99(), getHandlerTimeMax(),
+			getBroadcasts(), getBroadcastTimeMean(), getBroadcastTime99(),
+			getBroadcastTimeMax());
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	void connectionAccepted()
+	{
+		acceptedConnections.increment();
+	}
+
+	void messageReceived()
+	{
+		messagesReceived.increment();
+	}
+
+	void bytesReceived(long count)
+	{
+		bytesReceived.add(count);
+	}
+
+	void messageSent()
+	{
+		messagesSent.increment();
+	}
+
+	void bytesSent(long count)
+	{
+		bytesSent.add(count);
+	}
+
+	void messageDropped()
+	{
+		droppedMessages.increment();
+	}
+
+	void messageRateLimited()
+	{
+		rateLimitedMessages.increment();
+	}
+
+	/**
+	 * Counts a connection that left the registry of the server.
+	 */
+	void disconnected(DisconnectReason reason)
+	{
+		disconnects[reason.ordinal()].increment();
+	}
+
+	/**
+	 * Records the time taken to handle a message.
+	 */
+	void messageHandled(long nanos)
+	{
+		handlerTimes.record(nanos);
+	}
+
+	/**
+	 * Records the time taken to queue a message for several clients.
+	 */
+	void broadcastQueued(long nanos)
+	{
+		broadcastTimes.record(nanos);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, unless they
+	 * already are. Monitoring is optional, so a failure is ignored.
+	 *
+	 * @param port the port of the server, which names the MBean.
+	 */
+	void publish(int port)
+	{
+		if (objectName != null)
+			return;
+
+		try
+		{
+			ObjectName name = new ObjectName("ocsf:type=Server,port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		}
+		catch (JMException ex) {}
+	}
+
+	/**
+	 * Unregisters these metrics from the platform MBean server.
+	 */
+	void unpublish()
+	{
+		ObjectName name = objectName;
+		objectName = null;
+		unregister(name);
+	}
+
+	/**
+	 * Registers the metrics of a client with the platform MBean server,
+	 * provided those of the server are.
+	 *
+	 * @param client the connection to the client.
+	 */
+	void publish(ConnectionToClient client)
+	{
+		ObjectName serverName = objectName;
+		if (serverName == null)
+			return;
+
+		try
+		{
+			ObjectName name = new ObjectName("ocsf:type=Connection,port="
+				+ serverName.getKeyProperty("port") + ",name="
+				+ ObjectName.quote(client.getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(client.getMetrics(), name);
+			client.getMetrics().setObjectName(name);
+		}
+		catch (JMException ex) {}
+	}
+
+	/**
+	 * Unregisters the metrics of a client, if they are registered.
+	 *
+	 * @param client the connection to the client.
+	 */
+	void unpublish(ConnectionToClient client)
+	{
+		ObjectName name = client.getMetrics().getObjectName();
+		client.getMetrics().setObjectName(null);
+		unregister(name);
+	}
+
+	/**
+	 * Unregisters an MBean, if it is registered.
+	 */
+	private static void unregister(ObjectName name)
+	{
+		if (name == null)
+			return;
+
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch (JMException ex) {}
+	}
+}
+// End of ServerMetrics class
@@ -0,0 +1,207 @@
+package ocsf.server;
+
+/**
+ * The management interface of the <code> ServerMetrics </code> of a
+ * server, registered with the platform MBean server under the name
+ * <code> ocsf:type=Server,port=<i>port</i> </code> while the server is
+ * open. Counts start when the server is created; times are in
+ * microseconds.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.ServerMetrics
+ */
+public interface ServerMetricsMBean
+{
+	/**
+	 * Returns the number of connections accepted.
+	 *
+	 * @return the number of connections accepted.
+	 */
+	long getAcceptedConnections();
+
+	/**
+	 * Returns the number of clients currently connected.
+	 *
+	 * @return the number of clients.
+	 */
+	int getConnectedClients();
+
+	/**
+	 * Returns the number of messages received from all clients.
+	 *
+	 * @return the number of messages received.
+	 */
+	long getMessagesReceived();
+
+	/**
+	 * Returns the number of bytes read from all clients.
+	 *
+	 * @return the number of bytes read.
+	 */
+	long getBytesReceived();
+
+	/**
+	 * Returns the number of messages written to all clients.
+	 *
+	 * @return the number of messages written.
+	 */
+	long getMessagesSent();
+
+	/**
+	 * Returns the number of bytes written to all clients.
+	 *
+	 * @return the number of bytes written.
+	 */
+	long getBytesSent();
+
+	/**
+	 * Returns the number of messages discarded because the outbound queue
+	 * of their client was full.
+	 *
+	 * @return the number of discarded messages.
+	 */
+	long getDroppedMessages();
+
+	/**
+	 * Returns the number of messages from clients over the rate limit,
+	 * whether they were delayed, discarded or handled anyway.
+	 *
+	 * @return the number of messages over the rate limit.
+	 */
+	long getRateLimitedMessages();
+
+	/**
+	 * Returns the number of messages waiting in the outbound queues of all
+	 * clients.
+	 *
+	 * @return the number of queued messages.
+	 */
+	long getQueuedMessages();
+
+	/**
+	 * Returns the number of messages waiting in the longest outbound
+	 * queue.
+	 *
+	 * @return the length of the longest queue.
+	 */
+	int getLongestQueue();
+
+	/**
+	 * Returns the number of connections closed by the server.
+	 *
+	 * @return the number of connections closed.
+	 */
+	long getClosedDisconnects();
+
+	/**
+	 * Returns the number of connections closed by their client.
+	 *
+	 * @return the number of connections closed by clients.
+	 */
+	long getClientClosedDisconnects();
+
+	/**
+	 * Returns the number of clients disconnected because their outbound
+	 * queue overflowed.
+	 *
+	 * @return the number of slow clients disconnected.
+	 */
+	long getSlowConsumerDisconnects();
+
+	/**
+	 * Returns the number of clients disconnected because they stayed
+	 * silent for the idle timeout.
+	 *
+	 * @return the number of idle clients disconnected.
+	 */
+	long getIdleDisconnects();
+
+	/**
+	 * Returns the number of clients disconnected because they went over
+	 * the rate limit.
+	 *
+	 * @return the number of clients disconnected for their rate.
+	 */
+	long getRateLimitedDisconnects();
+
+	/**
+	 * Returns the number of connections that failed.
+	 *
+	 * @return the number of failed connections.
+	 */
+	long getErrorDisconnects();
+
+	/**
+	 * Returns the number of messages handled by
+	 * <code> handleMessageFromClient </code>.
+	 *
+	 * @return the number of messages handled.
+	 */
+	long getHandledMessages();
+
+	/**
+	 * Returns the mean time taken to handle a message.
+	 *
+	 * @return the mean handler time, in microseconds.
+	 */
+	double getHandlerTimeMean();
+
+	/**
+	 * Returns the time within which half of the messages were handled.
+	 *
+	 * @return the median handler time, in microseconds.
+	 */
+	double getHandlerTime50();
+
+	/**
+	 * Returns the time within which 99% of the messages were handled.
+	 *
+	 * @return the 99th percentile of the handler time, in microseconds.
+	 */
+	double getHandlerTime99();
+
+	/**
+	 * Returns the longest time taken to handle a message.
+	 *
+	 * @return the longest handler time, in microseconds.
+	 */
+	double getHandlerTimeMax();
+
+	/**
+	 * Returns the number of messages sent to several clients at once.
+	 *
+	 * @return the number of broadcasts.
+	 */
+	long getBroadcasts();
+
+	/**
+	 * Returns the mean time taken to queue a broadcast for every client.
+	 *
+	 * @return the mean fan-out time, in microseconds.
+	 */
+	double getBroadcastTimeMean();
+
+	/**
+	 * Returns the time within which 99% of the broadcasts were queued for
+	 * every client.
+	 *
+	 * @return the 99th percentile of the fan-out time, in microseconds.
+	 */
+	double getBroadcastTime99();
+
+	/**
+	 * Returns the longest time taken to queue a broadcast for every
+	 * client.
+	 *
+	 * @return the longest fan-out time, in microseconds.
+	 */
+	double getBroadcastTimeMax();
+
+	/**
+	 * Forgets the handler and fan-out times recorded so far. Counts are
+	 * not reset.
+	 */
+	void resetTimes();
+}
+// End of ServerMetricsMBean interface
@@ -0,0 +1,80 @@
+package ocsf.server;
+
+/**
+ * A token bucket measuring what a client sends against a rate: messages
+ * or bytes per second. The bucket holds at most a second's worth of
+ * tokens, which the client may spend in a burst, and refills at the rate
+ * as time passes. A message that finds enough tokens is within the rate.<p>
+ *
+ * A bucket belongs to one <code> ConnectionToClient </code> and is only
+ * used by the thread reading from its client, one message at a time, so it
+ * needs neither a lock nor an atomic variable. The rate is passed on every
+ * call rather than kept, so that a change of the rate of the server
+ * applies at once.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(int, long)
+ */
+final class TokenBucket
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The tokens in the bucket, negative when messages were let through on
+	 * credit. The bucket starts full.
+	 */
+	private double tokens = Double.POSITIVE_INFINITY;
+
+	/**
+	 * When the bucket was last refilled, as given by
+	 * <code>System.nanoTime</code>.
+	 */
+	private long refilled = System.nanoTime();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds the tokens earned since the last refill, up to a second's worth.
+	 *
+	 * @param rate the tokens earned per second, 0 for no limit.
+	 * @param now the time, as given by <code>System.nanoTime</code>.
+	 */
+	void refill(double rate, long now)
+	{
+		if (rate > 0)
+			tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+		refilled = now;
+	}
+
+	/**
+	 * Tells if the bucket holds enough tokens for a message. A message
+	 * costing more than a second's worth only needs a full bucket.
+	 *
+	 * @param cost the tokens the message costs.
+	 * @param rate the tokens earned per second, 0 for no limit.
+	 * @return true if the message is within the rate.
+	 */
+	boolean allows(double cost, double rate)
+	{
+		return rate <= 0 || tokens >= Math.min(cost, rate);
+	}
+
+	/**
+	 * Takes the tokens a message costs, on credit if there are not enough.
+	 *
+	 * @param cost the tokens the message costs.
+	 * @param rate the tokens earned per second, 0 for no limit.
+	 * @return how long, in nanoseconds, until the credit is paid back, 0 if
+	 * the bucket had enough tokens.
+	 */
+	long take(double cost, double rate)
+	{
+		if (rate <= 0)
+			return 0;
+
+		tokens -= cost;
+		return tokens >= 0 ? 0 : (long)Math.ceil(-tokens * 1e9 / rate);
+	}
+}
+// End of TokenBucket class
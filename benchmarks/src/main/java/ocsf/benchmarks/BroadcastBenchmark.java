@@ -0,0 +1,74 @@
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how many broadcasts per second reach every connected client.
+ * Each operation sends one message with <code>sendToAllClients</code> and
+ * returns once all the clients have received it.
+ *
+ * @see ocsf.server.AbstractServer#sendToAllClients(Object)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark
+{
+	/**
+	 * The number of connected clients.
+	 */
+	@Param({"10", "100", "1000"})
+	public int clients;
+
+	/**
+	 * The event loops of the selector engine, 0 for a thread per client.
+	 */
+	@Param({"0", "2"})
+	public int selectorThreads;
+
+	/**
+	 * The codec of the clients.
+	 */
+	@Param({"compact", "legacy"})
+	public String codec;
+
+	private Loopback.Server server;
+
+	private Loopback.Client[] connected;
+
+	private final AtomicLong received = new AtomicLong();
+
+	private long expected;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException
+	{
+		server = Loopback.startServer(selectorThreads);
+		connected = Loopback.connect(server, clients, Loopback.codec(codec), received);
+		for (Loopback.Client client : connected)
+			client.keepReplies = false;
+		expected = received.get();
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException
+	{
+		Loopback.close(connected);
+		server.close();
+	}
+
+	@Benchmark
+	public void broadcast()
+	{
+		expected += clients;
+		server.sendToAllClients("broadcast");
+		Loopback.await(received, expected);
+	}
+}
@@ -0,0 +1,71 @@
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.edu.server.backend.EchoServer;
+
+/**
+ * Measures the time for a chat line to go through <code>EchoServer</code>
+ * and come back to its sender, the only member of its room. Unlike
+ * <code>RoundTripBenchmark</code>, this includes the command parsing,
+ * logging and room routing of the chat server. The server display
+ * discards its lines.
+ *
+ * @see edu.seg2105.edu.server.backend.EchoServer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatRoundTripBenchmark
+{
+	/**
+	 * The event loops of the selector engine, 0 for a thread per client.
+	 */
+	@Param({"0", "2"})
+	public int selectorThreads;
+
+	private EchoServer server;
+
+	private Loopback.Client client;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception
+	{
+		server = new EchoServer(Loopback.freePort(), new ChatIF()
+		{
+			public void display(String message) {}
+		});
+		// Only the round trip is measured, not the chat server's limits
+		server.setHeartbeatInterval(0);
+		server.setIdleTimeout(0);
+		server.setRateLimit(0, 0);
+		server.setSelectorThreads(selectorThreads);
+		server.listen();
+
+		client = Loopback.connect(server, 1, Loopback.codec("compact"), null)[0];
+		client.sendToServer("#login bench");
+		client.take(); // bench has logged on.
+		client.take(); // bench has joined room lobby.
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException
+	{
+		client.closeConnection();
+		server.close();
+	}
+
+	@Benchmark
+	public Object chatLine() throws IOException, InterruptedException
+	{
+		client.sendToServer("hello");
+		return client.take();
+	}
+}
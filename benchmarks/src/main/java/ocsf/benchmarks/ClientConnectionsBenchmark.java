@@ -0,0 +1,70 @@
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ocsf.server.ConnectionToClient;
+
+/**
+ * Measures the cost of finding the connected clients: the array returned
+ * by <code>getClientConnections</code>, iteration over the registry, and
+ * the client count.
+ *
+ * @see ocsf.server.AbstractServer#getClientConnections()
+ * @see ocsf.server.AbstractServer#getClients()
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientConnectionsBenchmark
+{
+	/**
+	 * The number of connected clients.
+	 */
+	@Param({"10", "100", "1000"})
+	public int clients;
+
+	private Loopback.Server server;
+
+	private Loopback.Client[] connected;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException
+	{
+		// One event loop keeps the thread count down with many clients
+		server = Loopback.startServer(1);
+		connected = Loopback.connect(server, clients, Loopback.codec("compact"), null);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException
+	{
+		Loopback.close(connected);
+		server.close();
+	}
+
+	@Benchmark
+	public Thread[] getClientConnections()
+	{
+		return server.getClientConnections();
+	}
+
+	@Benchmark
+	public void iterateClients(Blackhole blackhole)
+	{
+		for (ConnectionToClient client : server.getClients())
+			blackhole.consume(client);
+	}
+
+	@Benchmark
+	public int getNumberOfClients()
+	{
+		return server.getNumberOfClients();
+	}
+}
@@ -0,0 +1,333 @@
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.Framing;
+import ocsf.common.Histogram;
+
+/**
+ * Puts a chat server under load from a single process. Opens a number of
+ * chat sessions, logs each one in with <code>#login</code>, spreads them
+ * over rooms, then has every session send chat lines at a steady rate.
+ * Every line carries the time it was due to be sent, so each session
+ * that receives it records its end-to-end latency; measuring from the
+ * intended time rather than the actual one keeps a stalled server from
+ * hiding its own delays. Throughput is printed every second, and the
+ * latency percentiles at the end.<p>
+ *
+ * Sessions are <code>AbstractClient</code> instances whose readers, like
+ * the senders, run on virtual threads, so thousands of sessions cost a
+ * few platform threads.<p>
+ *
+ * Usage: <code>java ocsf.benchmarks.LoadGenerator [host [port [sessions
+ * [messagesPerSecond [seconds [roomSize]]]]]]</code>, where the rate is
+ * the total over all sessions and each room holds up to
+ * <code>roomSize</code> sessions; 0 keeps every session in the lobby.
+ *
+ * @see edu.seg2105.edu.server.backend.EchoServer
+ */
+public class LoadGenerator
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The start of every chat line sent by a session.
+	 */
+	private static final String PING = "ping ";
+
+	/**
+	 * The number of sessions connecting at the same time, kept below what
+	 * the accept backlog of the server absorbs.
+	 */
+	private static final int CONCURRENT_OPENS = 8;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final String host;
+
+	private final int port;
+
+	private final int sessions;
+
+	private final double messagesPerSecond;
+
+	private final int seconds;
+
+	private final int roomSize;
+
+	/**
+	 * The end-to-end latencies of the chat lines received, in nanoseconds.
+	 */
+	private final Histogram latencies = new Histogram();
+
+	/**
+	 * The number of chat lines sent by all the sessions.
+	 */
+	private final AtomicLong sent = new AtomicLong();
+
+	/**
+	 * The number of chat lines received by all the sessions.
+	 */
+	private final AtomicLong received = new AtomicLong();
+
+	/**
+	 * The number of chat lines that could not be sent.
+	 */
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Indicates if the sessions should stop sending.
+	 */
+	private volatile boolean stopping = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	public LoadGenerator(String host, int port, int sessions, double messagesPerSecond,
+		int seconds, int roomSize)
+	{
+		this.host = host;
+		this.port = port;
+		this.sessions = sessions;
+		this.messagesPerSecond = messagesPerSecond;
+		this.seconds = seconds;
+		this.roomSize = roomSize;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Runs the load and prints the results.
+	 */
+	public void run() throws Exception
+	{
+		Session[] all = new Session[sessions];
+		for (int i = 0; i < sessions; i++)
+			all[i] = new Session("load" + i, roomSize == 0 ? null : "load-room" + (i / roomSize));
+
+		// Open and log in the sessions, a few at a time
+		long opening = System.nanoTime();
+		final Semaphore opens = new Semaphore(CONCURRENT_OPENS);
+		try (ExecutorService openers = Executors.newVirtualThreadPerTaskExecutor())
+		{
+			for (final Session session : all)
+			{
+				opens.acquire();
+				openers.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							session.start();
+						}
+						finally
+						{
+							opens.release();
+						}
+					}
+				});
+			}
+		}
+		int ready = 0;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		for (Session session : all)
+		{
+			if (session.awaitReady(deadline))
+				ready++;
+		}
+		System.out.printf("%d of %d sessions logged in after %d ms%n",
+			ready, sessions, (System.nanoTime() - opening) / 1000000);
+		latencies.reset();
+		received.set(0);
+
+		// Each session sends at an equal share of the total rate
+		final long interval = messagesPerSecond <= 0 ? 0
+			: (long)(1e9 * sessions / messagesPerSecond);
+		ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+		final long start = System.nanoTime();
+		for (int i = 0; i < sessions; i++)
+		{
+			final Session session = all[i];
+			// Spread the first sends over one interval
+			final long first = start + (interval == 0 ? 0 : interval * i / sessions);
+			senders.execute(new Runnable()
+			{
+				public void run()
+				{
+					session.send(first, interval);
+				}
+			});
+		}
+
+		long lastSent = 0;
+		long lastReceived = 0;
+		for (int second = 1; second <= seconds; second++)
+		{
+			LockSupport.parkNanos(start + second * 1000000000L - System.nanoTime());
+			long nowSent = sent.get();
+			long nowReceived = received.get();
+			System.out.printf("%3d s: sent %8d/s, received %9d/s, p99 so far %8.1f us%n",
+				second, nowSent - lastSent, nowReceived - lastReceived,
+				latencies.getPercentile(99) / 1000.0);
+			lastSent = nowSent;
+			lastReceived = nowReceived;
+		}
+
+		stopping = true;
+		senders.shutdown();
+		senders.awaitTermination(5, TimeUnit.SECONDS);
+		Thread.sleep(1000); // let the last lines arrive
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		for (Session session : all)
+		{
+			try
+			{
+				session.closeConnection();
+			}
+			catch (IOException ex) {}
+		}
+
+		System.out.printf("sent %d lines (%.0f/s), received %d (%.0f/s), %d failed%n",
+			sent.get(), sent.get() / elapsed, received.get(), received.get() / elapsed,
+			failed.get());
+		System.out.printf("latency us: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f  mean %.1f%n",
+			latencies.getPercentile(50) / 1000.0, latencies.getPercentile(99) / 1000.0,
+			latencies.getPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0,
+			latencies.getMean() / 1000.0);
+	}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * One chat session.
+	 */
+	private final class Session extends AbstractClient
+	{
+		private final String loginID;
+
+		/**
+		 * The room to join after logging in, or null to stay in the lobby.
+		 */
+		private final String room;
+
+		/**
+		 * The line telling this session it is ready to send.
+		 */
+		private final String readyLine;
+
+		private final CountDownLatch ready = new CountDownLatch(1);
+
+		Session(String loginID, String room)
+		{
+			super(host, port);
+			this.loginID = loginID;
+			this.room = room;
+			this.readyLine = loginID + " has joined room " + (room == null ? "lobby" : room) + ".";
+			setCodec(Framing.getDefaultCodec());
+			setVirtualThread(true);
+		}
+
+		/**
+		 * Connects, logs in and joins the room of the session, then waits
+		 * until the server has placed the session in its room.
+		 */
+		void start()
+		{
+			try
+			{
+				openConnection();
+				sendToServer("#login " + loginID);
+				if (room != null)
+					sendToServer("#join " + room);
+				ready.await(30, TimeUnit.SECONDS);
+			}
+			catch (IOException ex)
+			{
+				System.err.println(loginID + ": " + ex);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Waits until the server has placed the session in its room.
+		 *
+		 * @param deadline when to give up, as given by System.nanoTime.
+		 * @return false if that did not happen in time.
+		 */
+		boolean awaitReady(long deadline) throws InterruptedException
+		{
+			return ready.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Sends chat lines every <code>interval</code> nanoseconds, or as
+		 * fast as possible with no interval, until stopped.
+		 */
+		void send(long due, long interval)
+		{
+			while (!stopping)
+			{
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+				long stamp = interval == 0 ? System.nanoTime() : due;
+
+				try
+				{
+					sendToServer(PING + stamp);
+					sent.incrementAndGet();
+				}
+				catch (IOException ex)
+				{
+					failed.incrementAndGet();
+				}
+				due += interval;
+			}
+		}
+
+		protected void handleMessageFromServer(Object msg)
+		{
+			String line = msg.toString();
+			int separator = line.indexOf(" > " + PING);
+			if (separator >= 0)
+			{
+				long stamp = Long.parseLong(line.substring(separator + 3 + PING.length()));
+				latencies.record(System.nanoTime() - stamp);
+				received.incrementAndGet();
+			}
+			else if (line.equals(readyLine))
+			{
+				ready.countDown();
+			}
+		}
+
+		protected void connectionException(Exception exception)
+		{
+			if (!stopping)
+				System.err.println(loginID + ": connection lost: " + exception);
+		}
+	}
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception
+	{
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
+		int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		double rate = args.length > 3 ? Double.parseDouble(args[3]) : 1000;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+		int roomSize = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+		new LoadGenerator(host, port, sessions, rate, seconds, roomSize).run();
+		System.exit(0);
+	}
+}
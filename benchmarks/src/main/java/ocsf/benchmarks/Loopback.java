@@ -0,0 +1,215 @@
+package ocsf.benchmarks;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Servers and clients talking over the loopback interface, shared by the
+ * benchmarks. The server echoes every message back to its sender; each
+ * client queues what it receives and counts it, both on its own and in a
+ * counter shared by all clients.
+ */
+final class Loopback
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * How long a benchmark waits for the network before giving up.
+	 */
+	static final long TIMEOUT_SECONDS = 30;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Loopback() {}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a port that was free when the call was made.
+	 */
+	static int freePort() throws IOException
+	{
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Returns the codec named by a benchmark parameter: "compact",
+	 * "serialization", or "legacy" for the object stream.
+	 */
+	static MessageCodec codec(String name) throws IOException
+	{
+		switch (name)
+		{
+		case "compact":
+			return Framing.getCodec(CompactCodec.ID);
+		case "serialization":
+			return Framing.getCodec(SerializationCodec.ID);
+		case "legacy":
+			return null;
+		default:
+			throw new IllegalArgumentException("unknown codec " + name);
+		}
+	}
+
+	/**
+	 * Starts an echo server.
+	 *
+	 * @param selectorThreads the event loops of the selector engine, or 0
+	 *        for a thread per client.
+	 */
+	static Server startServer(int selectorThreads) throws IOException
+	{
+		Server server = new Server(freePort());
+		server.setSelectorThreads(selectorThreads);
+		server.listen();
+		return server;
+	}
+
+	/**
+	 * Connects clients to a server and waits until the server counts
+	 * them all.
+	 *
+	 * @param server  the server.
+	 * @param count   the number of clients.
+	 * @param codec   the codec of the clients, null for the object stream.
+	 * @param shared  the counter of messages received by all the clients.
+	 */
+	static Client[] connect(AbstractServer server, int count, MessageCodec codec,
+		AtomicLong shared) throws IOException
+	{
+		Client[] clients = new Client[count];
+		for (int i = 0; i < count; i++)
+		{
+			clients[i] = new Client(server.getPort(), codec, shared);
+			clients[i].openConnection();
+		}
+		await(server, count);
+		return clients;
+	}
+
+	/**
+	 * Waits until a server counts a number of clients.
+	 */
+	static void await(AbstractServer server, int count)
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		while (server.getNumberOfClients() < count)
+		{
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException(
+					"only " + server.getNumberOfClients() + " of " + count + " clients connected");
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Waits until a counter reaches a value.
+	 */
+	static void await(AtomicLong counter, long value)
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		while (counter.get() < value)
+		{
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException(
+					"received " + counter.get() + " of " + value + " messages");
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Closes clients, ignoring failures.
+	 */
+	static void close(Client[] clients)
+	{
+		if (clients == null)
+			return;
+		for (Client client : clients)
+		{
+			try
+			{
+				client.closeConnection();
+			}
+			catch (IOException ex) {}
+		}
+	}
+
+	// NESTED CLASSES ---------------------------------------------------
+
+	/**
+	 * A server sending every message back to the client it came from.
+	 */
+	static final class Server extends AbstractServer
+	{
+		Server(int port)
+		{
+			super(port);
+			setSerialDispatch(false); // the handler keeps no state
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+		{
+			try
+			{
+				client.sendToClient(msg);
+			}
+			catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * A client keeping what it receives for the benchmark.
+	 */
+	static final class Client extends AbstractClient
+	{
+		/**
+		 * The messages received and not yet taken.
+		 */
+		final BlockingQueue<Object> replies = new LinkedBlockingQueue<Object>();
+
+		/**
+		 * The counter shared by the clients of a benchmark, or null.
+		 */
+		private final AtomicLong shared;
+
+		/**
+		 * Indicates if received messages are queued, not only counted.
+		 */
+		volatile boolean keepReplies = true;
+
+		Client(int port, MessageCodec codec, AtomicLong shared)
+		{
+			super("localhost", port);
+			setCodec(codec);
+			this.shared = shared;
+		}
+
+		protected void handleMessageFromServer(Object msg)
+		{
+			if (shared != null)
+				shared.incrementAndGet();
+			if (keepReplies)
+				replies.add(msg);
+		}
+
+		/**
+		 * Waits for the next message from the server.
+		 */
+		Object take() throws InterruptedException
+		{
+			Object reply = replies.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			if (reply == null)
+				throw new IllegalStateException("no reply from the server");
+			return reply;
+		}
+	}
+}
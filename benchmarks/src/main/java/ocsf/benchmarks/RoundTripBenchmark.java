@@ -0,0 +1,59 @@
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the time for one message to reach the server and come back,
+ * with each server engine and codec.
+ *
+ * @see ocsf.server.ConnectionToClient#sendToClient(Object)
+ * @see ocsf.client.AbstractClient#sendToServer(Object)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark
+{
+	/**
+	 * The event loops of the selector engine, 0 for a thread per client.
+	 */
+	@Param({"0", "2"})
+	public int selectorThreads;
+
+	/**
+	 * The codec of the client.
+	 */
+	@Param({"compact", "serialization", "legacy"})
+	public String codec;
+
+	private Loopback.Server server;
+
+	private Loopback.Client client;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException
+	{
+		server = Loopback.startServer(selectorThreads);
+		client = Loopback.connect(server, 1, Loopback.codec(codec), null)[0];
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException
+	{
+		client.closeConnection();
+		server.close();
+	}
+
+	@Benchmark
+	public Object roundTrip() throws IOException, InterruptedException
+	{
+		client.sendToServer("ping");
+		return client.take();
+	}
+}
@@ -0,0 +1,109 @@
+package ocsf.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.*;
+
+/**
+ * Measures the cost of turning a message into bytes and back, without
+ * any network: each codec encoding and decoding a frame, and the legacy
+ * object stream writing a message.
+ *
+ * @see ocsf.common.MessageCodec
+ * @see ocsf.common.BoundedObjectOutputStream
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark
+{
+	/**
+	 * Returns the message named by a benchmark parameter: a short chat
+	 * line, or a string of a kilobyte.
+	 */
+	static Object message(String payload)
+	{
+		switch (payload)
+		{
+		case "short":
+			return "alice > hello everyone";
+		case "1k":
+			return "x".repeat(1024);
+		default:
+			throw new IllegalArgumentException("unknown payload " + payload);
+		}
+	}
+
+	/**
+	 * A message and its frame for one codec.
+	 */
+	@State(Scope.Thread)
+	public static class Frames
+	{
+		@Param({"compact", "serialization"})
+		public String codec;
+
+		@Param({"short", "1k"})
+		public String payload;
+
+		MessageCodec messageCodec;
+
+		Object message;
+
+		byte[] frame;
+
+		@Setup
+		public void encode() throws IOException
+		{
+			messageCodec = Loopback.codec(codec);
+			message = message(payload);
+			frame = Framing.encode(message, messageCodec);
+		}
+	}
+
+	/**
+	 * An object stream writing to nowhere, reset as it would be on a
+	 * connection.
+	 */
+	@State(Scope.Thread)
+	public static class Stream
+	{
+		@Param({"short", "1k"})
+		public String payload;
+
+		Object message;
+
+		BoundedObjectOutputStream output;
+
+		@Setup
+		public void open() throws IOException
+		{
+			message = message(payload);
+			output = new BoundedObjectOutputStream(OutputStream.nullOutputStream(),
+				1024, 1024 * 1024, false);
+		}
+	}
+
+	@Benchmark
+	public byte[] encode(Frames frames) throws IOException
+	{
+		return Framing.encode(frames.message, frames.messageCodec);
+	}
+
+	@Benchmark
+	public Object decode(Frames frames) throws IOException, ClassNotFoundException
+	{
+		return frames.messageCodec.decode(frames.frame, 4, frames.frame.length - 4);
+	}
+
+	@Benchmark
+	public void legacyStreamWrite(Stream stream) throws IOException
+	{
+		stream.output.writeMessage(stream.message);
+	}
+}
@@ -5,8 +5,12 @@
 package edu.seg2105.client.backend;
 
 import ocsf.client.*;
+import ocsf.common.Framing;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import edu.seg2105.client.common.*;
 
@@ -20,6 +24,26 @@ import edu.seg2105.client.common.*;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+
+  /**
+   * How the client reconnects after losing the server: after up to half a
+   * second at first, doubling up to half a minute, ten times at most.
+   */
+  private static final ReconnectPolicy RECONNECT_POLICY = new ReconnectPolicy(500, 30000, 10);
+
+  /**
+   * How long the server may be silent before it is pinged, and before the
+   * connection is taken for lost and reestablished, in milliseconds.
+   */
+  private static final long HEARTBEAT_MILLIS = 15000;
+  private static final long IDLE_TIMEOUT_MILLIS = 45000;
+
+  /**
+   * The prefix of the lines the server tags with their sequence number.
+   */
+  private static final String SEQUENCE_TAG = "#seq ";
+
   //Instance variables **********************************************
   
   /**
@@ -32,6 +56,18 @@ public class ChatClient extends AbstractClient
   private String host;
   private int port;
 
+  /**
+   * The sequence number of the last line received from the server's
+   * history, sent when logging in again to resume the session.
+   */
+  private volatile long lastSequence = 0;
+
+  /**
+   * The files being sent to and received from other clients, created
+   * when first needed.
+   */
+  private FileTransfers files;
+
   
   //Constructors ****************************************************
   
@@ -53,6 +89,10 @@ public class ChatClient extends AbstractClient
     this.loginID = loginID;
     this.host = host;
     this.port = port;
+    setCodec(Framing.getDefaultCodec());
+    setReconnectPolicy(RECONNECT_POLICY);
+    setHeartbeatInterval(HEARTBEAT_MILLIS);
+    setIdleTimeout(IDLE_TIMEOUT_MILLIS);
     
     // Attempt to open the connection to the server
     openConnection();
@@ -64,12 +104,11 @@ public class ChatClient extends AbstractClient
   
   //Instance methods ************************************************
   /**
-   * Send the #login <LoginID> message to the server
+   * Send the #login <LoginID> #seq <sequence> message to the server
    */
   private void sendLoginMessage() {
 	    try {
-	        System.out.println("Sending login message: #login " + this.loginID); // Debugging
-	        sendToServer("#login " + this.loginID); // Send directly to the server
+	        sendToServer(loginCommand()); // Send directly to the server
 	        clientUI.display("Login message sent with login ID: " + this.loginID);
 	    } catch (IOException e) {
 	        clientUI.display("Error: Unable to send login message to server.");
@@ -77,6 +116,15 @@ public class ChatClient extends AbstractClient
 	    }
 	}
 
+  /**
+   * Returns the login command, with the sequence number of the last line
+   * received so that the server sends what the client missed, if any.
+   *
+   * @return The #login command.
+   */
+  private String loginCommand() {
+    return "#login " + loginID + " " + SEQUENCE_TAG + lastSequence;
+  }
   
   /**
    * This method handles all data that comes in from the server.
@@ -85,9 +133,30 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
-    
-    
+    if (msg instanceof byte[]) {
+      files().chunk((byte[]) msg);
+      return;
+    }
+    String text = msg.toString();
+    if (files().handle(text)) {
+      return;
+    }
+    if (text.startsWith(SEQUENCE_TAG)) {
+      // Remember how far the session got; a bare tag only tells that
+      int end = text.indexOf(' ', SEQUENCE_TAG.length());
+      try {
+        lastSequence = Long.parseLong(end < 0 ? text.substring(SEQUENCE_TAG.length())
+            : text.substring(SEQUENCE_TAG.length(), end));
+      } catch (NumberFormatException e) {
+        clientUI.display(text);
+        return;
+      }
+      if (end < 0) {
+        return;
+      }
+      text = text.substring(end + 1);
+    }
+    clientUI.display(text);
   }
 
   /**
@@ -107,7 +176,12 @@ public class ChatClient extends AbstractClient
 	        } else if (message.startsWith("#")) {
 	            handleCommand(message);
 	        } else {
-	            sendToServer(message);
+	            // Chat lines are queued so that typing never waits on a slow server
+	            sendToServerAsync(message).whenComplete((ignored, failure) -> {
+	                if (failure != null) {
+	                    messageNotSent(failure);
+	                }
+	            });
 	        }
 	    } catch (IOException e) {
 	        clientUI.display("Could not send message to server. Terminating client.");
@@ -175,11 +249,94 @@ public class ChatClient extends AbstractClient
 		  else if (command.equals("#getport")) {
 		    clientUI.display("Current port: " + getPort());
 		  }
+		  else if (command.startsWith("#sendfile")) {
+		    String[] args = command.trim().split("\\s+", 3);
+		    if (args.length == 3) {
+		      files().send(args[1], args[2]);
+		    } else {
+		      clientUI.display("Usage: #sendfile <loginID> <path>");
+		    }
+		  }
+		  else if (command.startsWith("#fileaccept") || command.startsWith("#filerefuse")) {
+		    String[] args = command.trim().split("\\s+");
+		    Integer id = null;
+		    if (args.length == 2 && (args[0].equals("#fileaccept") || args[0].equals("#filerefuse"))) {
+		      try {
+		        id = Integer.valueOf(args[1]);
+		      } catch (NumberFormatException e) {
+		        // Reported below
+		      }
+		    }
+		    if (id == null) {
+		      clientUI.display("Usage: #fileaccept <id> or #filerefuse <id>");
+		    } else if (args[0].equals("#fileaccept")) {
+		      files().accept(id);
+		    } else {
+		      files().refuse(id);
+		    }
+		  }
+		  else if (command.startsWith("#whisper") || command.startsWith("#join")
+		      || command.startsWith("#leave") || command.startsWith("#history")) {
+		    try {
+		      sendToServer(command);
+		    } catch (IOException e) {
+		      clientUI.display("Error sending command: " + e.getMessage());
+		    }
+		  }
 		  else {
 		    clientUI.display("Unknown command: " + tokens[0]);
 		  }
   }
   
+  /**
+   * Reports a chat line that could not be sent. A full outbound queue only
+   * drops the line; any other failure terminates the client as before.
+   *
+   * @param failure Why the line was not sent.
+   */
+  private void messageNotSent(Throwable failure) {
+    if (failure instanceof CompletionException && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    if (failure instanceof RejectedExecutionException) {
+      clientUI.display("Message not sent: too many messages are waiting for the server.");
+    } else if (!isConnected() && getReconnectPolicy() != null) {
+      clientUI.display("Message not sent: not connected to the server.");
+    } else {
+      clientUI.display("Could not send message to server. Terminating client.");
+      quit();
+    }
+  }
+
+  /**
+   * Returns the file transfers, creating them the first time, once the
+   * client is fully constructed.
+   */
+  private synchronized FileTransfers files() {
+    if (files == null) {
+      files = new FileTransfers(this, clientUI);
+    }
+    return files;
+  }
+
+  /**
+   * Stops the file transfers under way, if there ever were any.
+   */
+  private synchronized void lostFiles() {
+    if (files != null) {
+      files.connectionLost();
+    }
+  }
+
+  /**
+   * Sets the directory the files other clients send are written to.
+   *
+   * @param directory The directory, created when the first file arrives.
+   */
+  public void setDownloadDirectory(Path directory) {
+    files().setDownloadDirectory(directory);
+  }
+
   /**
    * This method terminates the client.
    */
@@ -203,6 +360,46 @@ public class ChatClient extends AbstractClient
 	 */
   	@Override
 	protected void connectionException(Exception exception) {
+  		lostFiles();
+  		if (getReconnectPolicy() == null) {
+  			clientUI.display("The server has shut down.");
+  			System.exit(0);
+  		}
+  		clientUI.display("Lost the connection to the server.");
+	}
+
+  	/**
+	 * Tells the user when the client will try to reconnect.
+	 *
+	 * @param attempt The number of the attempt.
+	 * @param delay How long the client waits before it, in milliseconds.
+	 */
+  	@Override
+	protected void reconnecting(int attempt, long delay) {
+  		clientUI.display("Reconnecting in " + delay + " ms (attempt " + attempt + ")...");
+	}
+
+  	/**
+	 * Logs in again after reconnecting, resuming the session where it was
+	 * lost.
+	 */
+  	@Override
+	protected void connectionReestablished() {
+  		clientUI.display("Reconnected to the server.");
+  		try {
+  			sendToServer(loginCommand());
+  		} catch (IOException e) {
+  			// The connection is lost again, and the client tries again
+  		}
+	}
+
+  	/**
+	 * Terminates the client once it gives up reconnecting.
+	 *
+	 * @param exception Why the last attempt failed.
+	 */
+  	@Override
+	protected void reconnectFailed(Exception exception) {
   		clientUI.display("The server has shut down.");
   		System.exit(0);
 	}
@@ -215,7 +412,23 @@ public class ChatClient extends AbstractClient
 	 */
   	@Override
 	protected void connectionClosed() {
+  		lostFiles();
   		clientUI.display("Connection closed");
 	}
+
+  	/**
+	 * Tells the user when the server stops keeping up with the messages typed,
+	 * and when it has caught up again.
+	 *
+	 * @param writable true if messages are accepted again.
+	 */
+  	@Override
+	protected void writabilityChanged(boolean writable) {
+  		if (writable) {
+  			clientUI.display("The server has caught up; messages are being sent again.");
+  		} else {
+  			clientUI.display("The server is not keeping up; new messages will be dropped until it catches up.");
+  		}
+	}
 }
 //End of ChatClient class
@@ -0,0 +1,493 @@
+package edu.seg2105.client.backend;
+
+import ocsf.client.AbstractClient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.seg2105.client.common.ChatIF;
+
+/**
+ * The files a chat client sends to and receives from other clients
+ * through the server. The messages exchanged are described with the
+ * server's FileRelay.
+ *
+ * A file is sent by a thread of its own, which reads it one chunk at a
+ * time straight into the message that carries the chunk. The thread
+ * waits whenever it is a window ahead of what the recipient acknowledged,
+ * so only a window of the file is ever on its way, and chat lines are
+ * sent in between chunks. A file offered is only received once the user
+ * accepts it. It is then written chunk by chunk, as the chunks arrive, to
+ * a partial file that takes the name of the file once complete.
+ */
+public class FileTransfers {
+    // Class variables *************************************************
+
+    /**
+     * The most data a chunk carries.
+     */
+    final public static int CHUNK_BYTES = 32 * 1024;
+
+    /**
+     * The bytes of a chunk before its data: the id of the transfer.
+     */
+    private static final int HEADER_BYTES = 4;
+
+    /**
+     * The suffix of a file until it is received completely.
+     */
+    private static final String PARTIAL = ".part";
+
+    // Instance variables **********************************************
+
+    private final AbstractClient client;
+    private final ChatIF clientUI;
+    private volatile Path downloadDirectory = Paths.get("downloads");
+    private final AtomicInteger nextRef = new AtomicInteger();
+
+    /**
+     * The files offered that the server has not given an id yet, by
+     * reference, then the files being sent, by id.
+     */
+    private final ConcurrentHashMap<String, Outgoing> offered = new ConcurrentHashMap<String, Outgoing>();
+    private final ConcurrentHashMap<Integer, Outgoing> sending = new ConcurrentHashMap<Integer, Outgoing>();
+
+    /**
+     * The files offered that the user has not answered yet, by id.
+     */
+    private final ConcurrentHashMap<Integer, Offer> offers = new ConcurrentHashMap<Integer, Offer>();
+
+    /**
+     * The files being received, by id. Once accepted, only the thread
+     * reading from the server uses them.
+     */
+    private final ConcurrentHashMap<Integer, Incoming> receiving = new ConcurrentHashMap<Integer, Incoming>();
+
+    /**
+     * A file being sent. The fields set once the server accepts the offer,
+     * and the progress, are guarded by the transfer.
+     */
+    private static class Outgoing {
+        final Path path;
+        final String recipient;
+        final long size;
+        int id;
+        int window;
+        long acknowledged;
+        boolean cancelled;
+
+        Outgoing(Path path, String recipient, long size) {
+            this.path = path;
+            this.recipient = recipient;
+            this.size = size;
+        }
+
+        /**
+         * Waits until the recipient has acknowledged enough of the file for
+         * the sender to have sent a number of bytes.
+         *
+         * @return false if the transfer was cancelled.
+         */
+        synchronized boolean awaitWindow(long sent) throws InterruptedException {
+            while (!cancelled && sent - acknowledged > window) {
+                wait();
+            }
+            return !cancelled;
+        }
+
+        synchronized void acknowledged(long written) {
+            acknowledged = written;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A file offered by another client.
+     */
+    private static class Offer {
+        final String sender;
+        final long size;
+        final String name;
+
+        Offer(String sender, long size, String name) {
+            this.sender = sender;
+            this.size = size;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A file being received.
+     */
+    private static class Incoming {
+        final String sender;
+        final long size;
+        final Path target;
+        final Path partial;
+        final FileChannel channel;
+        long received;
+
+        Incoming(String sender, long size, Path target, Path partial, FileChannel channel) {
+            this.sender = sender;
+            this.size = size;
+            this.target = target;
+            this.partial = partial;
+            this.channel = channel;
+        }
+    }
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the file transfers of a client.
+     *
+     * @param client The client the files go through.
+     * @param clientUI Where to tell the user how transfers go.
+     */
+    public FileTransfers(AbstractClient client, ChatIF clientUI) {
+        this.client = client;
+        this.clientUI = clientUI;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Sets the directory files received are written to, "downloads" by
+     * default. It is created when the first file arrives.
+     *
+     * @param directory The directory.
+     */
+    public void setDownloadDirectory(Path directory) {
+        this.downloadDirectory = directory;
+    }
+
+    /**
+     * Offers a file to another client. The file is sent once the server
+     * accepts the offer.
+     *
+     * @param recipient The login ID of the recipient.
+     * @param file The path of the file.
+     */
+    public void send(String recipient, String file) {
+        Path path;
+        long size;
+        try {
+            path = Paths.get(file);
+            size = Files.size(path);
+            if (!Files.isRegularFile(path)) {
+                throw new IOException("not a file");
+            }
+        } catch (NoSuchFileException e) {
+            clientUI.display("Error: No such file: " + file);
+            return;
+        } catch (IOException | InvalidPathException e) {
+            clientUI.display("Error: Cannot send " + file + ": " + e.getMessage());
+            return;
+        }
+
+        String ref = String.valueOf(nextRef.incrementAndGet());
+        offered.put(ref, new Outgoing(path, recipient, size));
+        client.sendToServerAsync("#fileoffer " + ref + " " + recipient + " " + size + " " + path.getFileName())
+            .whenComplete((ignored, failure) -> {
+                if (failure != null && offered.remove(ref) != null) {
+                    clientUI.display("Error: Could not offer " + file + " to " + recipient + ".");
+                }
+            });
+        clientUI.display("Offered " + path.getFileName() + " to " + recipient
+            + "; it is sent once " + recipient + " accepts it.");
+    }
+
+    /**
+     * Accepts a file offered by another client: starts receiving it.
+     *
+     * @param id The id of the offer.
+     */
+    public void accept(int id) {
+        Offer offer = offers.remove(id);
+        if (offer == null) {
+            clientUI.display("No file offer " + id + ".");
+            return;
+        }
+
+        Path target;
+        Path partial;
+        FileChannel channel;
+        try {
+            // Keep only the name, so that a file cannot land outside the directory
+            Path fileName = Paths.get(offer.name).getFileName();
+            if (fileName == null || fileName.toString().equals("..")) {
+                fileName = Paths.get("file-" + id);
+            }
+            Path directory = Files.createDirectories(downloadDirectory);
+            target = directory.resolve(fileName);
+            if (Files.exists(target)) {
+                target = directory.resolve(id + "-" + fileName);
+            }
+            partial = directory.resolve(target.getFileName() + PARTIAL);
+            channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } catch (IOException | InvalidPathException e) {
+            clientUI.display("Error: Cannot receive " + offer.name + " from " + offer.sender + ": " + e.getMessage());
+            client.sendToServerAsync("#filecancel " + id);
+            return;
+        }
+
+        Incoming incoming = new Incoming(offer.sender, offer.size, target, partial, channel);
+        receiving.put(id, incoming);
+        client.sendToServerAsync("#fileaccept " + id);
+        clientUI.display("Receiving " + offer.name + " from " + offer.sender + ".");
+        received(id, incoming);
+    }
+
+    /**
+     * Refuses a file offered by another client.
+     *
+     * @param id The id of the offer.
+     */
+    public void refuse(int id) {
+        Offer offer = offers.remove(id);
+        if (offer == null) {
+            clientUI.display("No file offer " + id + ".");
+            return;
+        }
+        client.sendToServerAsync("#filecancel " + id);
+        clientUI.display("Refused " + offer.name + " from " + offer.sender + ".");
+    }
+
+    /**
+     * Handles a file transfer command from the server.
+     *
+     * @param message The message received.
+     * @return false if the message is not about file transfers.
+     */
+    public boolean handle(String message) {
+        if (!message.startsWith("#file")) {
+            return false;
+        }
+        String[] tokens = message.split(" ", 5);
+        try {
+            if (tokens[0].equals("#fileid") && tokens.length == 4) {
+                accepted(tokens[1], Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+            } else if (tokens[0].equals("#fileack") && tokens.length == 3) {
+                acknowledged(Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]));
+            } else if (tokens[0].equals("#fileincoming") && tokens.length == 5) {
+                incoming(Integer.parseInt(tokens[1]), tokens[2], Long.parseLong(tokens[3]), tokens[4]);
+            } else if (tokens[0].equals("#filefail") && tokens.length >= 2) {
+                Outgoing outgoing = offered.remove(tokens[1]);
+                if (outgoing != null) {
+                    clientUI.display("Could not send " + outgoing.path.getFileName() + ": "
+                        + message.substring(tokens[0].length() + tokens[1].length() + 2));
+                }
+            } else if (tokens[0].equals("#filecancel") && tokens.length >= 2) {
+                String reason = message.substring(Math.min(message.length(),
+                    tokens[0].length() + tokens[1].length() + 2));
+                cancelled(Integer.parseInt(tokens[1]), reason);
+            } else {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a chunk of a file being received, and acknowledges it.
+     *
+     * @param chunk The chunk.
+     */
+    public void chunk(byte[] chunk) {
+        if (chunk.length < HEADER_BYTES) {
+            return;
+        }
+        int id = ByteBuffer.wrap(chunk).getInt();
+        Incoming incoming = receiving.get(id);
+        if (incoming == null) {
+            return;
+        }
+
+        try {
+            ByteBuffer data = ByteBuffer.wrap(chunk, HEADER_BYTES, chunk.length - HEADER_BYTES);
+            if (incoming.received + data.remaining() > incoming.size) {
+                throw new IOException("more data than announced");
+            }
+            while (data.hasRemaining()) {
+                incoming.received += incoming.channel.write(data);
+            }
+        } catch (IOException e) {
+            abandon(id, incoming, "Error: Receiving " + incoming.target.getFileName() + " failed: " + e.getMessage());
+            client.sendToServerAsync("#filecancel " + id);
+            return;
+        }
+        received(id, incoming);
+    }
+
+    /**
+     * Stops every transfer, when the connection to the server is lost.
+     */
+    public void connectionLost() {
+        for (String ref : offered.keySet()) {
+            offered.remove(ref);
+        }
+        for (Integer id : offers.keySet()) {
+            offers.remove(id);
+        }
+        for (Integer id : sending.keySet()) {
+            Outgoing outgoing = sending.remove(id);
+            if (outgoing != null) {
+                outgoing.cancel();
+            }
+        }
+        for (Integer id : receiving.keySet()) {
+            Incoming incoming = receiving.get(id);
+            if (incoming != null) {
+                abandon(id, incoming, "Receiving " + incoming.target.getFileName() + " was interrupted.");
+            }
+        }
+    }
+
+    /**
+     * Starts sending a file the server accepted.
+     */
+    private void accepted(String ref, int id, int window) {
+        Outgoing outgoing = offered.remove(ref);
+        if (outgoing == null) {
+            return;
+        }
+        synchronized (outgoing) {
+            outgoing.id = id;
+            outgoing.window = window;
+        }
+        sending.put(id, outgoing);
+        clientUI.display("Sending " + outgoing.path.getFileName() + " to " + outgoing.recipient
+            + " (" + outgoing.size + " bytes).");
+        Thread.ofVirtual().name("send " + outgoing.path.getFileName()).start(() -> stream(outgoing));
+    }
+
+    /**
+     * Sends the chunks of a file, keeping within the window.
+     */
+    private void stream(Outgoing outgoing) {
+        int chunkBytes;
+        synchronized (outgoing) {
+            chunkBytes = Math.min(CHUNK_BYTES, outgoing.window);
+        }
+        try (FileChannel file = FileChannel.open(outgoing.path, StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < outgoing.size) {
+                int length = (int) Math.min(chunkBytes, outgoing.size - sent);
+                if (!outgoing.awaitWindow(sent + length)) {
+                    return;
+                }
+
+                // Each chunk is a message of its own: the stream may still
+                // hold the previous one
+                byte[] chunk = new byte[HEADER_BYTES + length];
+                ByteBuffer data = ByteBuffer.wrap(chunk);
+                data.putInt(outgoing.id);
+                while (data.hasRemaining()) {
+                    if (file.read(data, sent + data.position() - HEADER_BYTES) < 0) {
+                        throw new EOFException("the file is shorter than when offered");
+                    }
+                }
+                client.sendToServer(chunk);
+                sent += length;
+            }
+        } catch (IOException e) {
+            if (sending.remove(outgoing.id) != null) {
+                clientUI.display("Error: Sending " + outgoing.path.getFileName() + " failed: " + e.getMessage());
+                client.sendToServerAsync("#filecancel " + outgoing.id);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lets the thread sending a file send more of it.
+     */
+    private void acknowledged(int id, long written) {
+        Outgoing outgoing = sending.get(id);
+        if (outgoing == null) {
+            return;
+        }
+        outgoing.acknowledged(written);
+        if (written == outgoing.size) {
+            sending.remove(id);
+            clientUI.display("Sent " + outgoing.path.getFileName() + " to " + outgoing.recipient + ".");
+        }
+    }
+
+    /**
+     * Tells the user about a file offered, which waits for an answer.
+     */
+    private void incoming(int id, String sender, long size, String name) {
+        offers.put(id, new Offer(sender, size, name));
+        clientUI.display(sender + " offers you " + name + " (" + size + " bytes). Type #fileaccept "
+            + id + " to receive it or #filerefuse " + id + " to refuse it.");
+    }
+
+    /**
+     * Acknowledges what was written of a file, and completes the file once
+     * it is all written.
+     */
+    private void received(int id, Incoming incoming) {
+        client.sendToServerAsync("#fileack " + id + " " + incoming.received);
+        if (incoming.received < incoming.size) {
+            return;
+        }
+
+        receiving.remove(id);
+        try {
+            incoming.channel.close();
+            Files.move(incoming.partial, incoming.target);
+            clientUI.display("Received " + incoming.target + " from " + incoming.sender + ".");
+        } catch (IOException e) {
+            clientUI.display("Error: Cannot save " + incoming.target + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the cancellation of a transfer, in either direction.
+     */
+    private void cancelled(int id, String reason) {
+        Outgoing outgoing = sending.remove(id);
+        if (outgoing != null) {
+            outgoing.cancel();
+            clientUI.display("Sending " + outgoing.path.getFileName() + " was cancelled. " + reason);
+        }
+        Offer offer = offers.remove(id);
+        if (offer != null) {
+            clientUI.display("The offer of " + offer.name + " from " + offer.sender + " was withdrawn. " + reason);
+        }
+        Incoming incoming = receiving.get(id);
+        if (incoming != null) {
+            abandon(id, incoming, "Receiving " + incoming.target.getFileName() + " was cancelled. " + reason);
+        }
+    }
+
+    /**
+     * Stops receiving a file and deletes what was written of it.
+     */
+    private void abandon(int id, Incoming incoming, String notice) {
+        if (receiving.remove(id, incoming)) {
+            try {
+                incoming.channel.close();
+                Files.deleteIfExists(incoming.partial);
+            } catch (IOException e) {
+                // Nothing more can be done about the partial file
+            }
+            clientUI.display(notice);
+        }
+    }
+}
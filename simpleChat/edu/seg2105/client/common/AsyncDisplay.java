@@ -0,0 +1,228 @@
+package edu.seg2105.client.common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ChatIF that does not write on the calling thread. Lines are put in a
+ * bounded ring buffer and a single writer thread takes them out in
+ * batches, writing each batch to the console or a log file with one
+ * flush. The thread handling a message therefore only pays for queuing
+ * the line, however slow the console is.
+ *
+ * When the buffer is full, display() either waits for room or drops the
+ * line, depending on the policy. Dropped lines are counted and reported
+ * in the output once the writer catches up. Once the display is closed,
+ * lines are dropped too, and never waited for.
+ */
+public class AsyncDisplay implements ChatIF {
+    // Class variables *************************************************
+
+    /**
+     * The default number of lines the buffer holds.
+     */
+    final public static int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * How long display() waits for room at a time, in milliseconds, before
+     * checking that the writer is still there to make it.
+     */
+    private static final long OFFER_MILLIS = 100;
+
+    /**
+     * What display() does when the buffer is full.
+     */
+    public enum WhenFull {
+        /** Wait until the writer has made room. No line is lost. */
+        BLOCK,
+        /** Discard the line and count it. The caller never waits. */
+        DROP
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The lines waiting to be written.
+     */
+    private final ArrayBlockingQueue<String> buffer;
+
+    /**
+     * Where the lines are written.
+     */
+    private final Writer out;
+
+    /**
+     * What happens to a line when the buffer is full.
+     */
+    private final WhenFull whenFull;
+
+    /**
+     * The number of lines dropped and not yet reported.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The thread writing the lines.
+     */
+    private final Thread writer;
+
+    /**
+     * Set when no more lines are accepted.
+     */
+    private volatile boolean closed = false;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a display writing to a stream.
+     *
+     * @param out The stream receiving the lines.
+     * @param capacity The number of lines the buffer holds.
+     * @param whenFull What display() does when the buffer is full.
+     */
+    public AsyncDisplay(Writer out, int capacity, WhenFull whenFull) {
+        this.buffer = new ArrayBlockingQueue<String>(Math.max(1, capacity));
+        this.out = out;
+        this.whenFull = whenFull;
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLines();
+            }
+        }, "AsyncDisplay writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write what is still buffered when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }));
+    }
+
+    /**
+     * Constructs a display writing to the console.
+     *
+     * @param whenFull What display() does when the buffer is full.
+     * @return The display.
+     */
+    public static AsyncDisplay toConsole(WhenFull whenFull) {
+        return new AsyncDisplay(new OutputStreamWriter(System.out), DEFAULT_CAPACITY, whenFull);
+    }
+
+    /**
+     * Constructs a display appending to a log file.
+     *
+     * @param path The path of the log file.
+     * @param whenFull What display() does when the buffer is full.
+     * @return The display.
+     * @exception IOException If the file cannot be opened.
+     */
+    public static AsyncDisplay toFile(String path, WhenFull whenFull) throws IOException {
+        return new AsyncDisplay(new FileWriter(path, true), DEFAULT_CAPACITY, whenFull);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Queues a line for the writer thread.
+     *
+     * @param message The string to be displayed.
+     */
+    @Override
+    public void display(String message) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (whenFull == WhenFull.BLOCK) {
+            try {
+                // The writer may stop while we wait; never wait for it then
+                while (!buffer.offer(message, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed || !writer.isAlive()) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return;
+            }
+        } else if (!buffer.offer(message)) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        // Closed meanwhile: the writer may have drained the buffer for the
+        // last time, so take the line back unless it already has it
+        if (closed && buffer.remove(message)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of lines dropped since the last report.
+     *
+     * @return The number of dropped lines.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops accepting lines and waits for the writer thread to write
+     * those already buffered.
+     */
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes lines out of the buffer and writes them, a batch at a time,
+     * until the display is closed and the buffer is empty.
+     */
+    private void writeLines() {
+        List<String> batch = new ArrayList<String>();
+        while (true) {
+            try {
+                if (!closed) {
+                    batch.add(buffer.take());
+                }
+            } catch (InterruptedException e) {
+                // Closing: write what is left, then stop
+            }
+            buffer.drainTo(batch);
+            if (batch.isEmpty() && closed) {
+                return;
+            }
+
+            try {
+                for (String line : batch) {
+                    out.write(line);
+                    out.write(System.lineSeparator());
+                }
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    out.write("(" + lost + " lines dropped)" + System.lineSeparator());
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Nowhere left to report it; keep draining so callers never block forever
+            }
+            batch.clear();
+        }
+    }
+}
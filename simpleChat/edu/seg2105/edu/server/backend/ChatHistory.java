@@ -0,0 +1,609 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The chat history of the server: an append-only log of the lines sent
+ * to clients, kept in segment files mapped into memory so that appending
+ * a line is a copy into the page cache and reading one never loads a
+ * segment onto the heap.
+ *
+ * Every entry gets the next sequence number. A segment is a file of
+ * fixed size named after the sequence number of its first entry; when
+ * the last segment is full a new one is started, and the oldest are
+ * deleted beyond the number kept. Each segment has a sparse index
+ * holding the position of one entry every few kilobytes, so finding an
+ * entry by sequence number is a binary search and a short scan. Entries
+ * are then decoded one at a time, straight from the mapping.
+ *
+ * The history survives restarts: the segments found in the directory
+ * are mapped again and their indexes rebuilt by hopping from header to
+ * header. An entry is laid out as
+ * <pre>
+ *   int length, long sequence, long time, short room length, room, text
+ * </pre>
+ * where the length counts the bytes after itself. The length is written
+ * last, so an entry cut short by a crash is ignored when the segment is
+ * recovered.
+ */
+public class ChatHistory implements Closeable {
+    // Class variables *************************************************
+
+    /**
+     * The default size of a segment file, in bytes.
+     */
+    final public static int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The default number of segment files kept.
+     */
+    final public static int DEFAULT_SEGMENTS = 8;
+
+    /**
+     * The number of bytes between two entries of a sparse index.
+     */
+    private static final int INDEX_INTERVAL = 4096;
+
+    /**
+     * The bytes of an entry before its room and text.
+     */
+    private static final int HEADER_BYTES = 4 + 8 + 8 + 2;
+
+    /**
+     * The extension of segment files.
+     */
+    private static final String SUFFIX = ".log";
+
+    /**
+     * An entry read back from the history.
+     */
+    public static class Entry {
+        private final long sequence;
+        private final long time;
+        private final String room;
+        private final String text;
+
+        Entry(long sequence, long time, String room, String text) {
+            this.sequence = sequence;
+            this.time = time;
+            this.room = room;
+            this.text = text;
+        }
+
+        /** @return the sequence number of the entry. */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** @return when the entry was appended, in milliseconds since the epoch. */
+        public long getTime() {
+            return time;
+        }
+
+        /** @return the room the line was sent to, or null if it was sent to everyone. */
+        public String getRoom() {
+            return room;
+        }
+
+        /** @return the line itself. */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Returns the entry as shown to a client: its time, its room if
+         * any, and the line.
+         */
+        @Override
+        public String toString() {
+            return String.format("[%tT] ", time) + (room == null ? "" : "[" + room + "] ") + text;
+        }
+    }
+
+    /**
+     * Receives the entries read from the history, oldest first.
+     */
+    public interface EntryHandler {
+        /**
+         * Called for every entry read.
+         *
+         * @param entry The entry.
+         * @throws IOException If the entry cannot be passed on; reading stops.
+         */
+        void entry(Entry entry) throws IOException;
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory holding the segment files.
+     */
+    private final Path directory;
+
+    /**
+     * The size of a new segment file.
+     */
+    private final int segmentBytes;
+
+    /**
+     * The number of segment files kept.
+     */
+    private final int maxSegments;
+
+    /**
+     * The segments, oldest first. The last one receives new entries.
+     * Guarded by the lock of the history, as is the end of the last one.
+     */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Set once the history is closed.
+     */
+    private boolean closed = false;
+
+    // Constructors ****************************************************
+
+    /**
+     * Opens the history kept in a directory, with the default segment
+     * size and number of segments.
+     *
+     * @param directory The directory, created if needed.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public ChatHistory(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Opens the history kept in a directory.
+     *
+     * @param directory The directory, created if needed.
+     * @param segmentBytes The size of a segment file, in bytes.
+     * @param maxSegments The number of segment files kept.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public ChatHistory(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(segmentBytes, INDEX_INTERVAL);
+        this.maxSegments = Math.max(maxSegments, 1);
+
+        Files.createDirectories(directory);
+        List<Long> bases = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        bases.sort(null);
+
+        for (long base : bases) {
+            Segment segment = new Segment(base, this.segmentBytes);
+            // A segment that does not follow the previous one starts the
+            // history afresh, as when a segment was lost
+            if (!segments.isEmpty() && segment.baseSequence != last().nextSequence) {
+                deleteOldest(segments.size());
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(1, this.segmentBytes));
+        }
+        deleteOldest(segments.size() - this.maxSegments);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Appends a line to the history.
+     *
+     * @param room The room the line was sent to, or null if it was sent to
+     *        everyone.
+     * @param text The line.
+     * @return The sequence number of the entry.
+     * @throws IOException If a new segment cannot be created, the entry
+     *         does not fit in a segment, or the history is closed.
+     */
+    public synchronized long append(String room, String text) throws IOException {
+        if (closed) {
+            throw new IOException("history is closed");
+        }
+
+        byte[] roomBytes = room == null ? new byte[0] : room.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_BYTES + roomBytes.length + textBytes.length;
+        if (roomBytes.length > Short.MAX_VALUE || size + 4 > segmentBytes) {
+            throw new IOException("entry too large for the history: " + size + " bytes");
+        }
+
+        Segment segment = last();
+        if (segment.end + size + 4 > segment.buffer.capacity()) {
+            segment = roll();
+        }
+        return segment.append(System.currentTimeMillis(), roomBytes, textBytes, size);
+    }
+
+    /**
+     * Passes the entries from a sequence number onwards to a handler,
+     * oldest first. Entries appended meanwhile are not passed on. If the
+     * entry with that number is no longer kept, reading starts with the
+     * oldest entry kept.
+     *
+     * @param fromSequence The sequence number of the first entry wanted.
+     * @param handler Receives the entries.
+     * @return The number of entries passed on.
+     * @throws IOException If the handler throws it.
+     */
+    public int replay(long fromSequence, EntryHandler handler) throws IOException {
+        Segment[] view;
+        int lastEnd;
+        synchronized (this) {
+            view = segments.toArray(new Segment[segments.size()]);
+            lastEnd = last().end;
+        }
+
+        int first = view.length - 1;
+        while (first > 0 && view[first].baseSequence > fromSequence) {
+            first--;
+        }
+
+        int count = 0;
+        for (int i = first; i < view.length; i++) {
+            Segment segment = view[i];
+            int end = i == view.length - 1 ? lastEnd : segment.end;
+            int position = i == first ? segment.find(fromSequence) : 0;
+            while (position < end) {
+                MappedByteBuffer buffer = segment.buffer;
+                int length = buffer.getInt(position);
+                long sequence = buffer.getLong(position + 4);
+                if (sequence >= fromSequence) {
+                    handler.entry(segment.decode(position, length));
+                    count++;
+                }
+                position += 4 + length;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Passes the last entries of the history to a handler, oldest first.
+     *
+     * @param count The number of entries wanted.
+     * @param handler Receives the entries.
+     * @return The number of entries passed on, fewer if the history holds
+     *         fewer.
+     * @throws IOException If the handler throws it.
+     */
+    public int replayLast(int count, EntryHandler handler) throws IOException {
+        return replay(getNextSequence() - Math.max(count, 0), handler);
+    }
+
+    /**
+     * Passes the last entries seen in a room, those sent to the room or to
+     * everyone, to a handler, oldest first. The segments are scanned from
+     * the newest, without decoding the entries of other rooms, until
+     * enough entries are found, so a quiet room still gets its last lines.
+     *
+     * @param count The number of entries wanted.
+     * @param room The room.
+     * @param handler Receives the entries.
+     * @return The number of entries passed on, fewer if the history holds
+     *         fewer for the room.
+     * @throws IOException If the handler throws it.
+     */
+    public int replayLast(int count, String room, EntryHandler handler) throws IOException {
+        Segment[] view;
+        int lastEnd;
+        synchronized (this) {
+            view = segments.toArray(new Segment[segments.size()]);
+            lastEnd = last().end;
+        }
+
+        // The positions of the entries wanted, newest segment first
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        List<int[]> found = new ArrayList<int[]>();
+        int wanted = Math.max(count, 0);
+        for (int i = view.length - 1; i >= 0 && wanted > 0; i--) {
+            int[] positions = view[i].lastIn(roomBytes, i == view.length - 1 ? lastEnd : view[i].end, wanted);
+            found.add(positions);
+            wanted -= positions.length;
+        }
+
+        int passed = 0;
+        for (int i = found.size() - 1; i >= 0; i--) {
+            Segment segment = view[view.length - 1 - i];
+            for (int position : found.get(i)) {
+                handler.entry(segment.decode(position, segment.buffer.getInt(position)));
+                passed++;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Returns the sequence number the next entry will get.
+     *
+     * @return The next sequence number.
+     */
+    public synchronized long getNextSequence() {
+        return last().nextSequence;
+    }
+
+    /**
+     * Returns the sequence number of the oldest entry kept.
+     *
+     * @return The oldest sequence number, equal to the next one if the
+     *         history is empty.
+     */
+    public synchronized long getFirstSequence() {
+        return segments.get(0).baseSequence;
+    }
+
+    /**
+     * Writes the entries appended so far to the disk.
+     */
+    public synchronized void flush() {
+        last().buffer.force();
+    }
+
+    /**
+     * Writes the entries to the disk and refuses further entries. The
+     * segments stay readable until they are garbage collected.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            flush();
+        }
+    }
+
+    /**
+     * Returns the segment receiving new entries.
+     */
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Seals the last segment, starts a new one and deletes the oldest
+     * segments beyond the number kept.
+     *
+     * @return The new segment.
+     */
+    private Segment roll() throws IOException {
+        Segment full = last();
+        full.buffer.force();
+        Segment segment = new Segment(full.nextSequence, segmentBytes);
+        segments.add(segment);
+        deleteOldest(segments.size() - maxSegments);
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments.
+     *
+     * @param count The number of segments to delete, if positive.
+     */
+    private void deleteOldest(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Files.deleteIfExists(segments.remove(0).file);
+        }
+    }
+
+    // Inner classes ***************************************************
+
+    /**
+     * One segment file, mapped in full, and its sparse index.
+     */
+    private class Segment {
+        final Path file;
+        final long baseSequence;
+        final MappedByteBuffer buffer;
+
+        /**
+         * The position after the last entry.
+         */
+        int end = 0;
+
+        /**
+         * The sequence number of the next entry.
+         */
+        long nextSequence;
+
+        /**
+         * The sparse index: entry i gives the sequence number, relative to
+         * the base, and the position of an entry.
+         */
+        int[] indexSequences = new int[16];
+        int[] indexPositions = new int[16];
+        int indexCount = 0;
+
+        /**
+         * Maps a segment file, creating it if needed, and recovers its
+         * entries.
+         *
+         * @param baseSequence The sequence number of its first entry.
+         * @param size The size of the file; a larger existing file keeps its size.
+         */
+        Segment(long baseSequence, int size) throws IOException {
+            this.baseSequence = baseSequence;
+            this.nextSequence = baseSequence;
+            this.file = directory.resolve(String.format("%020d", baseSequence) + SUFFIX);
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long length = Math.max(channel.size(), size);
+                // The mapping stays valid once the channel is closed
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+            recover();
+        }
+
+        /**
+         * Finds the end of the entries by hopping from header to header,
+         * indexing them on the way.
+         */
+        private void recover() {
+            int capacity = buffer.capacity();
+            while (end + HEADER_BYTES <= capacity) {
+                int length = buffer.getInt(end);
+                if (length < HEADER_BYTES - 4 || end + 4 + length > capacity
+                        || buffer.getLong(end + 4) != nextSequence) {
+                    break;
+                }
+                index(end);
+                end += 4 + length;
+                nextSequence++;
+            }
+        }
+
+        /**
+         * Writes an entry at the end of the segment.
+         *
+         * @return The sequence number of the entry.
+         */
+        long append(long time, byte[] room, byte[] text, int size) {
+            int position = end;
+            buffer.putLong(position + 4, nextSequence);
+            buffer.putLong(position + 12, time);
+            buffer.putShort(position + 20, (short) room.length);
+            buffer.put(position + HEADER_BYTES, room);
+            buffer.put(position + HEADER_BYTES + room.length, text);
+            // The length goes last: it makes the entry part of the segment
+            buffer.putInt(position, size - 4);
+
+            index(position);
+            end = position + size;
+            return nextSequence++;
+        }
+
+        /**
+         * Adds the entry at a position to the sparse index, if the last
+         * entry indexed is far enough behind.
+         */
+        private void index(int position) {
+            if (indexCount > 0 && position - indexPositions[indexCount - 1] < INDEX_INTERVAL) {
+                return;
+            }
+            if (indexCount == indexPositions.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexSequences[indexCount] = (int) (nextSequence - baseSequence);
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+        /**
+         * Returns the position of the last indexed entry at or before a
+         * sequence number, where a scan for that entry starts.
+         */
+        int find(long sequence) {
+            int[] sequences;
+            int[] positions;
+            int count;
+            synchronized (ChatHistory.this) {
+                sequences = indexSequences;
+                positions = indexPositions;
+                count = indexCount;
+            }
+
+            long relative = sequence - baseSequence;
+            int low = 0;
+            int high = count - 1;
+            int found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (sequences[middle] <= relative) {
+                    found = positions[middle];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Returns the positions of the last entries of the segment sent to
+         * a room or to everyone, oldest first.
+         *
+         * @param room The room, in UTF-8.
+         * @param end The position after the last entry to look at.
+         * @param count The number of entries wanted.
+         */
+        int[] lastIn(byte[] room, int end, int count) {
+            // A ring of the positions of the last entries found
+            int[] ring = new int[Math.min(count, 1024)];
+            int found = 0;
+            int position = 0;
+            while (position < end) {
+                int length = buffer.getInt(position);
+                if (inRoom(position, room)) {
+                    if (found == ring.length && ring.length < count) {
+                        ring = Arrays.copyOf(ring, (int) Math.min((long) count, ring.length * 2L));
+                    }
+                    ring[found % ring.length] = position;
+                    found++;
+                }
+                position += 4 + length;
+            }
+
+            int kept = Math.min(found, ring.length);
+            int[] positions = new int[kept];
+            for (int i = 0; i < kept; i++) {
+                positions[i] = ring[(found - kept + i) % ring.length];
+            }
+            return positions;
+        }
+
+        /**
+         * Tells if the entry at a position was sent to a room or to
+         * everyone.
+         */
+        private boolean inRoom(int position, byte[] room) {
+            int roomLength = buffer.getShort(position + 20);
+            if (roomLength == 0) {
+                return true;
+            }
+            if (roomLength != room.length) {
+                return false;
+            }
+            for (int i = 0; i < roomLength; i++) {
+                if (buffer.get(position + HEADER_BYTES + i) != room[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Decodes the entry at a position.
+         */
+        Entry decode(int position, int length) {
+            long sequence = buffer.getLong(position + 4);
+            long time = buffer.getLong(position + 12);
+            int roomLength = buffer.getShort(position + 20);
+            byte[] bytes = new byte[length - (HEADER_BYTES - 4)];
+            buffer.get(position + HEADER_BYTES, bytes);
+            String room = roomLength == 0 ? null : new String(bytes, 0, roomLength, StandardCharsets.UTF_8);
+            String text = new String(bytes, roomLength, bytes.length - roomLength, StandardCharsets.UTF_8);
+            return new Entry(sequence, time, room, text);
+        }
+    }
+}
+// End of ChatHistory class
@@ -5,9 +5,17 @@ package edu.seg2105.edu.server.backend;
 
 
 import ocsf.server.*;
+import edu.seg2105.client.common.AsyncDisplay;
 import edu.seg2105.client.common.ChatIF;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class overrides some of the methods in the abstract 
@@ -26,8 +34,140 @@ public class EchoServer extends AbstractServer
    * The default port to listen on.
    */
   final public static int DEFAULT_PORT = 5555;
+
+  /**
+   * The room every client is in after logging in, and returns to when
+   * leaving another room.
+   */
+  final public static String DEFAULT_ROOM = "lobby";
+
+  /**
+   * The login ID of a client, and the room it is in.
+   */
+  private static final AttributeKey<String> LOGIN_ID =
+    AttributeKey.valueOf("loginID", String.class);
+  private static final AttributeKey<String> ROOM =
+    AttributeKey.valueOf("room", String.class);
+
+  /**
+   * Replies sent to misbehaving clients, encoded once for all of them.
+   */
+  private static final EncodedMessage LOGIN_ALREADY_SET =
+    new EncodedMessage("Error: Login has already been set. Connection will be closed.");
+  private static final EncodedMessage LOGIN_ID_REQUIRED =
+    new EncodedMessage("Error: Login ID is required.");
+  private static final EncodedMessage LOGIN_REQUIRED =
+    new EncodedMessage("Error: You must log in first. Connection will be closed.");
+  private static final EncodedMessage LOGIN_IN_USE =
+    new EncodedMessage("Error: Login ID is already in use. Connection will be closed.");
+  private static final EncodedMessage WHISPER_USAGE =
+    new EncodedMessage("Usage: #whisper <loginID> <message>");
+  private static final EncodedMessage JOIN_USAGE =
+    new EncodedMessage("Usage: #join <room>");
+  private static final EncodedMessage LEAVE_USAGE =
+    new EncodedMessage("Usage: #leave <room>");
+  private static final EncodedMessage ROOM_USAGE =
+    new EncodedMessage("Usage: #join <room> or #leave <room>");
+  private static final EncodedMessage HISTORY_USAGE =
+    new EncodedMessage("Usage: #history <n>");
+  private static final EncodedMessage NO_HISTORY =
+    new EncodedMessage("Error: This server does not keep a history.");
+  private static final EncodedMessage MAILBOX_ERROR =
+    new EncodedMessage("Error: Your offline messages could not be read.");
+  private static final EncodedMessage FILE_COMMAND_ERROR =
+    new EncodedMessage("Error: Malformed file transfer command.");
+  private static final EncodedMessage MESSAGES_LOST =
+    new EncodedMessage("Some messages sent while you were away are no longer kept.");
+
+  /**
+   * The prefix of the lines sent to clients resuming sessions, followed
+   * by the sequence number of the line in the history. A client resuming
+   * its session also puts it after its login ID, followed by the sequence
+   * number of the last line it received.
+   */
+  private static final String SEQUENCE_TAG = "#seq ";
+
+  /**
+   * The number of sessions whose room is kept for the client to resume.
+   */
+  private static final int MAX_SESSIONS = 10000;
+
+  /**
+   * How long a client may be silent before it is pinged, and before it
+   * is taken for gone and disconnected, in milliseconds.
+   */
+  private static final long HEARTBEAT_MILLIS = 15000;
+  private static final long IDLE_TIMEOUT_MILLIS = 45000;
+
+  /**
+   * How many messages, and how many bytes, a client may send per second.
+   * File chunks count, so the limits leave room for a transfer while
+   * keeping one client from flooding the others with broadcasts.
+   */
+  private static final int MESSAGES_PER_SECOND = 200;
+  private static final long BYTES_PER_SECOND = 8 * 1024 * 1024;
+
+  /**
+   * The number of entries #history sends when no number is given, and
+   * the most it sends.
+   */
+  final public static int DEFAULT_HISTORY_LINES = 20;
+  final public static int MAX_HISTORY_LINES = 1000;
   
   private ChatIF serverUI;
+
+  /**
+   * The connection of every logged in client, by login ID.
+   */
+  private final ConcurrentHashMap<String, ConnectionToClient> clientsByLogin =
+    new ConcurrentHashMap<String, ConnectionToClient>();
+
+  /**
+   * The members of every room that has any, by room name. Each client is
+   * in exactly one room once logged in. Membership sets are concurrent,
+   * so chat lines can be delivered while clients join and leave.
+   */
+  private final ConcurrentHashMap<String, Set<ConnectionToClient>> rooms =
+    new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+
+  /**
+   * Where the lines sent to clients are kept, or null if they are not.
+   */
+  private volatile ChatHistory history;
+
+  /**
+   * The number of history entries sent to a client when it logs in.
+   */
+  private volatile int replayOnLogin = 0;
+
+  /**
+   * Where whispers to login IDs that are not connected wait, or null if
+   * they are refused.
+   */
+  private volatile OfflineMailboxes mailboxes;
+
+  /**
+   * The clients that logged in with a sequence number, which receive the
+   * lines kept in the history tagged with theirs.
+   */
+  private final Set<ConnectionToClient> sequenced = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Relays the files clients send each other.
+   */
+  private final FileRelay files = new FileRelay();
+
+  /**
+   * The room of each client whose session ended, by login ID, for the
+   * client to return to when it resumes the session. The oldest sessions
+   * are forgotten first.
+   */
+  private final Map<String, String> sessionRooms = new LinkedHashMap<String, String>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_SESSIONS;
+      }
+  };
   //Constructors ****************************************************
   
   /**
@@ -39,10 +179,44 @@ public class EchoServer extends AbstractServer
   {
     super(port);
     this.serverUI = serverUI;
+    setHeartbeatInterval(HEARTBEAT_MILLIS);
+    setIdleTimeout(IDLE_TIMEOUT_MILLIS);
+    setRateLimit(MESSAGES_PER_SECOND, BYTES_PER_SECOND);
+    // The handlers only share concurrent maps and locked state
+    setSerialDispatch(false);
   }
 
   
   //Instance methods ************************************************
+
+  /**
+   * Keeps every line sent to all clients or to a room in a history,
+   * which clients read with #history.
+   *
+   * @param history The history, or null to keep none.
+   */
+  public void setHistory(ChatHistory history) {
+      this.history = history;
+  }
+
+  /**
+   * Keeps whispers to login IDs that are not connected until they log in.
+   *
+   * @param mailboxes The mailboxes, or null to refuse such whispers.
+   */
+  public void setMailboxes(OfflineMailboxes mailboxes) {
+      this.mailboxes = mailboxes;
+  }
+
+  /**
+   * Sets the number of history entries sent to a client right after it
+   * logs in, before it is announced. The default is 0.
+   *
+   * @param lines The number of entries.
+   */
+  public void setReplayOnLogin(int lines) {
+      this.replayOnLogin = Math.max(0, Math.min(lines, MAX_HISTORY_LINES));
+  }
   
   /**
    * This method handles any messages received from the client.
@@ -58,10 +232,24 @@ public class EchoServer extends AbstractServer
       if (message.startsWith("#login")) {
           String loginID = message.substring(7).trim();
 
+          // A client may follow its login ID with #seq and the sequence
+          // number of the last line it received, 0 if it is starting a
+          // session; a login ID may itself end with a number
+          long lastSeen = -1;
+          int tag = loginID.lastIndexOf(" " + SEQUENCE_TAG);
+          if (tag > 0) {
+              try {
+                  lastSeen = Long.parseLong(loginID.substring(tag + 1 + SEQUENCE_TAG.length()).trim());
+                  loginID = loginID.substring(0, tag).trim();
+              } catch (NumberFormatException e) {
+                  lastSeen = -1;
+              }
+          }
+
           // Check if a login ID has already been set for this client.
-          if (client.getInfo("loginID") != null) {
+          if (client.getAttribute(LOGIN_ID) != null) {
               try {
-                  client.sendToClient("Error: Login has already been set. Connection will be closed.");
+                  client.sendToClient(LOGIN_ALREADY_SET);
                   client.close();
               } catch (IOException e) {
                   serverUI.display("Error closing connection for client with duplicate login attempt.");
@@ -72,7 +260,7 @@ public class EchoServer extends AbstractServer
           // Check if login ID is provided
           if (loginID.isEmpty()) {
               try {
-                  client.sendToClient("Error: Login ID is required.");
+                  client.sendToClient(LOGIN_ID_REQUIRED);
                   client.close();
               } catch (IOException e) {
                   serverUI.display("Error closing connection for client with missing login ID.");
@@ -80,25 +268,74 @@ public class EchoServer extends AbstractServer
               return;
           }
 
-          // Set the login ID in the client's connection info
-          client.setInfo("loginID", loginID);
+          // Set the login ID in the client's connection info first, so
+          // that however the connection is closed, the claim below is
+          // given up with it
+          client.setAttribute(LOGIN_ID, loginID);
+
+          // Claim the login ID, unless another open connection already
+          // uses it; one that is closed no longer holds it
+          ConnectionToClient owner;
+          while ((owner = clientsByLogin.putIfAbsent(loginID, client)) != null
+                  && owner != client && !owner.isConnected()) {
+              clientsByLogin.remove(loginID, owner);
+          }
+          if (owner != null && owner != client) {
+              client.setAttribute(LOGIN_ID, null);
+              try {
+                  client.sendToClient(LOGIN_IN_USE);
+                  client.close();
+              } catch (IOException e) {
+                  serverUI.display("Error closing connection for client with login ID in use.");
+              }
+              return;
+          }
+
+          // A connection closed meanwhile may have been forgotten before
+          // it claimed the login ID
+          if (!client.isConnected()) {
+              clientsByLogin.remove(loginID, client);
+              return;
+          }
+
+          // Name the connection after the client, so that flight recorder
+          // events and thread dumps tell which client they are about
+          client.setName("client " + loginID);
+
+          // Hand over what was left for the client while it was away
+          deliverMailbox(loginID, client);
           
+          String room = DEFAULT_ROOM;
+          if (lastSeen > 0) {
+              // Send what the client missed since it lost its connection
+              room = resumeSession(client, loginID, lastSeen);
+          } else {
+              // Catch the client up with what was said before it came
+              if (replayOnLogin > 0 && history != null) {
+                  sendHistory(client, replayOnLogin);
+              }
+              if (lastSeen == 0) {
+                  startSession(client);
+              }
+          }
+
           // Display connection message on the server console
           serverUI.display("A new client has connected to the server.");
           serverUI.display("Message received: #login " + loginID + " from null.");
 
           // Broadcast that the client has logged on to all clients
           sendToAllClients(loginID + " has logged on.");
+          joinRoom(client, room);
           
           // Display that the client has logged on in the server console as well
           serverUI.display(loginID + " has logged on.");
           
       } else {
           // Retrieve the client's loginID for subsequent messages
-          String loginID = (String) client.getInfo("loginID");
+          String loginID = client.getAttribute(LOGIN_ID);
           if (loginID == null) {
               try {
-                  client.sendToClient("Error: You must log in first. Connection will be closed.");
+                  client.sendToClient(LOGIN_REQUIRED);
                   client.close();
               } catch (IOException e) {
                   serverUI.display("Error closing connection for client without login ID.");
@@ -106,11 +343,500 @@ public class EchoServer extends AbstractServer
               return;
           }
 
-          // Prefix msg with login ID and broadcast
+          if (msg instanceof byte[]) {
+              files.chunk(client, (byte[]) msg);
+              return;
+          }
+          if (message.startsWith("#file")) {
+              fileCommand(message, loginID, client);
+              return;
+          }
+          if (message.startsWith("#whisper")) {
+              whisper(message, loginID, client);
+              return;
+          }
+          if (message.startsWith("#join") || message.startsWith("#leave")) {
+              changeRoom(message, loginID, client);
+              return;
+          }
+          if (message.startsWith("#history")) {
+              history(message, client);
+              return;
+          }
+
+          // Prefix msg with login ID and send it to the sender's room
           String prefixedMessage = "Message received: " + message + " from " + loginID;
           serverUI.display(prefixedMessage);
-          sendToAllClients(loginID + " > " + message);
+          sendToRoom(client.getAttribute(ROOM), loginID + " > " + message);
+      }
+  }
+
+  /**
+   * Handles the commands clients exchange to transfer files, which the
+   * file relay carries out.
+   *
+   * @param message The command received.
+   * @param loginID The login ID of the client.
+   * @param client The connection of the client.
+   */
+  private void fileCommand(String message, String loginID, ConnectionToClient client) {
+      String[] tokens = message.trim().split("\\s+", 5);
+      try {
+          if (tokens[0].equals("#fileoffer") && tokens.length == 5) {
+              files.offer(client, loginID, tokens[1], clientsByLogin.get(tokens[2]), tokens[2],
+                  Long.parseLong(tokens[3]), tokens[4]);
+              return;
+          }
+          if (tokens[0].equals("#fileaccept") && tokens.length == 2) {
+              files.accept(client, Integer.parseInt(tokens[1]));
+              return;
+          }
+          if (tokens[0].equals("#fileack") && tokens.length == 3) {
+              files.acknowledge(client, Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]));
+              return;
+          }
+          if (tokens[0].equals("#filecancel") && tokens.length >= 2) {
+              files.cancel(client, Integer.parseInt(tokens[1]), loginID);
+              return;
+          }
+      } catch (NumberFormatException e) {
+          // Reported below
+      }
+      try {
+          client.sendToClient(FILE_COMMAND_ERROR);
+      } catch (IOException e) {
+          serverUI.display("Error replying to " + loginID + ".");
+      }
+  }
+
+  /**
+   * Sends a private message to a single client, found by login ID.
+   *
+   * @param message The #whisper command received.
+   * @param loginID The login ID of the sender.
+   * @param client The connection of the sender.
+   */
+  private void whisper(String message, String loginID, ConnectionToClient client) {
+      String[] tokens = message.split("\\s+", 3);
+      try {
+          if (tokens.length < 3) {
+              client.sendToClient(WHISPER_USAGE);
+              return;
+          }
+
+          ConnectionToClient target = clientsByLogin.get(tokens[1]);
+          if (target == null) {
+              leaveWhisper(tokens[1], loginID + " (whisper) > " + tokens[2], client);
+              return;
+          }
+
+          serverUI.display("Whisper received from " + loginID + " to " + tokens[1]);
+          target.sendToClient(loginID + " (whisper) > " + tokens[2]);
+      } catch (IOException e) {
+          serverUI.display("Error delivering whisper from " + loginID + ".");
+      }
+  }
+
+  /**
+   * Keeps a whisper for a login ID that is not connected, if the server
+   * keeps mailboxes, and tells the sender what became of it.
+   *
+   * @param recipient The login ID the whisper is for.
+   * @param text The whisper, as the recipient will see it.
+   * @param client The connection of the sender.
+   * @throws IOException If the sender cannot be told.
+   */
+  private void leaveWhisper(String recipient, String text, ConnectionToClient client)
+      throws IOException {
+      OfflineMailboxes mailboxes = this.mailboxes;
+      if (mailboxes == null) {
+          client.sendToClient("Error: " + recipient + " is not logged in.");
+          return;
+      }
+
+      if (!mailboxes.isKnown(recipient)) {
+          client.sendToClient("Error: " + recipient + " is not a known user.");
+          return;
+      }
+
+      boolean kept;
+      try {
+          kept = mailboxes.deposit(recipient, text);
+      } catch (IOException e) {
+          serverUI.display("Error writing mailbox of " + recipient + ": " + e.getMessage());
+          kept = false;
       }
+      client.sendToClient(kept
+          ? recipient + " is not logged in; the message will be delivered at login."
+          : "Error: " + recipient + " is not logged in and cannot receive more messages.");
+  }
+
+  /**
+   * Sends a client that just logged in the messages left for it, all in
+   * one message so that they are written at once, and removes them from
+   * its mailbox once sent. The login ID is registered first, so that
+   * messages may be left for it from then on.
+   *
+   * @param loginID The login ID of the client.
+   * @param client The connection of the client.
+   */
+  private void deliverMailbox(String loginID, ConnectionToClient client) {
+      OfflineMailboxes mailboxes = this.mailboxes;
+      if (mailboxes == null) {
+          return;
+      }
+
+      try {
+          if (!mailboxes.register(loginID)) {
+              serverUI.display("Mailbox refused for " + loginID + ".");
+          }
+      } catch (IOException e) {
+          serverUI.display("Error writing mailbox of " + loginID + ": " + e.getMessage());
+      }
+
+      try {
+          List<String> messages;
+          try {
+              messages = mailboxes.peek(loginID);
+          } catch (IOException e) {
+              serverUI.display("Error reading mailbox of " + loginID + ": " + e.getMessage());
+              client.sendToClient(MAILBOX_ERROR);
+              return;
+          }
+          if (messages.isEmpty()) {
+              return;
+          }
+
+          StringBuilder batch = new StringBuilder();
+          batch.append("While you were away (").append(messages.size()).append("):");
+          for (String message : messages) {
+              batch.append('\n').append(message);
+          }
+          client.sendToClient(batch.toString());
+          mailboxes.delivered(loginID, messages.size());
+      } catch (IOException e) {
+          serverUI.display("Error delivering mailbox of " + loginID + ": " + e.getMessage());
+      }
+  }
+
+  /**
+   * Handles the #history command: sends the client the last entries of
+   * the history, oldest first.
+   *
+   * @param message The command received.
+   * @param client The connection of the client.
+   */
+  private void history(String message, ConnectionToClient client) {
+      String[] tokens = message.trim().split("\\s+");
+      int lines = DEFAULT_HISTORY_LINES;
+      try {
+          if (tokens.length > 2 || !tokens[0].equals("#history")) {
+              client.sendToClient(HISTORY_USAGE);
+              return;
+          }
+          if (tokens.length == 2) {
+              try {
+                  lines = Integer.parseInt(tokens[1]);
+              } catch (NumberFormatException e) {
+                  lines = -1;
+              }
+              if (lines < 1) {
+                  client.sendToClient(HISTORY_USAGE);
+                  return;
+              }
+          }
+          if (history == null) {
+              client.sendToClient(NO_HISTORY);
+              return;
+          }
+      } catch (IOException e) {
+          serverUI.display("Error replying to " + client.getAttribute(LOGIN_ID) + ".");
+          return;
+      }
+      sendHistory(client, lines);
+  }
+
+  /**
+   * Streams the last entries of the history the client can see, those
+   * sent to everyone or to the room it is in, one message per entry, as
+   * they are read from the log.
+   *
+   * @param client The connection of the client.
+   * @param lines The number of entries, at most MAX_HISTORY_LINES.
+   */
+  private void sendHistory(final ConnectionToClient client, int lines) {
+      String current = client.getAttribute(ROOM);
+      final String room = current != null ? current : DEFAULT_ROOM;
+      try {
+          history.replayLast(Math.min(lines, MAX_HISTORY_LINES), room, new ChatHistory.EntryHandler() {
+              public void entry(ChatHistory.Entry entry) throws IOException {
+                  client.sendToClient(entry.toString());
+              }
+          });
+      } catch (IOException e) {
+          serverUI.display("Error sending history to " + client.getAttribute(LOGIN_ID) + ".");
+      }
+  }
+
+  /**
+   * Starts the session of a client that logged in with sequence number 0:
+   * tells it the sequence number of the last line in the history, and
+   * tags the lines sent to it from now on with theirs.
+   *
+   * @param client The connection of the client.
+   */
+  private void startSession(ConnectionToClient client) {
+      ChatHistory history = this.history;
+      if (history == null) {
+          return;
+      }
+      try {
+          client.sendToClient(SEQUENCE_TAG + (history.getNextSequence() - 1));
+      } catch (IOException e) {
+          serverUI.display("Error starting the session of " + client.getAttribute(LOGIN_ID) + ".");
+      }
+      sequenced.add(client);
+  }
+
+  /**
+   * Resumes the session of a client that logged in again with the sequence
+   * number of the last line it received: puts it back in the room it was
+   * in, sends it the lines of that room and to everyone that it missed,
+   * then carries on as startSession does. Lines sent meanwhile may reach
+   * the client twice, but none is lost.
+   *
+   * @param client The connection of the client.
+   * @param loginID The login ID of the client.
+   * @param lastSeen The sequence number of the last line received.
+   * @return The room of the session.
+   */
+  private String resumeSession(final ConnectionToClient client, String loginID, long lastSeen) {
+      String saved;
+      synchronized (sessionRooms) {
+          saved = sessionRooms.remove(loginID);
+      }
+      final String room = saved == null ? DEFAULT_ROOM : saved;
+      ChatHistory history = this.history;
+      if (history == null) {
+          return room;
+      }
+
+      // Join before replaying, so that lines sent meanwhile are not missed
+      addToRoom(client, room);
+      try {
+          if (lastSeen + 1 < history.getFirstSequence()) {
+              client.sendToClient(MESSAGES_LOST);
+          }
+          history.replay(lastSeen + 1, new ChatHistory.EntryHandler() {
+              public void entry(ChatHistory.Entry entry) throws IOException {
+                  if (entry.getRoom() == null || entry.getRoom().equals(room)) {
+                      client.sendToClient(SEQUENCE_TAG + entry.getSequence() + " " + entry);
+                  }
+              }
+          });
+      } catch (IOException e) {
+          serverUI.display("Error resuming the session of " + loginID + ".");
+      }
+      startSession(client);
+      return room;
+  }
+
+  /**
+   * Sends a message to every client, keeping it in the history if it is
+   * a line of text.
+   *
+   * @param msg The message to send.
+   */
+  @Override
+  public void sendToAllClients(Object msg) {
+      sendSequenced(null, remember(null, msg), msg);
+  }
+
+  /**
+   * Appends a line sent to clients to the history, if one is kept.
+   *
+   * @param room The room the line is sent to, or null for everyone.
+   * @param msg The message sent.
+   * @return The sequence number of the line, or 0 if it was not kept.
+   */
+  private long remember(String room, Object msg) {
+      ChatHistory history = this.history;
+      if (history != null && msg instanceof String) {
+          try {
+              return history.append(room, (String) msg);
+          } catch (IOException e) {
+              serverUI.display("Error writing chat history: " + e.getMessage());
+          }
+      }
+      return 0;
+  }
+
+  /**
+   * Sends a message to clients: tagged with its sequence number to the
+   * clients with a session, as is to the others.
+   *
+   * @param recipients The clients to send to, or null for all of them.
+   * @param seq The sequence number of the message, or 0 if it was not kept.
+   * @param msg The message to send.
+   */
+  private void sendSequenced(Iterable<ConnectionToClient> recipients, long seq, Object msg) {
+      if (seq == 0 || sequenced.isEmpty()) {
+          if (recipients == null) {
+              super.sendToAllClients(msg);
+          } else {
+              sendToClients(recipients, msg);
+          }
+          return;
+      }
+
+      List<ConnectionToClient> plain = new ArrayList<ConnectionToClient>();
+      List<ConnectionToClient> tagged = new ArrayList<ConnectionToClient>();
+      if (recipients == null) {
+          for (ConnectionToClient client : getClients()) {
+              (sequenced.contains(client) ? tagged : plain).add(client);
+          }
+      } else {
+          for (ConnectionToClient client : recipients) {
+              (sequenced.contains(client) ? tagged : plain).add(client);
+          }
+      }
+      if (!plain.isEmpty()) {
+          sendToClients(plain, msg);
+      }
+      if (!tagged.isEmpty()) {
+          sendToClients(tagged, SEQUENCE_TAG + seq + " " + msg);
+      }
+  }
+
+  /**
+   * Handles the #join and #leave commands. Joining a room leaves the
+   * current one; leaving the current room returns the client to the
+   * default room. Any other command starting like them is refused with
+   * their usage.
+   *
+   * @param message The command received.
+   * @param loginID The login ID of the client.
+   * @param client The connection of the client.
+   */
+  private void changeRoom(String message, String loginID, ConnectionToClient client) {
+      String[] tokens = message.trim().split("\\s+");
+      boolean join = tokens[0].equals("#join");
+      String current = client.getAttribute(ROOM);
+      try {
+          if (!join && !tokens[0].equals("#leave")) {
+              client.sendToClient(ROOM_USAGE);
+              return;
+          }
+          if (tokens.length != 2) {
+              client.sendToClient(join ? JOIN_USAGE : LEAVE_USAGE);
+              return;
+          }
+          if (!join && !tokens[1].equals(current)) {
+              client.sendToClient("Error: You are not in room " + tokens[1] + ".");
+              return;
+          }
+          if (!join && current.equals(DEFAULT_ROOM)) {
+              client.sendToClient("Error: You cannot leave the " + DEFAULT_ROOM + ".");
+              return;
+          }
+      } catch (IOException e) {
+          serverUI.display("Error replying to " + loginID + ".");
+          return;
+      }
+
+      String room = join ? tokens[1] : DEFAULT_ROOM;
+      if (room.equals(current)) {
+          return;
+      }
+
+      leaveRoom(client);
+      sendToRoom(current, loginID + " has left the room.");
+      joinRoom(client, room);
+      serverUI.display(loginID + " moved from room " + current + " to room " + room);
+  }
+
+  /**
+   * Adds a client to a room, creating the room if needed, and tells the
+   * members.
+   *
+   * @param client The connection of the client.
+   * @param room The name of the room.
+   */
+  private void joinRoom(ConnectionToClient client, String room) {
+      addToRoom(client, room);
+      sendToRoom(room, client.getAttribute(LOGIN_ID) + " has joined room " + room + ".");
+  }
+
+  /**
+   * Adds a client to a room, creating the room if needed, without
+   * telling the members.
+   *
+   * @param client The connection of the client.
+   * @param room The name of the room.
+   */
+  private void addToRoom(ConnectionToClient client, String room) {
+      rooms.compute(room, (name, members) -> {
+          if (members == null) {
+              members = ConcurrentHashMap.newKeySet();
+          }
+          members.add(client);
+          return members;
+      });
+      client.setAttribute(ROOM, room);
+  }
+
+  /**
+   * Removes a client from its room, dropping the room once it is empty.
+   *
+   * @param client The connection of the client.
+   */
+  private void leaveRoom(ConnectionToClient client) {
+      String room = client.getAttribute(ROOM);
+      if (room == null) {
+          return;
+      }
+
+      rooms.computeIfPresent(room, (name, members) -> {
+          members.remove(client);
+          return members.isEmpty() ? null : members;
+      });
+      client.setAttribute(ROOM, null);
+  }
+
+  /**
+   * Sends a message to the members of a room only.
+   *
+   * @param room The name of the room.
+   * @param message The message to send.
+   */
+  private void sendToRoom(String room, Object message) {
+      Set<ConnectionToClient> members = room == null ? null : rooms.get(room);
+      if (members != null) {
+          sendSequenced(members, remember(room, message), message);
+      }
+  }
+
+  /**
+   * Removes a client that is going away from the login index and from
+   * its room.
+   *
+   * @param client The connection of the client.
+   */
+  private void forgetClient(ConnectionToClient client) {
+      String loginID = client.getAttribute(LOGIN_ID);
+      if (loginID != null) {
+          clientsByLogin.remove(loginID, client);
+      }
+
+      // Keep the room of the session, for the client to resume it
+      String room = client.getAttribute(ROOM);
+      if (sequenced.remove(client) && loginID != null && room != null) {
+          synchronized (sessionRooms) {
+              sessionRooms.put(loginID, room);
+          }
+      }
+      leaveRoom(client);
+      files.connectionLost(client);
   }
 
   /**
@@ -130,6 +856,27 @@ public class EchoServer extends AbstractServer
   {
 	serverUI.display("Server has stopped listening for connections.");
   }
+
+  /**
+   * This method overrides the one in the superclass.  Called
+   * when the server is closed; the history and mailboxes are written
+   * to disk.
+   */
+  protected void serverClosed()
+  {
+    ChatHistory history = this.history;
+    if (history != null) {
+      history.flush();
+    }
+    OfflineMailboxes mailboxes = this.mailboxes;
+    if (mailboxes != null) {
+      try {
+        mailboxes.flush();
+      } catch (IOException e) {
+        serverUI.display("Error writing mailboxes: " + e.getMessage());
+      }
+    }
+  }
   
   /**
    *This method is called each time a client connects.
@@ -145,11 +892,33 @@ public class EchoServer extends AbstractServer
   @Override
   synchronized protected void clientDisconnected(ConnectionToClient client) {
 	  // Retrieve login ID
-	  String loginID = (String) client.getInfo("loginID");
+	  String loginID = client.getAttribute(LOGIN_ID);
 	  if (loginID == null) {
 		  loginID = "unknown";
 	  }
-	  serverUI.display("Client disconnected: " + client.getInetAddress().getHostAddress());
+	  forgetClient(client);
+	  // The socket is already gone when the server closed the connection
+	  String address = client.getInetAddress() == null ? loginID : client.getInetAddress().getHostAddress();
+	  serverUI.display("Client disconnected: " + address);
+  }
+
+  /**
+   * This method is called when the connection to a client fails,
+   * including when the client goes away without logging off.
+   */
+  @Override
+  synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
+	  forgetClient(client);
+  }
+
+  /**
+   * This method is called when a client sends faster than the rate
+   * limit, which slows the client down.
+   */
+  @Override
+  protected void clientRateLimited(ConnectionToClient client) {
+	  String loginID = client.getAttribute(LOGIN_ID);
+	  serverUI.display((loginID != null ? loginID : "A client") + " is sending too fast and is being slowed down.");
   }
   
   //Class methods ***************************************************
@@ -162,16 +931,12 @@ public class EchoServer extends AbstractServer
               stopListening();
           } else if (command.equalsIgnoreCase("#close")) {
               // Loop through each connected client and display disconnection message
-              Thread[] clientThreadList = getClientConnections();
-              for (Thread clientThread : clientThreadList) {
-                  if (clientThread != null) {
-                      ConnectionToClient client = (ConnectionToClient) clientThread;
-                      String loginID = (String) client.getInfo("loginID");
-                      if (loginID == null) {
-                          loginID = "unknown";
-                      }
-                      serverUI.display(loginID + " has disconnected.");
+              for (ConnectionToClient client : getClients()) {
+                  String loginID = client.getAttribute(LOGIN_ID);
+                  if (loginID == null) {
+                      loginID = "unknown";
                   }
+                  serverUI.display(loginID + " has disconnected.");
               }
               
               // Close all client connections and stop the server
@@ -198,6 +963,16 @@ public class EchoServer extends AbstractServer
               }
           } else if (command.equalsIgnoreCase("#getport")) {
               serverUI.display("Current port: " + getPort());
+          } else if (command.equalsIgnoreCase("#stats")) {
+              serverUI.display(getMetrics().toString());
+          } else if (command.startsWith("#stats ")) {
+              String loginID = command.substring(7).trim();
+              ConnectionToClient client = clientsByLogin.get(loginID);
+              if (client != null) {
+                  serverUI.display(loginID + ": " + client.getMetrics());
+              } else {
+                  serverUI.display("No client logged in as " + loginID + ".");
+              }
           } else {
               serverUI.display("Unknown command: " + command);
           }
@@ -214,10 +989,20 @@ public class EchoServer extends AbstractServer
    *
    * @param args[0] The port number to listen on.  Defaults to 5555 
    *          if no argument is entered.
+   * @param args[1] The number of selector threads serving the clients.
+   *          Defaults to 0, one thread per client.
+   * @param args[2] The directory keeping the chat history.  No history
+   *          is kept if no directory is given.
+   * @param args[3] The number of history entries sent to clients when
+   *          they log in.  Defaults to 0.
+   * @param args[4] The directory keeping whispers to clients that are
+   *          not logged in.  Such whispers are refused if no directory
+   *          is given.
    */
   public static void main(String[] args) 
   {
     int port = 0; //Port to listen on
+    int selectorThreads = 0; //Thread per client by default
 
     try
     {
@@ -227,16 +1012,31 @@ public class EchoServer extends AbstractServer
     {
       port = DEFAULT_PORT; //Set port to 5555
     }
+
+    try
+    {
+      selectorThreads = Integer.parseInt(args[1]);
+    }
+    catch(Throwable t) {}
 	
-    EchoServer sv = new EchoServer(port, new ChatIF() {
-        @Override
-        public void display(String message) {
-            System.out.println(message);
-        }
-    });
+    EchoServer sv = new EchoServer(port,
+        AsyncDisplay.toConsole(AsyncDisplay.WhenFull.BLOCK));
+    sv.setSelectorThreads(selectorThreads);
     
     try 
     {
+      if (args.length > 2)
+      {
+        sv.setHistory(new ChatHistory(Paths.get(args[2])));
+      }
+      if (args.length > 3)
+      {
+        sv.setReplayOnLogin(Integer.parseInt(args[3]));
+      }
+      if (args.length > 4)
+      {
+        sv.setMailboxes(new OfflineMailboxes(Paths.get(args[4])));
+      }
       sv.listen(); //Start listening for connections
     } 
     
@@ -0,0 +1,347 @@
+package edu.seg2105.edu.server.backend;
+
+import ocsf.server.ConnectionToClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays files from one client to another as a stream of chunks, so that
+ * the server never holds more than a window of any file. A transfer goes
+ * through these messages:
+ * <pre>
+ *   sender    to server     #fileoffer &lt;ref&gt; &lt;recipient&gt; &lt;size&gt; &lt;name&gt;
+ *   server    to recipient  #fileincoming &lt;id&gt; &lt;sender&gt; &lt;size&gt; &lt;name&gt;
+ *   recipient to server     #fileaccept &lt;id&gt;
+ *   server    to sender     #fileid &lt;ref&gt; &lt;id&gt; &lt;window&gt;
+ *   sender    to server     chunks: byte arrays holding the id, as an int, then data
+ *   server    to recipient  the same chunks, as they came
+ *   recipient to server     #fileack &lt;id&gt; &lt;bytes written&gt;
+ *   server    to sender     #fileack &lt;id&gt; &lt;bytes written&gt;
+ * </pre>
+ * where the reference is chosen by the sender and the id by the server.
+ * Nothing of a file is relayed until its recipient accepts it, so that no
+ * client can fill the disk of another; the offers a client has not
+ * answered yet are limited.
+ *
+ * The sender may run ahead of what the recipient acknowledged by at most
+ * the window. A slow recipient thus slows the sender down instead of
+ * filling the server, and a chat line to either client never waits behind
+ * more than a window of chunks. Chunks and replies are only queued for the
+ * clients, so that a transfer never blocks the thread reading from the
+ * other client.
+ *
+ * A transfer ends once the recipient has acknowledged every byte. It is
+ * cancelled, with #filecancel &lt;id&gt; &lt;reason&gt; sent to both
+ * clients, when either client cancels it, breaks the protocol or goes
+ * away. An offer that is refused, by the server or by the recipient
+ * cancelling it instead of accepting it, is answered with
+ * #filefail &lt;ref&gt; &lt;reason&gt;.
+ */
+public class FileRelay {
+    // Class variables *************************************************
+
+    /**
+     * How far, in bytes, a sender may run ahead of the recipient.
+     */
+    final public static int WINDOW_BYTES = 256 * 1024;
+
+    /**
+     * The size of the largest file relayed.
+     */
+    final public static long MAX_FILE_BYTES = 4L * 1024 * 1024 * 1024;
+
+    /**
+     * The number of transfers a client may be sending at once.
+     */
+    final public static int MAX_TRANSFERS = 8;
+
+    /**
+     * The number of offers a client may have waiting for its answer.
+     */
+    final public static int MAX_OFFERS = 8;
+
+    /**
+     * The bytes of a chunk before its data.
+     */
+    private static final int HEADER_BYTES = 4;
+
+    // Instance variables **********************************************
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Every transfer in progress, by id.
+     */
+    private final ConcurrentHashMap<Integer, Transfer> transfers =
+        new ConcurrentHashMap<Integer, Transfer>();
+
+    /**
+     * A transfer in progress. Whether it was accepted and the byte counts
+     * are guarded by the transfer.
+     */
+    private static class Transfer {
+        final int id;
+        final String ref;
+        final ConnectionToClient sender;
+        final ConnectionToClient recipient;
+        final long size;
+
+        /**
+         * Whether the recipient accepted the file. Also read without the
+         * lock, to count the offers waiting for an answer.
+         */
+        volatile boolean accepted;
+
+        /**
+         * The bytes relayed to the recipient, and the bytes it wrote.
+         */
+        long relayed;
+        long acknowledged;
+
+        Transfer(int id, String ref, ConnectionToClient sender, ConnectionToClient recipient,
+            long size) {
+            this.id = id;
+            this.ref = ref;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.size = size;
+        }
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Handles an offer to send a file: passes it on to the recipient, or
+     * tells the sender why it is refused.
+     *
+     * @param sender The connection of the sender.
+     * @param senderID The login ID of the sender.
+     * @param ref The reference the sender gave the offer.
+     * @param recipient The connection of the recipient, or null if it is
+     *        not connected.
+     * @param recipientID The login ID of the recipient.
+     * @param size The size of the file, in bytes.
+     * @param name The name of the file.
+     */
+    public void offer(ConnectionToClient sender, String senderID, String ref,
+        ConnectionToClient recipient, String recipientID, long size, String name) {
+        String refusal = null;
+        if (recipient == null) {
+            refusal = recipientID + " is not connected.";
+        } else if (recipient == sender) {
+            refusal = "You cannot send a file to yourself.";
+        } else if (size < 0 || size > MAX_FILE_BYTES) {
+            refusal = "Files are limited to " + MAX_FILE_BYTES + " bytes.";
+        } else if (countSending(sender) >= MAX_TRANSFERS) {
+            refusal = "You are already sending " + MAX_TRANSFERS + " files.";
+        } else if (countOffered(recipient) >= MAX_OFFERS) {
+            refusal = recipientID + " has too many files waiting to be accepted.";
+        }
+        if (refusal != null) {
+            tell(sender, "#filefail " + ref + " " + refusal);
+            return;
+        }
+
+        Transfer transfer = new Transfer(nextId.incrementAndGet(), ref, sender, recipient, size);
+        transfers.put(transfer.id, transfer);
+        if (!tell(recipient, "#fileincoming " + transfer.id + " " + senderID + " " + size + " " + name)) {
+            cancel(transfer, recipientID + " went away.");
+        }
+    }
+
+    /**
+     * Starts a transfer the recipient accepted: tells the sender it may
+     * send the file.
+     *
+     * @param recipient The connection the acceptance came from.
+     * @param id The id of the transfer.
+     */
+    public void accept(ConnectionToClient recipient, int id) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null || transfer.recipient != recipient) {
+            return;
+        }
+
+        boolean told;
+        // Under the lock, so that a cancellation is told after the id
+        synchronized (transfer) {
+            if (transfer.accepted || transfers.get(id) != transfer) {
+                return;
+            }
+            transfer.accepted = true;
+            told = tell(transfer.sender, "#fileid " + transfer.ref + " " + id + " " + WINDOW_BYTES);
+        }
+        if (!told) {
+            cancel(transfer, "The sender went away.");
+        }
+    }
+
+    /**
+     * Relays a chunk from its sender to the recipient of its transfer. A
+     * chunk of a transfer that was cancelled meanwhile is dropped.
+     *
+     * @param sender The connection the chunk came from.
+     * @param chunk The chunk.
+     */
+    public void chunk(ConnectionToClient sender, byte[] chunk) {
+        if (chunk.length < HEADER_BYTES) {
+            return;
+        }
+        Transfer transfer = transfers.get(ByteBuffer.wrap(chunk).getInt());
+        if (transfer == null || transfer.sender != sender) {
+            return;
+        }
+
+        boolean allowed;
+        synchronized (transfer) {
+            long relayed = transfer.relayed + chunk.length - HEADER_BYTES;
+            allowed = transfer.accepted && relayed <= transfer.size
+                && relayed - transfer.acknowledged <= WINDOW_BYTES;
+            if (allowed) {
+                transfer.relayed = relayed;
+            }
+        }
+        if (!allowed) {
+            cancel(transfer, "The sender sent more than it was allowed.");
+            return;
+        }
+
+        try {
+            if (!transfer.recipient.offerToClient(chunk)) {
+                cancel(transfer, "The recipient is not keeping up.");
+            }
+        } catch (IOException e) {
+            cancel(transfer, "The recipient went away.");
+        }
+    }
+
+    /**
+     * Passes on to the sender how much of the file the recipient wrote,
+     * which lets the sender send more, and ends the transfer once the
+     * recipient has it all.
+     *
+     * @param recipient The connection the acknowledgement came from.
+     * @param id The id of the transfer.
+     * @param written The number of bytes of the file written.
+     */
+    public void acknowledge(ConnectionToClient recipient, int id, long written) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null || transfer.recipient != recipient) {
+            return;
+        }
+
+        boolean valid;
+        synchronized (transfer) {
+            valid = transfer.accepted && written >= transfer.acknowledged
+                && written <= transfer.relayed;
+            if (valid) {
+                transfer.acknowledged = written;
+            }
+        }
+        if (!valid) {
+            cancel(transfer, "The recipient acknowledged what it was not sent.");
+            return;
+        }
+
+        if (written == transfer.size) {
+            transfers.remove(id, transfer);
+        }
+        if (!tell(transfer.sender, "#fileack " + id + " " + written)) {
+            cancel(transfer, "The sender went away.");
+        }
+    }
+
+    /**
+     * Cancels a transfer at the request of either of its clients; the
+     * recipient refuses an offer this way.
+     *
+     * @param client The connection the request came from.
+     * @param id The id of the transfer.
+     * @param loginID The login ID of the client.
+     */
+    public void cancel(ConnectionToClient client, int id, String loginID) {
+        Transfer transfer = transfers.get(id);
+        if (transfer != null && (transfer.sender == client || transfer.recipient == client)) {
+            cancel(transfer, "Cancelled by " + loginID + ".");
+        }
+    }
+
+    /**
+     * Cancels every transfer of a client that is going away.
+     *
+     * @param client The connection of the client.
+     */
+    public void connectionLost(ConnectionToClient client) {
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.sender == client || transfer.recipient == client) {
+                cancel(transfer, "The " + (transfer.sender == client ? "sender" : "recipient")
+                    + " went away.");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of transfers in progress.
+     *
+     * @return The number of transfers.
+     */
+    public int getTransferCount() {
+        return transfers.size();
+    }
+
+    /**
+     * Ends a transfer, unless it already ended, and tells both clients. A
+     * sender that was not given the id yet is told its offer failed.
+     */
+    private void cancel(Transfer transfer, String reason) {
+        if (transfers.remove(transfer.id, transfer)) {
+            synchronized (transfer) {
+                tell(transfer.sender, transfer.accepted ? "#filecancel " + transfer.id + " " + reason
+                    : "#filefail " + transfer.ref + " " + reason);
+            }
+            tell(transfer.recipient, "#filecancel " + transfer.id + " " + reason);
+        }
+    }
+
+    /**
+     * Returns the number of transfers a client is sending.
+     */
+    private int countSending(ConnectionToClient sender) {
+        int count = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.sender == sender) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of offers waiting for a client to answer them.
+     */
+    private int countOffered(ConnectionToClient recipient) {
+        int count = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.recipient == recipient && !transfer.accepted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues a message for a client.
+     *
+     * @return false if the client is gone or not keeping up.
+     */
+    private static boolean tell(ConnectionToClient client, String message) {
+        try {
+            return client.offerToClient(message);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
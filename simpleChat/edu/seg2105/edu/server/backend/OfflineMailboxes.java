@@ -0,0 +1,664 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Messages waiting for login IDs that are not connected. Every message
+ * is appended to a single log file on disk; the mailbox of a login ID
+ * only holds, in memory, where its messages are in the log. Once
+ * messages are delivered, a record saying so is appended, and the log is
+ * compacted when delivered messages take up more of it than waiting
+ * ones: the waiting messages are copied to a new file that replaces the
+ * log.
+ *
+ * Messages may only be left for login IDs that are known, that is, that
+ * logged in and were registered then; the log keeps them too, so that
+ * they stay known after a restart. A login ID that has not logged in for
+ * a while expires, and once as many login IDs are known as the quota
+ * allows, the one that logged in longest ago is forgotten to make room
+ * for a new one. Login IDs with messages waiting are never forgotten.
+ *
+ * Quotas bound what a flood of messages to absent users can take: the
+ * number and bytes of the messages waiting for one login ID, the number
+ * of mailboxes, and the size of the log. A message that would exceed a
+ * quota is refused. A log full of waiting messages and known login IDs
+ * is not compacted, since that would free nothing.
+ *
+ * A record of the log is laid out as
+ * <pre>
+ *   int length, byte type, long time, short login length, login, body
+ * </pre>
+ * where the body of a message is its text, the body of a delivery record
+ * is the number of messages delivered, as an int, and the body of the
+ * record registering a login ID is empty; its time is when the login ID
+ * last logged in. A record cut
+ * short by a crash is dropped when the log is opened again.
+ */
+public class OfflineMailboxes implements Closeable {
+    // Class variables *************************************************
+
+    /**
+     * The default number of messages that may wait for one login ID.
+     */
+    final public static int DEFAULT_MAX_MESSAGES = 100;
+
+    /**
+     * The default number of bytes of text that may wait for one login ID.
+     */
+    final public static int DEFAULT_MAX_MAILBOX_BYTES = 64 * 1024;
+
+    /**
+     * The default number of login IDs that may have messages waiting.
+     */
+    final public static int DEFAULT_MAX_MAILBOXES = 10000;
+
+    /**
+     * The default size the log may reach, in bytes.
+     */
+    final public static long DEFAULT_MAX_LOG_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The default number of login IDs that may be known.
+     */
+    final public static int DEFAULT_MAX_KNOWN = 100000;
+
+    /**
+     * The default time after which a login ID that has not logged in
+     * expires, in milliseconds: 90 days.
+     */
+    final public static long DEFAULT_KNOWN_MILLIS = 90L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The longest login ID that may be registered, in bytes of UTF-8.
+     */
+    final public static int MAX_LOGIN_BYTES = 1024;
+
+    private static final byte MESSAGE = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte KNOWN = 3;
+
+    /**
+     * The bytes of a record before its login ID.
+     */
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 2;
+
+    /**
+     * The size under which the log is never compacted.
+     */
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    /**
+     * The share of a full log the records no longer needed must take for
+     * it to be compacted; a compaction that frees less is not worth it.
+     */
+    private static final int COMPACT_SLACK = 16;
+
+    private static final String LOG = "mailboxes.log";
+    private static final String COMPACTED = "mailboxes.compacted";
+
+    // Instance variables **********************************************
+
+    private final Path directory;
+    private final int maxMessages;
+    private final int maxMailboxBytes;
+    private final int maxMailboxes;
+    private final long maxLogBytes;
+    private final int maxKnown;
+    private final long knownMillis;
+
+    /**
+     * The log. Guarded, like everything below, by the lock of this object.
+     */
+    private FileChannel log;
+
+    /**
+     * The size of the log.
+     */
+    private long logBytes;
+
+    /**
+     * The bytes of the log taken by the records of waiting messages and
+     * by the last record of each known login ID.
+     */
+    private long liveBytes;
+
+    /**
+     * The mailboxes that have messages waiting, by login ID.
+     */
+    private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+
+    /**
+     * The login IDs messages may be left for, with the time they last
+     * logged in as recorded in the log, in the order of their records:
+     * the login ID that logged in longest ago first.
+     */
+    private final LinkedHashMap<String, Long> known = new LinkedHashMap<String, Long>();
+
+    // Constructors ****************************************************
+
+    /**
+     * Opens the mailboxes kept in a directory, with the default quotas.
+     *
+     * @param directory The directory, created if needed.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    public OfflineMailboxes(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_MAILBOX_BYTES,
+            DEFAULT_MAX_MAILBOXES, DEFAULT_MAX_LOG_BYTES);
+    }
+
+    /**
+     * Opens the mailboxes kept in a directory, with the default quotas on
+     * known login IDs.
+     *
+     * @param directory The directory, created if needed.
+     * @param maxMessages The number of messages that may wait for one login ID.
+     * @param maxMailboxBytes The bytes of text that may wait for one login ID.
+     * @param maxMailboxes The number of login IDs that may have messages waiting.
+     * @param maxLogBytes The size the log may reach, in bytes.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    public OfflineMailboxes(Path directory, int maxMessages, int maxMailboxBytes,
+            int maxMailboxes, long maxLogBytes) throws IOException {
+        this(directory, maxMessages, maxMailboxBytes, maxMailboxes, maxLogBytes,
+            DEFAULT_MAX_KNOWN, DEFAULT_KNOWN_MILLIS);
+    }
+
+    /**
+     * Opens the mailboxes kept in a directory.
+     *
+     * @param directory The directory, created if needed.
+     * @param maxMessages The number of messages that may wait for one login ID.
+     * @param maxMailboxBytes The bytes of text that may wait for one login ID.
+     * @param maxMailboxes The number of login IDs that may have messages waiting.
+     * @param maxLogBytes The size the log may reach, in bytes.
+     * @param maxKnown The number of login IDs that may be known.
+     * @param knownMillis The time after which a login ID that has not
+     *        logged in expires, in milliseconds.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    public OfflineMailboxes(Path directory, int maxMessages, int maxMailboxBytes,
+            int maxMailboxes, long maxLogBytes, int maxKnown, long knownMillis)
+            throws IOException {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxMailboxBytes = maxMailboxBytes;
+        this.maxMailboxes = maxMailboxes;
+        this.maxLogBytes = maxLogBytes;
+        this.maxKnown = maxKnown;
+        this.knownMillis = knownMillis;
+
+        Files.createDirectories(directory);
+        // A compaction that did not complete is abandoned
+        Files.deleteIfExists(directory.resolve(COMPACTED));
+        log = FileChannel.open(directory.resolve(LOG), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * Registers a login ID that logged in, so that messages may be left
+     * for it. The time a known login ID logged in is only written again
+     * once a sixteenth of the time after which it expires has passed.
+     *
+     * @param loginID The login ID.
+     * @return false if the login ID is refused because it is longer than
+     *         <code>MAX_LOGIN_BYTES</code>, or because it is not known and
+     *         every known login ID has messages waiting or the log is full.
+     * @throws IOException If the login ID cannot be written to the log.
+     */
+    public synchronized boolean register(String loginID) throws IOException {
+        ensureOpen();
+        long now = System.currentTimeMillis();
+        expire(now);
+        Long loggedIn = known.get(loginID);
+        if (loggedIn != null && now - loggedIn < knownMillis / 16) {
+            return true;
+        }
+        if (loginID.getBytes(StandardCharsets.UTF_8).length > MAX_LOGIN_BYTES) {
+            return false;
+        }
+        if (loggedIn == null && known.size() >= maxKnown && !forgetOldest()) {
+            return false;
+        }
+
+        ByteBuffer record = record(KNOWN, loginID, now, new byte[0]);
+        if (!makeRoom(record.remaining())) {
+            // A login ID already known stays known until it expires
+            return loggedIn != null;
+        }
+
+        if (loggedIn == null) {
+            liveBytes += record.remaining();
+        }
+        append(record);
+        // Moves the login ID to the end of the order
+        known.remove(loginID);
+        known.put(loginID, now);
+        return true;
+    }
+
+    /**
+     * Tells if messages may be left for a login ID.
+     *
+     * @param loginID The login ID.
+     * @return true if the login ID was registered and has not expired.
+     */
+    public synchronized boolean isKnown(String loginID) {
+        Long loggedIn = known.get(loginID);
+        return loggedIn != null && System.currentTimeMillis() - loggedIn < knownMillis;
+    }
+
+    /**
+     * Leaves a message for a login ID.
+     *
+     * @param loginID The login ID the message is for.
+     * @param text The message.
+     * @return false if the message is refused because the login ID is not
+     *         known or a quota is reached.
+     * @throws IOException If the message cannot be written to the log.
+     */
+    public synchronized boolean deposit(String loginID, String text) throws IOException {
+        ensureOpen();
+        if (!isKnown(loginID)) {
+            return false;
+        }
+
+        Mailbox mailbox = mailboxes.get(loginID);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        if (mailbox == null ? mailboxes.size() >= maxMailboxes
+                : mailbox.count >= maxMessages || mailbox.bytes + textBytes.length > maxMailboxBytes) {
+            return false;
+        }
+
+        ByteBuffer record = record(MESSAGE, loginID, System.currentTimeMillis(), textBytes);
+        if (!makeRoom(record.remaining())) {
+            return false;
+        }
+
+        int recordSize = record.remaining();
+        long position = append(record);
+        if (mailbox == null) {
+            mailbox = new Mailbox();
+            mailboxes.put(loginID, mailbox);
+        }
+        mailbox.add(position, recordSize, textBytes.length);
+        liveBytes += recordSize;
+        return true;
+    }
+
+    /**
+     * Returns the messages waiting for a login ID, oldest first. They keep
+     * waiting until <code>delivered</code> is called.
+     *
+     * @param loginID The login ID.
+     * @return The messages, an empty list if there are none.
+     * @throws IOException If the log cannot be read.
+     */
+    public synchronized List<String> peek(String loginID) throws IOException {
+        ensureOpen();
+        List<String> messages = new ArrayList<String>();
+        Mailbox mailbox = mailboxes.get(loginID);
+        if (mailbox != null) {
+            for (int i = 0; i < mailbox.count; i++) {
+                messages.add(readText(mailbox.positions[i]));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Removes the oldest messages waiting for a login ID, once they have
+     * been delivered.
+     *
+     * @param loginID The login ID.
+     * @param count The number of messages delivered, as returned by
+     *        <code>peek</code>.
+     * @throws IOException If the log cannot be written.
+     */
+    public synchronized void delivered(String loginID, int count) throws IOException {
+        ensureOpen();
+        Mailbox mailbox = mailboxes.get(loginID);
+        if (mailbox == null || count <= 0) {
+            return;
+        }
+
+        count = Math.min(count, mailbox.count);
+        byte[] body = ByteBuffer.allocate(4).putInt(count).array();
+        append(record(DELIVERED, loginID, System.currentTimeMillis(), body));
+        liveBytes -= mailbox.remove(count);
+        if (mailbox.count == 0) {
+            mailboxes.remove(loginID);
+        }
+
+        long deadBytes = logBytes - liveBytes;
+        if (logBytes > MIN_COMPACT_BYTES && deadBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for a login ID.
+     *
+     * @param loginID The login ID.
+     * @return The number of messages.
+     */
+    public synchronized int count(String loginID) {
+        Mailbox mailbox = mailboxes.get(loginID);
+        return mailbox == null ? 0 : mailbox.count;
+    }
+
+    /**
+     * Writes the log to the disk.
+     *
+     * @throws IOException If the log cannot be written.
+     */
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.force(false);
+        }
+    }
+
+    /**
+     * Writes the log to the disk and closes it.
+     *
+     * @throws IOException If the log cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            try {
+                flush();
+            } finally {
+                log.close();
+                log = null;
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (log == null) {
+            throw new IOException("mailboxes are closed");
+        }
+    }
+
+    /**
+     * Makes room in the log for a record, compacting the log if the
+     * records no longer needed take enough of it.
+     *
+     * @return false if there is no room.
+     */
+    private boolean makeRoom(int recordSize) throws IOException {
+        if (logBytes + recordSize <= maxLogBytes) {
+            return true;
+        }
+        if (liveBytes + recordSize > maxLogBytes - maxLogBytes / COMPACT_SLACK) {
+            return false;
+        }
+        compact();
+        return logBytes + recordSize <= maxLogBytes;
+    }
+
+    /**
+     * Forgets the login IDs without messages waiting that have not logged
+     * in for longer than they may.
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Long>> entries = known.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (now - entry.getValue() < knownMillis) {
+                // The next ones logged in later
+                return;
+            }
+            if (!mailboxes.containsKey(entry.getKey())) {
+                entries.remove();
+                liveBytes -= knownRecordSize(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Forgets the login ID without messages waiting that logged in
+     * longest ago.
+     *
+     * @return false if every known login ID has messages waiting.
+     */
+    private boolean forgetOldest() {
+        Iterator<String> loginIDs = known.keySet().iterator();
+        while (loginIDs.hasNext()) {
+            String loginID = loginIDs.next();
+            if (!mailboxes.containsKey(loginID)) {
+                loginIDs.remove();
+                liveBytes -= knownRecordSize(loginID);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int knownRecordSize(String loginID) {
+        return HEADER_BYTES + loginID.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Builds a record.
+     */
+    private static ByteBuffer record(byte type, String loginID, long time, byte[] body) {
+        byte[] login = loginID.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + login.length + body.length);
+        record.putInt(record.capacity() - 4);
+        record.put(type);
+        record.putLong(time);
+        record.putShort((short) login.length);
+        record.put(login);
+        record.put(body);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @return The position of the record.
+     */
+    private long append(ByteBuffer record) throws IOException {
+        long position = logBytes;
+        while (record.hasRemaining()) {
+            logBytes += log.write(record, logBytes);
+        }
+        return position;
+    }
+
+    /**
+     * Reads the text of the message recorded at a position.
+     */
+    private String readText(long position) throws IOException {
+        ByteBuffer header = readFully(position, HEADER_BYTES);
+        int length = header.getInt(0);
+        int loginLength = header.getShort(13);
+        ByteBuffer text = readFully(position + HEADER_BYTES + loginLength,
+            length + 4 - HEADER_BYTES - loginLength);
+        return new String(text.array(), StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer readFully(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("mailbox log truncated");
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Rebuilds the mailboxes by reading the log, and drops a record cut
+     * short at its end.
+     */
+    private void recover() throws IOException {
+        long size = log.size();
+        long position = 0;
+        while (position + HEADER_BYTES <= size) {
+            ByteBuffer header = readFully(position, HEADER_BYTES);
+            int length = header.getInt(0);
+            byte type = header.get(4);
+            int loginLength = header.getShort(13);
+            long end = position + 4 + length;
+            int bodyLength = length + 4 - HEADER_BYTES - loginLength;
+            if (loginLength < 0 || loginLength > MAX_LOGIN_BYTES
+                    || bodyLength < (type == DELIVERED ? 4 : 0) || end > size
+                    || (type != MESSAGE && type != DELIVERED && type != KNOWN)) {
+                break;
+            }
+
+            ByteBuffer rest = readFully(position + HEADER_BYTES, length + 4 - HEADER_BYTES);
+            String loginID = new String(rest.array(), 0, loginLength, StandardCharsets.UTF_8);
+            Mailbox mailbox = mailboxes.get(loginID);
+            if (type == KNOWN) {
+                // Only the last record of a login ID is needed
+                if (known.remove(loginID) == null) {
+                    liveBytes += length + 4;
+                }
+                known.put(loginID, header.getLong(5));
+            } else if (type == MESSAGE) {
+                if (mailbox == null) {
+                    mailbox = new Mailbox();
+                    mailboxes.put(loginID, mailbox);
+                }
+                mailbox.add(position, length + 4, bodyLength);
+                liveBytes += length + 4;
+            } else if (mailbox != null) {
+                int delivered = Math.max(0, Math.min(rest.getInt(loginLength), mailbox.count));
+                liveBytes -= mailbox.remove(delivered);
+                if (mailbox.count == 0) {
+                    mailboxes.remove(loginID);
+                }
+            }
+            position = end;
+        }
+
+        if (position < size) {
+            log.truncate(position);
+        }
+        logBytes = position;
+        expire(System.currentTimeMillis());
+        // The log may hold more login IDs than the quota allows
+        while (known.size() > maxKnown) {
+            if (!forgetOldest()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with the known login IDs and the waiting messages
+     * only, then replaces the log with the new file.
+     */
+    private void compact() throws IOException {
+        Path compacted = directory.resolve(COMPACTED);
+        FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        long written = 0;
+        try {
+            for (Map.Entry<String, Long> entry : known.entrySet()) {
+                ByteBuffer record = record(KNOWN, entry.getKey(), entry.getValue(), new byte[0]);
+                while (record.hasRemaining()) {
+                    written += target.write(record);
+                }
+            }
+            for (Mailbox mailbox : mailboxes.values()) {
+                for (int i = 0; i < mailbox.count; i++) {
+                    long position = mailbox.positions[i];
+                    int length = mailbox.recordSizes[i];
+                    long copied = 0;
+                    while (copied < length) {
+                        copied += log.transferTo(position + copied, length - copied, target);
+                    }
+                    mailbox.positions[i] = written;
+                    written += length;
+                }
+            }
+            target.force(false);
+        } catch (IOException e) {
+            target.close();
+            // The positions may point into the new file; read them again
+            mailboxes.clear();
+            known.clear();
+            liveBytes = 0;
+            recover();
+            throw e;
+        }
+
+        Files.move(compacted, directory.resolve(LOG), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        log.close();
+        log = target;
+        logBytes = written;
+        liveBytes = written;
+    }
+
+    // Inner classes ***************************************************
+
+    /**
+     * Where the messages waiting for a login ID are in the log, oldest
+     * first. There are never more than the quota allows.
+     */
+    private static class Mailbox {
+        long[] positions = new long[4];
+        int[] recordSizes = new int[4];
+        int[] textSizes = new int[4];
+        int count = 0;
+
+        /**
+         * The bytes of text of the waiting messages.
+         */
+        int bytes = 0;
+
+        void add(long position, int recordSize, int textSize) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                recordSizes = Arrays.copyOf(recordSizes, count * 2);
+                textSizes = Arrays.copyOf(textSizes, count * 2);
+            }
+            positions[count] = position;
+            recordSizes[count] = recordSize;
+            textSizes[count] = textSize;
+            count++;
+            bytes += textSize;
+        }
+
+        /**
+         * Removes the oldest messages.
+         *
+         * @return The bytes of the log their records took.
+         */
+        long remove(int removed) {
+            long recordBytes = 0;
+            for (int i = 0; i < removed; i++) {
+                recordBytes += recordSizes[i];
+                bytes -= textSizes[i];
+            }
+            count -= removed;
+            System.arraycopy(positions, removed, positions, 0, count);
+            System.arraycopy(recordSizes, removed, recordSizes, 0, count);
+            System.arraycopy(textSizes, removed, textSizes, 0, count);
+            return recordBytes;
+        }
+    }
+}
+// End of OfflineMailboxes class
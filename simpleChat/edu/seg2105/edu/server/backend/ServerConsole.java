@@ -1,7 +1,9 @@
 package edu.seg2105.edu.server.backend;
 
+import edu.seg2105.client.common.AsyncDisplay;
 import edu.seg2105.client.common.ChatIF;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 
@@ -31,6 +33,12 @@ public class ServerConsole implements ChatIF {
      */
     Scanner fromConsole;
 
+    /**
+     * Writes displayed lines to the console on its own thread, so that
+     * the threads handling client messages never wait for the console.
+     */
+    ChatIF output = AsyncDisplay.toConsole(AsyncDisplay.WhenFull.BLOCK);
+
     // Constructors ****************************************************
 
     /**
@@ -39,9 +47,46 @@ public class ServerConsole implements ChatIF {
      * @param port The port to connect on.
      */
     public ServerConsole(int port)  {
+        this(port, 0);
+    }
+
+    /**
+     * Constructs an instance of the ServerConsole UI.
+     *
+     * @param port The port to connect on.
+     * @param selectorThreads The number of selector threads serving the
+     *        clients, or 0 for one thread per client.
+     */
+    public ServerConsole(int port, int selectorThreads)  {
+        this(port, selectorThreads, null, 0, null);
+    }
+
+    /**
+     * Constructs an instance of the ServerConsole UI.
+     *
+     * @param port The port to connect on.
+     * @param selectorThreads The number of selector threads serving the
+     *        clients, or 0 for one thread per client.
+     * @param historyDirectory The directory keeping the chat history, or
+     *        null to keep none.
+     * @param replayOnLogin The number of history entries sent to clients
+     *        when they log in.
+     * @param mailboxDirectory The directory keeping whispers to clients
+     *        that are not logged in, or null to refuse them.
+     */
+    public ServerConsole(int port, int selectorThreads, String historyDirectory, int replayOnLogin,
+            String mailboxDirectory)  {
         
         try {
             server = new EchoServer(port,this);  // Properly initializing the EchoServer instance
+            server.setSelectorThreads(selectorThreads);
+            if (historyDirectory != null) {
+                server.setHistory(new ChatHistory(Paths.get(historyDirectory)));
+                server.setReplayOnLogin(replayOnLogin);
+            }
+            if (mailboxDirectory != null) {
+                server.setMailboxes(new OfflineMailboxes(Paths.get(mailboxDirectory)));
+            }
             server.listen(); // Start listening for connections
         } catch (IOException exception) {
             System.out.println("Error: Can't set up server! Terminating.");
@@ -91,7 +136,7 @@ public class ServerConsole implements ChatIF {
      */
     @Override
     public void display(String message) {
-        System.out.println(message);
+        output.display(message);
     }
 
     // Class methods ***************************************************
@@ -99,10 +144,15 @@ public class ServerConsole implements ChatIF {
     /**
      * The main method to start the server and its console interface.
      *
-     * @param args Command line arguments specifying the port number.
+     * @param args Command line arguments specifying the port number and,
+     *        optionally, the number of selector threads, the directory
+     *        keeping the chat history, the number of history entries
+     *        sent to clients when they log in and the directory keeping
+     *        whispers to clients that are not logged in.
      */
     public static void main(String[] args) {
         int port = DEFAULT_PORT; // The port number to listen on
+        int selectorThreads = 0; // One thread per client by default
 
         try {
             if (args.length > 0) {
@@ -112,7 +162,28 @@ public class ServerConsole implements ChatIF {
             System.out.println("Invalid port number. Using default port " + DEFAULT_PORT);
         }
 
-        ServerConsole console = new ServerConsole(port);
+        try {
+            if (args.length > 1) {
+                selectorThreads = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number of selector threads. Using one thread per client.");
+        }
+
+        String historyDirectory = args.length > 2 ? args[2] : null;
+        int replayOnLogin = 0;
+        try {
+            if (args.length > 3) {
+                replayOnLogin = Integer.parseInt(args[3]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number of history entries. None are sent at login.");
+        }
+
+        String mailboxDirectory = args.length > 4 ? args[4] : null;
+
+        ServerConsole console = new ServerConsole(port, selectorThreads, historyDirectory, replayOnLogin,
+            mailboxDirectory);
         console.accept(); // Accept console data from server operator
     }
 }
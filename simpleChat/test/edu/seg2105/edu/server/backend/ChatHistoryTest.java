@@ -0,0 +1,132 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the chat history: the entries are read back when the history is
+ * opened again, an entry cut short by a crash is ignored, and the last
+ * lines of a room are found however far back they are.
+ */
+class ChatHistoryTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void entriesSurviveReopening() throws IOException {
+        try (ChatHistory history = new ChatHistory(directory)) {
+            assertEquals(1, history.append(null, "hello"));
+            assertEquals(2, history.append("dev", "in dev"));
+        }
+
+        try (ChatHistory history = new ChatHistory(directory)) {
+            List<ChatHistory.Entry> entries = replay(history, 1);
+            assertEquals(Arrays.asList("hello", "in dev"), texts(entries));
+            assertEquals(null, entries.get(0).getRoom());
+            assertEquals("dev", entries.get(1).getRoom());
+            assertEquals(3, history.getNextSequence());
+        }
+    }
+
+    @Test
+    void entryCutShortIsIgnored() throws IOException {
+        try (ChatHistory history = new ChatHistory(directory)) {
+            history.append(null, "one");
+            history.append(null, "two");
+            history.append(null, "three");
+        }
+        // The length of an entry is written last: without it, the entry
+        // was never completed
+        Path segment = directory.resolve(String.format("%020d.log", 1));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            long position = 0;
+            for (int i = 0; i < 2; i++) {
+                length.clear();
+                channel.read(length, position);
+                position += 4 + length.getInt(0);
+            }
+            length.clear();
+            length.putInt(0, 0);
+            channel.write(length, position);
+        }
+
+        try (ChatHistory history = new ChatHistory(directory)) {
+            assertEquals(Arrays.asList("one", "two"), texts(replay(history, 1)));
+            assertEquals(3, history.append(null, "three again"));
+        }
+        try (ChatHistory history = new ChatHistory(directory)) {
+            assertEquals(Arrays.asList("one", "two", "three again"), texts(replay(history, 1)));
+        }
+    }
+
+    @Test
+    void oldestSegmentsAreDeleted() throws IOException {
+        long first;
+        try (ChatHistory history = new ChatHistory(directory, 4096, 2)) {
+            for (int i = 0; i < 1000; i++) {
+                history.append(null, "line " + i);
+            }
+            first = history.getFirstSequence();
+            assertTrue(first > 1);
+            // Reading from an entry no longer kept starts with the oldest kept
+            assertEquals("line " + (first - 1), replay(history, 1).get(0).getText());
+        }
+
+        try (ChatHistory history = new ChatHistory(directory, 4096, 2)) {
+            assertEquals(first, history.getFirstSequence());
+            assertEquals(1001, history.getNextSequence());
+        }
+    }
+
+    @Test
+    void lastLinesOfRoomAreFoundInOlderSegments() throws IOException {
+        try (ChatHistory history = new ChatHistory(directory, 4096, 8)) {
+            history.append("quiet", "first");
+            history.append(null, "to everyone");
+            history.append("quiet", "second");
+            for (int i = 0; i < 300; i++) {
+                history.append("busy", "busy " + i);
+            }
+
+            List<ChatHistory.Entry> entries = new ArrayList<ChatHistory.Entry>();
+            assertEquals(2, history.replayLast(2, "quiet", entries::add));
+            assertEquals(Arrays.asList("to everyone", "second"), texts(entries));
+
+            entries.clear();
+            assertEquals(3, history.replayLast(10, "quiet", entries::add));
+            assertEquals(Arrays.asList("first", "to everyone", "second"), texts(entries));
+
+            entries.clear();
+            assertEquals(1, history.replayLast(1, "busy", entries::add));
+            assertEquals(Arrays.asList("busy 299"), texts(entries));
+        }
+    }
+
+    private static List<ChatHistory.Entry> replay(ChatHistory history, long fromSequence)
+            throws IOException {
+        List<ChatHistory.Entry> entries = new ArrayList<ChatHistory.Entry>();
+        history.replay(fromSequence, entries::add);
+        return entries;
+    }
+
+    private static List<String> texts(List<ChatHistory.Entry> entries) {
+        List<String> texts = new ArrayList<String>();
+        for (ChatHistory.Entry entry : entries) {
+            texts.add(entry.getText());
+        }
+        return texts;
+    }
+}
+// End of ChatHistoryTest class
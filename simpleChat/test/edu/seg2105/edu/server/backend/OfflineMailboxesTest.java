@@ -0,0 +1,142 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the log of the offline mailboxes: what is written is read back
+ * when the log is opened again, a record cut short at its end is dropped,
+ * and compaction keeps the waiting messages and the known login IDs.
+ */
+class OfflineMailboxesTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void messagesSurviveReopening() throws IOException {
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            assertTrue(mailboxes.register("bob"));
+            assertTrue(mailboxes.deposit("bob", "one"));
+            assertTrue(mailboxes.deposit("bob", "two"));
+            assertTrue(mailboxes.deposit("bob", "three"));
+            mailboxes.delivered("bob", 1);
+        }
+
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            assertTrue(mailboxes.isKnown("bob"));
+            assertFalse(mailboxes.isKnown("alice"));
+            assertEquals(Arrays.asList("two", "three"), mailboxes.peek("bob"));
+        }
+    }
+
+    @Test
+    void recordCutShortIsDropped() throws IOException {
+        long whole;
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            mailboxes.register("bob");
+            mailboxes.deposit("bob", "one");
+            whole = Files.size(log());
+            mailboxes.deposit("bob", "two");
+        }
+        try (FileChannel channel = FileChannel.open(log(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 2);
+        }
+
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            assertEquals(Arrays.asList("one"), mailboxes.peek("bob"));
+            assertEquals(whole, Files.size(log()));
+            assertTrue(mailboxes.deposit("bob", "three"));
+        }
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            assertEquals(Arrays.asList("one", "three"), mailboxes.peek("bob"));
+        }
+    }
+
+    @Test
+    void compactionKeepsWaitingMessagesAndKnownLoginIDs() throws IOException {
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            mailboxes.register("bob");
+            mailboxes.register("alice");
+            mailboxes.deposit("bob", "kept");
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(mailboxes.deposit("alice", "delivered at once " + i));
+                mailboxes.delivered("alice", 1);
+            }
+            // Without compaction the log would hold every message
+            assertTrue(Files.size(log()) < 128 * 1024);
+        }
+
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            assertEquals(Arrays.asList("kept"), mailboxes.peek("bob"));
+            assertEquals(0, mailboxes.count("alice"));
+            assertTrue(mailboxes.isKnown("alice"));
+        }
+    }
+
+    @Test
+    void fullLogRefusesMessagesUntilSomeAreDelivered() throws IOException {
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory, 1000, 1000000, 10, 4096)) {
+            mailboxes.register("bob");
+            int accepted = 0;
+            while (mailboxes.deposit("bob", "message " + accepted)) {
+                accepted++;
+            }
+            long size = Files.size(log());
+            assertFalse(mailboxes.deposit("bob", "refused"));
+            assertEquals(size, Files.size(log()));
+
+            mailboxes.delivered("bob", accepted / 2);
+            assertTrue(mailboxes.deposit("bob", "after delivery"));
+            List<String> waiting = mailboxes.peek("bob");
+            assertEquals("after delivery", waiting.get(waiting.size() - 1));
+        }
+    }
+
+    @Test
+    void knownLoginIDsAreBounded() throws IOException {
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory, 10, 1000, 10, 1000000,
+                2, OfflineMailboxes.DEFAULT_KNOWN_MILLIS)) {
+            mailboxes.register("a");
+            mailboxes.register("b");
+            mailboxes.deposit("a", "waiting");
+            assertTrue(mailboxes.register("c"));
+            // The oldest login ID without messages waiting was forgotten
+            assertTrue(mailboxes.isKnown("a"));
+            assertFalse(mailboxes.isKnown("b"));
+            assertTrue(mailboxes.isKnown("c"));
+        }
+
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory, 10, 1000, 10, 1000000,
+                2, OfflineMailboxes.DEFAULT_KNOWN_MILLIS)) {
+            assertFalse(mailboxes.isKnown("b"));
+            assertEquals(Arrays.asList("waiting"), mailboxes.peek("a"));
+        }
+    }
+
+    @Test
+    void knownLoginIDsExpire() throws IOException, InterruptedException {
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory)) {
+            mailboxes.register("bob");
+        }
+        Thread.sleep(20);
+
+        try (OfflineMailboxes mailboxes = new OfflineMailboxes(directory, 10, 1000, 10, 1000000,
+                100, 10)) {
+            assertFalse(mailboxes.isKnown("bob"));
+            assertFalse(mailboxes.deposit("bob", "too late"));
+        }
+    }
+
+    private Path log() {
+        return directory.resolve("mailboxes.log");
+    }
+}
+// End of OfflineMailboxesTest class